@@ -0,0 +1,35 @@
+package expressivo;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmark suite and saves the results as JSON, for comparing one version with another.
+ * 
+ * <p>The benchmarks are in bench/ and need JMH (jmh-core, plus jmh-generator-annprocess as an
+ * annotation processor when compiling) and the same classpath as src/. Compile src/ and bench/
+ * together, then run this class.
+ * 
+ * @see <a href="https://openjdk.java.net/projects/code-tools/jmh/">JMH</a>
+ */
+public class BenchmarkRunner {
+    
+    /**
+     * @param args [result file [benchmark name regex]], by default jmh-result.json and every
+     *             benchmark in this package
+     * @throws RunnerException if a benchmark fails
+     */
+    public static void main(String[] args) throws RunnerException {
+        final String resultFile = args.length > 0 ? args[0] : "jmh-result.json";
+        final String include = args.length > 1 ? args[1] : BenchmarkRunner.class.getPackage().getName() + "\\..*Benchmark";
+        final Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,78 @@
+package expressivo;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ExpressionCodec against the text form: encoding against printing with the minimal-parentheses
+ * layout, and decoding against parsing that text with either parser. (The standard layout puts
+ * every Sum in parentheses, which the parsers handle by recursion, so it cannot be read back for
+ * large sums at all.)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    
+    @Param({ "WIDE_SUM", "NESTED_PARENS", "MANY_VARIABLES", "POLYNOMIAL" })
+    public ExpressionGenerator.Shape shape;
+    
+    @Param({ "10", "10000" })
+    public int size;
+    
+    private Expression expression;
+    private String text;
+    private byte[] bytes;
+    
+    @Setup
+    public void setUp() {
+        expression = Expression.parse(ExpressionGenerator.generate(shape, size),
+                Expression.ParserStrategy.RECURSIVE_DESCENT);
+        text = ExpressionWriter.toString(expression, ExpressionWriter.Layout.MINIMAL);
+        bytes = ExpressionCodec.toBytes(expression, false);
+    }
+    
+    @Benchmark
+    public byte[] encode() {
+        return ExpressionCodec.toBytes(expression, false);
+    }
+    
+    @Benchmark
+    public byte[] encodeShared() {
+        return ExpressionCodec.toBytes(expression, true);
+    }
+    
+    @Benchmark
+    public String encodeText() {
+        return ExpressionWriter.toString(expression, ExpressionWriter.Layout.MINIMAL);
+    }
+    
+    @Benchmark
+    public Expression decode() {
+        return ExpressionCodec.fromBytes(bytes);
+    }
+    
+    @Benchmark
+    public Expression decodeTextGrammar() {
+        return Expression.parse(text, Expression.ParserStrategy.GRAMMAR);
+    }
+    
+    @Benchmark
+    public Expression decodeTextRecursiveDescent() {
+        return Expression.parse(text, Expression.ParserStrategy.RECURSIVE_DESCENT);
+    }
+}
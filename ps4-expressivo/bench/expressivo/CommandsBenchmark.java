@@ -0,0 +1,97 @@
+package expressivo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end cost of the string-based Commands and of console lines run through a Main session,
+ * including parsing, the operation itself and printing the result.
+ * 
+ * The cold variants clear the parse cache first, as for an expression seen for the first time;
+ * the others see the steady state of a session repeating the same expression.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandsBenchmark {
+    
+    @Param({ "WIDE_SUM", "NESTED_PARENS", "MANY_VARIABLES", "POLYNOMIAL" })
+    public ExpressionGenerator.Shape shape;
+    
+    @Param({ "10", "1000" })
+    public int size;
+    
+    private String input;
+    private Map<String, Double> env;
+    private Environment environment;
+    private String simplifyCommand;
+    private Main.Session session;
+    
+    @Setup
+    public void setUp() {
+        input = ExpressionGenerator.generate(shape, size);
+        env = new HashMap<>();
+        env.put("x", 1.5);
+        env.put("y", 2.0);
+        env.put("a", 3.0);
+        environment = Environment.of(env);
+        simplifyCommand = "!simplify x=1.5 y=2 a=3";
+        session = new Main.Session();
+        session.execute(input);
+    }
+    
+    @Benchmark
+    public String differentiate() {
+        DerivativeCache.clear();
+        return Commands.differentiate(input, "x");
+    }
+    
+    @Benchmark
+    public String differentiateCold() {
+        DerivativeCache.clear();
+        ParseCache.getDefault().clear();
+        return Commands.differentiate(input, "x");
+    }
+    
+    @Benchmark
+    public String simplifyMap() {
+        return Commands.simplify(input, env);
+    }
+    
+    @Benchmark
+    public String simplifyEnvironment() {
+        return Commands.simplify(input, environment);
+    }
+    
+    @Benchmark
+    public String simplifyCold() {
+        ParseCache.getDefault().clear();
+        return Commands.simplify(input, env);
+    }
+    
+    @Benchmark
+    public String normalize() {
+        return Commands.normalize(input);
+    }
+    
+    @Benchmark
+    public String sessionSimplifyCommand() {
+        return session.execute(simplifyCommand);
+    }
+}
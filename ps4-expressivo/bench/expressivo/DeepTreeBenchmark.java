@@ -0,0 +1,105 @@
+package expressivo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of whole-tree operations on trees far too deep for recursion: Traversal's explicit
+ * stack on million-node left and right spines, and constant folding in simplify.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class DeepTreeBenchmark {
+    
+    @Param({ "1000", "1000000" })
+    public int depth;
+    
+    private String input;
+    private Expression leftSpine;
+    private Expression leftSpineCopy;
+    private Expression rightSpine;
+    private Expression rightSpineCopy;
+    private Expression constants;
+    private Map<String, Double> env;
+    
+    @Setup
+    public void setUp() {
+        input = ExpressionGenerator.wideSum(depth);
+        leftSpine = Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT);
+        leftSpineCopy = Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT);
+        rightSpine = ExpressionGenerator.rightSpine(depth);
+        rightSpineCopy = ExpressionGenerator.rightSpine(depth);
+        constants = ExpressionGenerator.constantTree(depth);
+        env = new HashMap<>();
+        env.put("x", 2.0);
+    }
+    
+    @Benchmark
+    public Expression parseLeftSpine() {
+        return Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT);
+    }
+    
+    @Benchmark
+    public Expression simplifyLeftSpine() {
+        return leftSpine.simplify(env);
+    }
+    
+    @Benchmark
+    public Expression simplifyRightSpine() {
+        return rightSpine.simplify(env);
+    }
+    
+    @Benchmark
+    public Expression simplifyConstants() {
+        return constants.simplify(env);
+    }
+    
+    @Benchmark
+    public Expression differentiateLeftSpine() {
+        DerivativeCache.clear();
+        return leftSpine.differentiate("x");
+    }
+    
+    @Benchmark
+    public Expression differentiateRightSpine() {
+        DerivativeCache.clear();
+        return rightSpine.differentiate("x");
+    }
+    
+    @Benchmark
+    public String toStringLeftSpine() {
+        return leftSpine.toString();
+    }
+    
+    @Benchmark
+    public String toStringRightSpine() {
+        return rightSpine.toString();
+    }
+    
+    @Benchmark
+    public boolean equalsLeftSpine() {
+        return leftSpine.equals(leftSpineCopy);
+    }
+    
+    @Benchmark
+    public boolean equalsRightSpine() {
+        return rightSpine.equals(rightSpineCopy);
+    }
+}
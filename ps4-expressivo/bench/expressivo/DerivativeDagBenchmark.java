@@ -0,0 +1,122 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Higher-order derivatives, whose trees are mostly repeated subtrees: taking the derivative
+ * itself, and building, evaluating and simplifying its ExpressionDag. At order 10 the tree has
+ * over a billion nodes, so simplifying the plain tree is only measured at low orders. valueAt
+ * evaluates the same derivative with Derivative.valueAt, which never builds a tree.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DerivativeDagBenchmark {
+    
+    private static final String INPUT = "x * x * y * x * x * (x + y) * x";
+    
+    private static Map<String, Double> env() {
+        Map<String, Double> env = new HashMap<>();
+        env.put("x", 1.5);
+        env.put("y", 0.5);
+        return env;
+    }
+    
+    private static Expression derivative(Expression expression, int order) {
+        Expression result = expression;
+        for (int i = 0; i < order; i++) {
+            result = result.differentiate("x");
+        }
+        return result;
+    }
+    
+    /**
+     * The derivative and its DAG.
+     */
+    @State(Scope.Benchmark)
+    public static class Dag {
+        @Param({ "2", "5", "10" })
+        public int order;
+        
+        Expression expression;
+        Expression derivative;
+        ExpressionDag dag;
+        Map<String, Double> env;
+        
+        @Setup
+        public void setUp() {
+            expression = Expression.parse(INPUT, Expression.ParserStrategy.RECURSIVE_DESCENT);
+            derivative = derivative(expression, order);
+            dag = ExpressionDag.of(derivative);
+            env = env();
+        }
+    }
+    
+    /**
+     * The derivative as a plain tree, only at orders small enough to walk.
+     */
+    @State(Scope.Benchmark)
+    public static class Tree {
+        @Param({ "2", "5" })
+        public int treeOrder;
+        
+        Expression derivative;
+        Map<String, Double> env;
+        
+        @Setup
+        public void setUp() {
+            derivative = derivative(Expression.parse(INPUT, Expression.ParserStrategy.RECURSIVE_DESCENT), treeOrder);
+            env = env();
+        }
+    }
+    
+    @Benchmark
+    public Expression differentiate(Dag state) {
+        DerivativeCache.clear();
+        return derivative(state.expression, state.order);
+    }
+    
+    @Benchmark
+    public double valueAt(Dag state) {
+        String[] vars = new String[state.order];
+        Arrays.fill(vars, "x");
+        return Derivative.of(state.expression, vars).valueAt(state.env);
+    }
+    
+    @Benchmark
+    public ExpressionDag dagOf(Dag state) {
+        return ExpressionDag.of(state.derivative);
+    }
+    
+    @Benchmark
+    public double dagEvaluate(Dag state) {
+        return state.dag.evaluate(state.env);
+    }
+    
+    @Benchmark
+    public Expression dagSimplify(Dag state) {
+        return state.dag.simplify(state.env);
+    }
+    
+    @Benchmark
+    public Expression treeSimplify(Tree state) {
+        return state.derivative.simplify(state.env);
+    }
+}
@@ -0,0 +1,158 @@
+package expressivo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of each public Expression operation on every generated shape and a range of sizes.
+ * 
+ * differentiate runs with the derivative cache cleared before every call, so it measures the work
+ * of differentiating rather than a cache lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ExpressionBenchmark {
+    
+    @Param({ "WIDE_SUM", "DEEP_PRODUCT", "NESTED_PARENS", "MANY_VARIABLES", "POLYNOMIAL" })
+    public ExpressionGenerator.Shape shape;
+    
+    @Param({ "10", "1000", "100000" })
+    public int size;
+    
+    private String input;
+    private String invalid;
+    private Expression expression;
+    private Expression copy;
+    private Map<String, Double> env;
+    private Environment environment;
+    private ExpressionDag.Session session;
+    private String rebound;
+    private int rebinds = 0;
+    private Gradient gradient;
+    private double[] point;
+    
+    @Setup
+    public void setUp() {
+        input = ExpressionGenerator.generate(shape, size);
+        invalid = input + " +";
+        expression = Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT);
+        copy = Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT);
+        env = new HashMap<>();
+        env.put("x", 1.5);
+        for (int i = 0; i < 2 * size; i += 3) {
+            env.put(ExpressionGenerator.variableName(i), (double) i);
+        }
+        environment = Environment.of(env);
+        session = ExpressionDag.of(expression).session(env);
+        rebound = shape == ExpressionGenerator.Shape.MANY_VARIABLES ? ExpressionGenerator.variableName(0) : "x";
+        gradient = Gradient.of(expression);
+        String[] variables = gradient.getVariables();
+        point = new double[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            point[i] = env.getOrDefault(variables[i], 1.0);
+        }
+    }
+    
+    @Benchmark
+    public Expression parseGrammar() {
+        return Expression.parse(input, Expression.ParserStrategy.GRAMMAR);
+    }
+    
+    @Benchmark
+    public Expression parseRecursiveDescent() {
+        return Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT);
+    }
+    
+    @Benchmark
+    public int validate() {
+        return Expression.validate(input);
+    }
+    
+    /**
+     * Reject input that is malformed only at its very end, so the whole input is scanned.
+     */
+    @Benchmark
+    public int parseInvalidGrammar() {
+        try {
+            Expression.parse(invalid, Expression.ParserStrategy.GRAMMAR);
+            throw new AssertionError("parsed invalid input");
+        } catch (ExpressionSyntaxException ese) {
+            return ese.getOffset();
+        }
+    }
+    
+    @Benchmark
+    public int parseInvalidRecursiveDescent() {
+        try {
+            Expression.parse(invalid, Expression.ParserStrategy.RECURSIVE_DESCENT);
+            throw new AssertionError("parsed invalid input");
+        } catch (ExpressionSyntaxException ese) {
+            return ese.getOffset();
+        }
+    }
+    
+    @Benchmark
+    public Expression simplifyMap() {
+        return expression.simplify(env);
+    }
+    
+    @Benchmark
+    public Expression simplifyEnvironment() {
+        return expression.simplify(environment);
+    }
+    
+    /**
+     * Re-simplify after changing the binding of one variable, as an optimizer loop would.
+     */
+    @Benchmark
+    public Expression simplifySessionRebind() {
+        session.set(rebound, rebinds++ % 2 == 0 ? 2.5 : 1.5);
+        return session.result();
+    }
+    
+    @Benchmark
+    public Expression differentiate() {
+        DerivativeCache.clear();
+        return expression.differentiate("x");
+    }
+    
+    /**
+     * All partial derivatives at once; compare with differentiate, which is one of them.
+     */
+    @Benchmark
+    public double[] gradient() {
+        return gradient.gradient(point);
+    }
+    
+    @Benchmark
+    public String toStringStandard() {
+        return expression.toString();
+    }
+    
+    @Benchmark
+    public String toStringMinimal() {
+        return ExpressionWriter.toString(expression, ExpressionWriter.Layout.MINIMAL);
+    }
+    
+    @Benchmark
+    public boolean equalsStructural() {
+        return expression.equals(copy);
+    }
+}
@@ -0,0 +1,163 @@
+package expressivo;
+
+import java.util.Random;
+
+/**
+ * Generators of expression inputs for the benchmarks, in realistic and adversarial shapes.
+ * Every generator is deterministic, so runs on different versions see the same inputs.
+ */
+public class ExpressionGenerator {
+    
+    /** The shapes the generators produce. */
+    public enum Shape {
+        /** x + x + ... + x: a left-deep spine of Sums, as written by people. */
+        WIDE_SUM,
+        /** x * 2 * x * 2 ...: a left-deep spine of Products. */
+        DEEP_PRODUCT,
+        /** (((x + 1) * 2 + 1) * 2 ...: every operator nested inside the parentheses of the last. */
+        NESTED_PARENS,
+        /** a * b + c * d + ...: a wide sum over many distinct variables. */
+        MANY_VARIABLES,
+        /** a polynomial in x and y with random coefficients, like typical console input. */
+        POLYNOMIAL
+    };
+    
+    private ExpressionGenerator() {}
+    
+    /**
+     * @param shape shape to generate
+     * @param size approximate number of operators, at least 1
+     * @return a parsable expression of that shape and size
+     */
+    public static String generate(Shape shape, int size) {
+        switch (shape) {
+        case WIDE_SUM:
+            return wideSum(size);
+        case DEEP_PRODUCT:
+            return deepProduct(size);
+        case NESTED_PARENS:
+            return nestedParens(size);
+        case MANY_VARIABLES:
+            return manyVariables(size);
+        case POLYNOMIAL:
+            return polynomial(size);
+        default:
+            throw new AssertionError("unknown shape " + shape);
+        }
+    }
+    
+    /**
+     * @return x + x + ... with terms copies of x
+     */
+    public static String wideSum(int terms) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) builder.append(" + ");
+            builder.append('x');
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * @return x * 2 * x * 2 ... with factors factors
+     */
+    public static String deepProduct(int factors) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < factors; i++) {
+            if (i > 0) builder.append(" * ");
+            builder.append(i % 2 == 0 ? "x" : "2");
+        }
+        return builder.toString();
+    }
+    
+    /** Deepest nesting nestedParens generates; the parsers recurse on parentheses. */
+    public static final int MAX_NESTING = 500;
+    
+    /**
+     * @return (((x + 1) * 2 + 1) * 2 ...) with depth levels of parentheses, or if depth is more
+     *         than MAX_NESTING, a sum of such terms MAX_NESTING deep with depth levels in all
+     */
+    public static String nestedParens(int depth) {
+        StringBuilder builder = new StringBuilder();
+        for (int done = 0; done < depth; done += MAX_NESTING) {
+            if (done > 0) builder.append(" + ");
+            int levels = Math.min(MAX_NESTING, depth - done);
+            for (int i = 0; i < levels; i++) {
+                builder.append('(');
+            }
+            builder.append('x');
+            for (int i = 0; i < levels; i++) {
+                builder.append(i % 2 == 0 ? " + 1)" : " * 2)");
+            }
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * @return a * b + c * d + ... over products distinct pairs of variables
+     */
+    public static String manyVariables(int products) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < products; i++) {
+            if (i > 0) builder.append(" + ");
+            builder.append(variableName(2 * i)).append(" * ").append(variableName(2 * i + 1));
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * @return a sum of terms monomials in x and y of degree up to 3, with random coefficients
+     */
+    public static String polynomial(int terms) {
+        Random random = new Random(6005);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) builder.append(" + ");
+            builder.append(random.nextInt(100)).append('.').append(random.nextInt(10));
+            int degree = random.nextInt(4);
+            for (int d = 0; d < degree; d++) {
+                builder.append(random.nextBoolean() ? " * x" : " * y");
+            }
+            if (random.nextInt(8) == 0) {
+                builder.append(" * (x + ").append(random.nextInt(10)).append(')');
+            }
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * @param index a nonnegative integer
+     * @return a distinct variable name of letters for each index: a, b, ..., z, ba, bb, ...
+     */
+    public static String variableName(int index) {
+        StringBuilder builder = new StringBuilder();
+        do {
+            builder.append((char) ('a' + index % 26));
+            index /= 26;
+        } while (index > 0);
+        return builder.reverse().toString();
+    }
+    
+    /**
+     * @return x + (x + (x + ...)) with terms copies of x, built directly since it is the shape
+     *         the parser never builds
+     */
+    public static Expression rightSpine(int terms) {
+        Expression result = new Variable("x");
+        for (int i = 1; i < terms; i++) {
+            result = new Sum(new Variable("x"), result);
+        }
+        return result;
+    }
+    
+    /**
+     * @return a left-deep tree of depth Sums and Products of Scalars, which simplify folds to one Scalar
+     */
+    public static Expression constantTree(int depth) {
+        Expression result = new Scalar(0);
+        for (int i = 1; i <= depth; i++) {
+            result = i % 2 == 0 ? new Sum(result, new Scalar(i)) : new Product(result, new Scalar(1));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,160 @@
+package expressivo;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Expression.hashCode over corpora of structurally distinct expressions: how often distinct
+ * expressions share a hash code, and what that costs the hash tables built on them. Each corpus is
+ * every distinct subexpression of some generated input, counting the left operand of a Sum or
+ * Product as a subexpression as it would be in the binary tree.
+ *
+ * <p>The benchmarks time building a HashSet of the corpus and looking every element up again, as
+ * an interner or memo table would. Run main to print the collision counts themselves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashCollisionBenchmark {
+    
+    /** The corpora, by name: every shape of ExpressionGenerator, and SMALL_TREES. */
+    public static final String[] CORPORA = {
+        "SMALL_TREES", "WIDE_SUM", "DEEP_PRODUCT", "NESTED_PARENS", "MANY_VARIABLES", "POLYNOMIAL"
+    };
+    
+    @Param({ "SMALL_TREES", "MANY_VARIABLES", "POLYNOMIAL", "NESTED_PARENS" })
+    public String corpus;
+    
+    @Param({ "1000" })
+    public int size;
+    
+    private Expression[] expressions;
+    
+    @Setup
+    public void setUp() {
+        expressions = corpus(corpus, size);
+    }
+    
+    @Benchmark
+    public int hashSetBuildAndLookUp() {
+        Set<Expression> set = new HashSet<>();
+        for (Expression expression : expressions) {
+            set.add(expression);
+        }
+        int found = 0;
+        for (Expression expression : expressions) {
+            if (set.contains(expression)) found++;
+        }
+        return found;
+    }
+    
+    /**
+     * @param name a name in CORPORA
+     * @param size size of the generated input, see ExpressionGenerator.generate; ignored for
+     *             SMALL_TREES
+     * @return the distinct expressions of the corpus
+     */
+    public static Expression[] corpus(String name, int size) {
+        if (name.equals("SMALL_TREES")) {
+            return smallTrees();
+        }
+        Expression input = Expression.parse(
+                ExpressionGenerator.generate(ExpressionGenerator.Shape.valueOf(name), size),
+                Expression.ParserStrategy.RECURSIVE_DESCENT);
+        Set<Expression> distinct = new HashSet<>();
+        Deque<Expression> stack = new ArrayDeque<>();
+        stack.push(input);
+        while (!stack.isEmpty()) {
+            Expression expression = stack.pop();
+            if (!distinct.add(expression)) continue;
+            if (expression instanceof Sum) {
+                stack.push(((Sum) expression).getLeft());
+                stack.push(((Sum) expression).getRight());
+            } else if (expression instanceof Product) {
+                stack.push(((Product) expression).getLeft());
+                stack.push(((Product) expression).getRight());
+            }
+        }
+        return distinct.toArray(new Expression[distinct.size()]);
+    }
+    
+    /**
+     * @return every expression with at most two operators over the leaves x, y, z, 0.5, 1 and 2,
+     *         which differ from each other mostly in operand order, operator and grouping
+     */
+    private static Expression[] smallTrees() {
+        List<Expression> leaves = new ArrayList<>();
+        for (String name : new String[] { "x", "y", "z" }) {
+            leaves.add(new Variable(name));
+        }
+        for (double value : new double[] { 0.5, 1, 2 }) {
+            leaves.add(new Scalar(value));
+        }
+        List<Expression> pairs = new ArrayList<>();
+        for (Expression left : leaves) {
+            for (Expression right : leaves) {
+                pairs.add(new Sum(left, right));
+                pairs.add(new Product(left, right));
+            }
+        }
+        List<Expression> result = new ArrayList<>(leaves);
+        result.addAll(pairs);
+        for (Expression pair : pairs) {
+            for (Expression leaf : leaves) {
+                result.add(new Sum(pair, leaf));
+                result.add(new Product(pair, leaf));
+                result.add(new Sum(leaf, pair));
+                result.add(new Product(leaf, pair));
+            }
+        }
+        return result.toArray(new Expression[result.size()]);
+    }
+    
+    /**
+     * Print, for every corpus, the number of distinct expressions, the number of them that share
+     * their hash code with another, and the size of the largest group sharing one hash code.
+     * @param args [size], by default 1000
+     */
+    public static void main(String[] args) {
+        final int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        System.out.printf("%-16s %10s %10s %10s %10s%n", "corpus", "distinct", "colliding", "rate", "largest");
+        for (String name : CORPORA) {
+            Expression[] expressions = corpus(name, size);
+            Map<Integer, Integer> counts = new HashMap<>();
+            for (Expression expression : expressions) {
+                Integer count = counts.get(expression.hashCode());
+                counts.put(expression.hashCode(), count == null ? 1 : count + 1);
+            }
+            int colliding = 0;
+            int largest = 0;
+            for (int count : counts.values()) {
+                if (count > 1) colliding += count;
+                largest = Math.max(largest, count);
+            }
+            System.out.printf("%-16s %10d %10d %10.4f %10d%n",
+                    name, expressions.length, colliding, (double) colliding / expressions.length, largest);
+        }
+    }
+}
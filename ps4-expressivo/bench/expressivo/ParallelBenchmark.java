@@ -0,0 +1,74 @@
+package expressivo;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Scaling of ParallelExpressions with the number of worker threads, on a million-node polynomial.
+ * threads = 0 runs the sequential Expression operation for comparison.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = { "-Xmx4g" })
+public class ParallelBenchmark {
+    
+    @Param({ "0", "1", "2", "4", "8", "16", "32" })
+    public int threads;
+    
+    @Param({ "100000" })
+    public int terms;
+    
+    private Expression expression;
+    private Map<String, Double> env;
+    private ForkJoinPool pool;
+    
+    @Setup(Level.Trial)
+    public void setUp() {
+        expression = Expression.parse(ExpressionGenerator.polynomial(terms),
+                Expression.ParserStrategy.RECURSIVE_DESCENT);
+        env = new HashMap<>();
+        env.put("y", 2.0);
+        pool = threads > 0 ? new ForkJoinPool(threads) : null;
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (pool != null) pool.shutdown();
+    }
+    
+    @Benchmark
+    public Expression simplify() {
+        if (pool == null) {
+            return expression.simplify(env);
+        }
+        return ParallelExpressions.simplify(expression, env, pool, ParallelExpressions.DEFAULT_THRESHOLD);
+    }
+    
+    @Benchmark
+    public Expression differentiate() {
+        DerivativeCache.clear();
+        if (pool == null) {
+            return expression.differentiate("x");
+        }
+        return ParallelExpressions.differentiate(expression, "x", pool, ParallelExpressions.DEFAULT_THRESHOLD);
+    }
+}
@@ -0,0 +1,261 @@
+package expressivo;
+
+import java.nio.DoubleBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Evaluates one Expression over many rows of variable values at once.
+ *
+ * Variable values are given column by column: one double[] (or DoubleBuffer, e.g. a direct
+ * off-heap buffer) per variable, indexed by row. The expression is compiled once into a
+ * post-order program over registers, and each instruction is applied to a whole block of rows
+ * before moving on to the next instruction. The inner loops are simple element-wise loops over
+ * double[] blocks, which the JIT unrolls and auto-vectorizes.
+ *
+ * Registers are assigned by stack depth: the first operand of a Sum or Product is computed in the
+ * register of the node itself, and each further operand in the next register and then folded in,
+ * so a chain like a+b+c+d needs only two registers.
+ *
+ * Operations are applied in the same order as Expression.simplify, so each output row is exactly
+ * the value of the Scalar that simplify returns for that row's bindings.
+ *
+ * Abstraction function:
+ *  represents the expression computed by running instructions 0..length-1 in order, where
+ *  instruction i stores into register target[i] either constants[i] (CONSTANT), column
+ *  argument[i] (LOAD), or target[i] op argument[i] (ADD, MULTIPLY); the result is in register 0
+ *
+ * Rep invariant:
+ *  0 <= target[i] < registers for all i
+ *  argument[i] is a slot < variables.length for LOAD, a register < registers for ADD and MULTIPLY
+ *
+ * Safety from rep exposure:
+ *  all fields are private and final, and arrays are never returned except as copies
+ */
+
+public class BatchEvaluator {
+    
+    /** Number of rows processed per instruction pass. */
+    public static final int BLOCK_SIZE = 1024;
+    
+    private static final int CONSTANT = 0;
+    private static final int LOAD = 1;
+    private static final int ADD = 2;
+    private static final int MULTIPLY = 3;
+    
+    private final String[] variables;
+    private final int[] opcodes;
+    private final int[] targets;
+    private final int[] arguments;
+    private final double[] constants;
+    private final int registers;
+    
+    private BatchEvaluator(String[] variables, int[] opcodes, int[] targets, int[] arguments,
+            double[] constants, int registers) {
+        this.variables = variables;
+        this.opcodes = opcodes;
+        this.targets = targets;
+        this.arguments = arguments;
+        this.constants = constants;
+        this.registers = registers;
+    }
+    
+    /**
+     * Compile an expression for batch evaluation.
+     * @param expression expression to evaluate
+     * @return a batch evaluator for expression
+     */
+    public static BatchEvaluator compile(Expression expression) {
+        Program program = new Program();
+        program.emit(Derivative.force(expression), 0);
+        String[] variables = program.slots.keySet().toArray(new String[program.slots.size()]);
+        return new BatchEvaluator(variables,
+                Arrays.copyOf(program.opcodes, program.length),
+                Arrays.copyOf(program.targets, program.length),
+                Arrays.copyOf(program.arguments, program.length),
+                Arrays.copyOf(program.constants, program.length),
+                program.registers);
+    }
+    
+    /**
+     * @return names of the variables of the expression, indexed by column
+     */
+    public String[] getVariables() {
+        return Arrays.copyOf(variables, variables.length);
+    }
+    
+    /**
+     * Evaluate the expression for rows 0..rows-1.
+     * @param columns columns[i][r] is the value of variable getVariables()[i] in row r;
+     *                every column must have at least rows elements
+     * @param output receives the value of the expression for row r in output[r];
+     *               must have at least rows elements
+     * @param rows number of rows to evaluate
+     */
+    public void evaluate(double[][] columns, double[] output, int rows) {
+        checkColumns(columns.length);
+        final double[][] registerFile = new double[registers][BLOCK_SIZE];
+        for (int start = 0; start < rows; start += BLOCK_SIZE) {
+            final int length = Math.min(BLOCK_SIZE, rows - start);
+            for (int i = 0; i < opcodes.length; i++) {
+                if (opcodes[i] == LOAD) {
+                    System.arraycopy(columns[arguments[i]], start, registerFile[targets[i]], 0, length);
+                } else {
+                    execute(i, registerFile, length);
+                }
+            }
+            System.arraycopy(registerFile[0], 0, output, start, length);
+        }
+    }
+    
+    /**
+     * Evaluate the expression for the rows between each buffer's position and its limit.
+     * The positions of the buffers are not changed.
+     * @param columns columns[i].get(columns[i].position() + r) is the value of variable
+     *                getVariables()[i] in row r; every column must have at least rows remaining
+     * @param output receives the value of the expression for row r at output.position() + r;
+     *               must have at least rows remaining
+     * @param rows number of rows to evaluate
+     */
+    public void evaluate(DoubleBuffer[] columns, DoubleBuffer output, int rows) {
+        checkColumns(columns.length);
+        final DoubleBuffer[] views = new DoubleBuffer[columns.length];
+        for (int c = 0; c < columns.length; c++) {
+            views[c] = columns[c].duplicate();
+        }
+        final DoubleBuffer outputView = output.duplicate();
+        final double[][] registerFile = new double[registers][BLOCK_SIZE];
+        for (int start = 0; start < rows; start += BLOCK_SIZE) {
+            final int length = Math.min(BLOCK_SIZE, rows - start);
+            for (int i = 0; i < opcodes.length; i++) {
+                if (opcodes[i] == LOAD) {
+                    views[arguments[i]].mark();
+                    views[arguments[i]].get(registerFile[targets[i]], 0, length);
+                    views[arguments[i]].reset();
+                } else {
+                    execute(i, registerFile, length);
+                }
+            }
+            for (DoubleBuffer view : views) {
+                view.position(view.position() + length);
+            }
+            outputView.put(registerFile[0], 0, length);
+        }
+    }
+    
+    private void checkColumns(int count) {
+        if (count < variables.length) {
+            throw new IllegalArgumentException("expected " + variables.length + " columns, got " + count);
+        }
+    }
+    
+    /**
+     * Run instruction i, other than LOAD, on the first length rows of the register file.
+     */
+    private void execute(int i, double[][] registerFile, int length) {
+        final double[] target = registerFile[targets[i]];
+        switch (opcodes[i]) {
+        case CONSTANT:
+            Arrays.fill(target, 0, length, constants[i]);
+            break;
+        case ADD: {
+            final double[] operand = registerFile[arguments[i]];
+            for (int r = 0; r < length; r++) {
+                target[r] = target[r] + operand[r];
+            }
+            break;
+        }
+        case MULTIPLY: {
+            final double[] operand = registerFile[arguments[i]];
+            for (int r = 0; r < length; r++) {
+                target[r] = target[r] * operand[r];
+            }
+            break;
+        }
+        default:
+            throw new AssertionError("unknown opcode " + opcodes[i]);
+        }
+    }
+    
+    /*
+     * Growable instruction list used while compiling.
+     */
+    private static class Program {
+        final Map<String, Integer> slots = new LinkedHashMap<>();
+        int[] opcodes = new int[16];
+        int[] targets = new int[16];
+        int[] arguments = new int[16];
+        double[] constants = new double[16];
+        int length = 0;
+        int registers = 1;
+        
+        /**
+         * Append instructions that leave the value of expression in register target.
+         * Uses an explicit stack of pending nodes, so trees of any depth can be compiled.
+         */
+        void emit(Expression expression, int target) {
+            Deque<Pending> pending = new ArrayDeque<>();
+            pending.push(new Pending(expression, target, 0));
+            while (!pending.isEmpty()) {
+                Pending frame = pending.pop();
+                Expression node = frame.node;
+                int register = frame.register;
+                if (node instanceof Sum || node instanceof Product) {
+                    int operand = frame.operandsDone;
+                    if (operand > 1) {
+                        // operand-1 has just been computed in register + 1; fold it into register
+                        registers = Math.max(registers, register + 2);
+                        append(node instanceof Sum ? ADD : MULTIPLY, register, register + 1, 0);
+                    }
+                    if (operand < Traversal.operandCount(node)) {
+                        pending.push(new Pending(node, register, operand + 1));
+                        pending.push(new Pending(Traversal.operand(node, operand),
+                                operand == 0 ? register : register + 1, 0));
+                    }
+                } else if (node instanceof Variable) {
+                    String name = ((Variable) node).getName();
+                    if (!slots.containsKey(name)) {
+                        slots.put(name, slots.size());
+                    }
+                    append(LOAD, register, slots.get(name), 0);
+                } else if (node instanceof Scalar) {
+                    append(CONSTANT, register, 0, ((Scalar) node).getValue());
+                } else {
+                    throw new IllegalArgumentException("unknown expression variant: " + node.getClass());
+                }
+            }
+        }
+        
+        private void append(int opcode, int target, int argument, double constant) {
+            if (length == opcodes.length) {
+                opcodes = Arrays.copyOf(opcodes, length * 2);
+                targets = Arrays.copyOf(targets, length * 2);
+                arguments = Arrays.copyOf(arguments, length * 2);
+                constants = Arrays.copyOf(constants, length * 2);
+            }
+            opcodes[length] = opcode;
+            targets[length] = target;
+            arguments[length] = argument;
+            constants[length] = constant;
+            length++;
+        }
+    }
+    
+    /*
+     * A node waiting to be compiled into register, after its first operandsDone operands.
+     */
+    private static class Pending {
+        final Expression node;
+        final int register;
+        final int operandsDone;
+        
+        Pending(Expression node, int register, int operandsDone) {
+            this.node = node;
+            this.register = register;
+            this.operandsDone = operandsDone;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package expressivo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Runs a stream of console inputs (expressions and commands, one per line) as one Main session,
+ * writing one output line per nonblank input line.
+ * 
+ * Commands depend on the most recent expression, but an expression line starts over, so the input
+ * is cut into chunks of about CHUNK_LINES lines that each start at an expression line. With more
+ * than one thread, chunks are run concurrently, each in a fresh session, and their outputs are
+ * written in input order.
+ * 
+ * A chunk only depends on the chunks before it if one of its lines runs before any expression has
+ * been entered in the chunk (a command, or an expression that fails to parse). Such a chunk's
+ * output is thrown away and the chunk is run again, in order, from the final session of the chunk
+ * before it, so the output is always identical to running the whole input in one session.
+ */
+
+class BatchProcessor {
+    /** Approximate number of input lines handed to a worker at a time. */
+    static final int CHUNK_LINES = 1024;
+    
+    private final int threads;
+    
+    /**
+     * @param threads number of worker threads; 1 runs everything on the calling thread
+     */
+    BatchProcessor(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        this.threads = threads;
+    }
+    
+    /**
+     * Run every nonblank line of in and write the responses to out, one per line.
+     * @param in input lines
+     * @param out destination for responses; not flushed or closed
+     * @return number of nonblank lines processed
+     * @throws IOException if in or out throws
+     */
+    long run(BufferedReader in, Writer out) throws IOException {
+        if (threads == 1) {
+            return runSequential(in, out);
+        }
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            return runParallel(in, out, pool);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    private long runSequential(BufferedReader in, Writer out) throws IOException {
+        final Main.Session session = new Main.Session();
+        long lines = 0;
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty()) continue;
+            out.write(session.execute(line));
+            out.write('\n');
+            lines++;
+        }
+        return lines;
+    }
+    
+    private long runParallel(BufferedReader in, Writer out, ExecutorService pool) throws IOException {
+        final Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        final int maxInFlight = threads * 4;
+        Main.Session previous = new Main.Session();
+        long lines = 0;
+        
+        String pendingLine = null;
+        while (true) {
+            final List<String> inputs = new ArrayList<>();
+            if (pendingLine != null) {
+                inputs.add(pendingLine);
+                pendingLine = null;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                if (inputs.size() >= CHUNK_LINES && !Main.isCommand(line)) {
+                    pendingLine = line;
+                    break;
+                }
+                inputs.add(line);
+            }
+            if (inputs.isEmpty()) break;
+            lines += inputs.size();
+            
+            final Chunk chunk = new Chunk(inputs);
+            inFlight.addLast(pool.submit(() -> chunk.run(new Main.Session())));
+            while (inFlight.size() >= maxInFlight) {
+                previous = write(inFlight.removeFirst(), previous, out);
+            }
+            if (line == null) break;
+        }
+        while (!inFlight.isEmpty()) {
+            previous = write(inFlight.removeFirst(), previous, out);
+        }
+        return lines;
+    }
+    
+    /**
+     * Write the output of a finished chunk, re-running it after previous if it depended on it.
+     * @return the session after the chunk
+     */
+    private static Main.Session write(Future<Chunk> future, Main.Session previous, Writer out) throws IOException {
+        Chunk chunk;
+        try {
+            chunk = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for batch worker", e);
+        } catch (ExecutionException e) {
+            throw new IOException("batch worker failed", e.getCause());
+        }
+        if (chunk.dependsOnPrevious) {
+            chunk.run(new Main.Session(previous));
+        }
+        out.append(chunk.output);
+        return chunk.session;
+    }
+    
+    /*
+     * A run of input lines and, once run, their output and final session.
+     */
+    private static class Chunk {
+        private final List<String> inputs;
+        private final StringBuilder output = new StringBuilder();
+        private Main.Session session;
+        private boolean dependsOnPrevious;
+        
+        Chunk(List<String> inputs) {
+            this.inputs = inputs;
+        }
+        
+        /**
+         * Run every input in order, starting from session.
+         * @return this chunk
+         */
+        Chunk run(Main.Session start) {
+            output.setLength(0);
+            session = start;
+            dependsOnPrevious = false;
+            for (String input : inputs) {
+                final boolean hadExpression = session.hasExpression();
+                output.append(session.execute(input)).append('\n');
+                if (!hadExpression && !session.hasExpression()) {
+                    dependsOnPrevious = true;
+                }
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package expressivo;
+
+import expressivo.Main.CommandSyntaxException;
+
+/*
+ * Single-pass recognizer for console commands, without regular expressions.
+ *
+ *  DIFFERENTIATE ::= '!d/d' VARIABLE ' '*
+ *  SIMPLIFY ::= '!simplify' (' '+ VARIABLE ' '* '=' ' '* VALUE)* ' '*
+ *  VARIABLE ::= [A-Za-z]+
+ *  VALUE ::= [^ ]+, read as by Double.valueOf
+ *
+ * Values that are plain decimals with at most 15 or so significant digits are converted
+ * directly: the digits form an integer m < 2^53 and the number is m / 10^k with k <= 22, and
+ * since both operands are exact doubles the one correctly rounded division gives exactly the
+ * double that Double.valueOf would. Anything else falls back to Double.valueOf.
+ */
+
+class CommandLexer {
+    
+    /** The kinds of console input. */
+    enum Kind { DIFFERENTIATE, SIMPLIFY, EXPRESSION };
+    
+    static final String DIFFERENTIATE_PREFIX = "!d/d";
+    static final String SIMPLIFY_PREFIX = "!simplify";
+    
+    private static final String DIFFERENTIATE_USAGE = "usage: !d/d must be followed by a variable name";
+    private static final String SIMPLIFY_USAGE = "usage: !simplify var1=val1 var2=val2 ...";
+    
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    
+    private CommandLexer() {}
+    
+    /**
+     * @param input a line of input
+     * @return which kind of input it is; anything that is not a command is an EXPRESSION
+     */
+    static Kind kindOf(String input) {
+        if (input.startsWith(DIFFERENTIATE_PREFIX)) return Kind.DIFFERENTIATE;
+        if (input.startsWith(SIMPLIFY_PREFIX)) return Kind.SIMPLIFY;
+        return Kind.EXPRESSION;
+    }
+    
+    /**
+     * @param input a DIFFERENTIATE command
+     * @return the variable to differentiate by
+     * @throws CommandSyntaxException if input is not a well-formed DIFFERENTIATE command
+     */
+    static String differentiateVariable(String input) {
+        if (!input.startsWith(DIFFERENTIATE_PREFIX)) {
+            throw new CommandSyntaxException(DIFFERENTIATE_USAGE);
+        }
+        final int start = DIFFERENTIATE_PREFIX.length();
+        final int end = skipLetters(input, start);
+        if (end == start || skipSpaces(input, end) != input.length()) {
+            throw new CommandSyntaxException(DIFFERENTIATE_USAGE);
+        }
+        return input.substring(start, end);
+    }
+    
+    /**
+     * Read the assignments of a SIMPLIFY command into an environment. Later assignments
+     * to the same variable replace earlier ones. Variables already in the environment keep
+     * their slots, so rebinding one does not make a String.
+     * @param input a SIMPLIFY command
+     * @param environment every variable unset, then receives the assignments
+     * @throws CommandSyntaxException if input is not a well-formed SIMPLIFY command
+     * @throws NumberFormatException if a value is not a number
+     */
+    static void simplifyBindings(String input, Environment environment) {
+        if (!input.startsWith(SIMPLIFY_PREFIX)) {
+            throw new CommandSyntaxException(SIMPLIFY_USAGE);
+        }
+        environment.unsetAll();
+        final int length = input.length();
+        NumberFormatException badValue = null;
+        int i = SIMPLIFY_PREFIX.length();
+        while (true) {
+            final int afterSpaces = skipSpaces(input, i);
+            if (afterSpaces == length) {
+                break;
+            }
+            if (afterSpaces == i) {
+                throw new CommandSyntaxException(SIMPLIFY_USAGE);
+            }
+            final int nameStart = afterSpaces;
+            final int nameEnd = skipLetters(input, nameStart);
+            i = skipSpaces(input, nameEnd);
+            if (nameEnd == nameStart || i == length || input.charAt(i) != '=') {
+                throw new CommandSyntaxException(SIMPLIFY_USAGE);
+            }
+            final int valueStart = skipSpaces(input, i + 1);
+            int valueEnd = valueStart;
+            while (valueEnd < length && input.charAt(valueEnd) != ' ') {
+                valueEnd++;
+            }
+            if (valueEnd == valueStart) {
+                throw new CommandSyntaxException(SIMPLIFY_USAGE);
+            }
+            try {
+                environment.set(input, nameStart, nameEnd, parseValue(input, valueStart, valueEnd));
+            } catch (NumberFormatException nfe) {
+                // report it only once the whole command is known to be well-formed
+                if (badValue == null) badValue = nfe;
+            }
+            i = valueEnd;
+        }
+        if (badValue != null) {
+            throw badValue;
+        }
+    }
+    
+    /**
+     * @return the value of input.substring(start, end) as read by Double.valueOf
+     * @throws NumberFormatException if it is not a number
+     */
+    static double parseValue(String input, int start, int end) {
+        long mantissa = 0;
+        int fractionDigits = -1;
+        int i = start;
+        for (; i < end; i++) {
+            final char c = input.charAt(i);
+            if (c >= '0' && c <= '9') {
+                mantissa = mantissa * 10 + (c - '0');
+                if (mantissa >= MAX_EXACT_MANTISSA) break;
+                if (fractionDigits >= 0) fractionDigits++;
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                break;
+            }
+        }
+        final boolean hasDigit = end - start > (fractionDigits >= 0 ? 1 : 0);
+        if (i == end && hasDigit && fractionDigits < POWERS_OF_TEN.length) {
+            return fractionDigits <= 0 ? mantissa : mantissa / POWERS_OF_TEN[fractionDigits];
+        }
+        return Double.parseDouble(input.substring(start, end));
+    }
+    
+    private static int skipSpaces(String input, int i) {
+        while (i < input.length() && input.charAt(i) == ' ') {
+            i++;
+        }
+        return i;
+    }
+    
+    private static int skipLetters(String input, int i) {
+        while (i < input.length() && isLetter(input.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+    
+    private static boolean isLetter(char c) {
+        return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+    }
+}
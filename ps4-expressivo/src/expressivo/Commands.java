@@ -21,7 +21,7 @@ public class Commands {
      * @throws IllegalArgumentException if the expression or variable is invalid
      */
     public static String differentiate(String expression, String variable) {
-        Expression expr = Expression.parse(expression);
+        Expression expr = ParseCache.getDefault().parse(expression);
         Expression deriv = expr.differentiate(variable);
         return deriv.toString();
     }
@@ -39,11 +39,37 @@ public class Commands {
      * @throws IllegalArgumentException if the expression is invalid
      */
     public static String simplify(String expression, Map<String,Double> environment) {
-        Expression expr = Expression.parse(expression);
+        Expression expr = ParseCache.getDefault().parse(expression);
         Expression simplified_expr = expr.simplify(environment);
         return simplified_expr.toString();
     }
     
+    /**
+     * Simplify an expression, with the variable bindings given without boxing.
+     * @param expression the expression to simplify
+     * @param environment variable bindings, as for simplify(String, Map)
+     * @return the same result as simplify(expression, environment.toMap())
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static String simplify(String expression, Environment environment) {
+        Expression expr = ParseCache.getDefault().parse(expression);
+        Expression simplified_expr = expr.simplify(environment);
+        return simplified_expr.toString();
+    }
+    
+    /**
+     * Convert an expression to polynomial normal form.
+     * @param expression the expression to normalize
+     * @return an expression equal to the input, written as a sum of terms with like terms collected,
+     *         highest degree first. Normalizing an expression equal to a normalized expression gives the
+     *         same string.
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static String normalize(String expression) {
+        Expression expr = ParseCache.getDefault().parse(expression);
+        return Polynomial.normalize(expr).toString();
+    }
+    
     /* Copyright (c) 2015-2017 MIT 6.005 course staff, all rights reserved.
      * Redistribution of original or derived work requires permission of course staff.
      */
@@ -0,0 +1,456 @@
+package expressivo;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * An Expression compiled for fast repeated numeric evaluation.
+ *
+ * Every variable of the expression is assigned a slot, in order of first appearance from left to
+ * right, and evaluate takes the variable values as a double[] indexed by slot. Evaluation does not
+ * box or look up names.
+ *
+ * Expressions with at least COMPILE_THRESHOLD nodes are compiled into a chain of MethodHandles of
+ * type (double[])double, which the JIT can inline into straight-line arithmetic. Smaller
+ * expressions are not worth the one-time cost of building handles and are evaluated by a small
+ * tree of Node objects instead. A Sum or Product with more than MAX_CHAIN_OPERANDS operands is
+ * compiled to one handle that loops over an array of operand handles, so the depth of the chain
+ * follows the nesting of the expression rather than the number of operands. Invoking a chain takes
+ * stack in proportion to its depth, so an expression whose chain would be deeper than
+ * MAX_HANDLE_DEPTH is instead run as a post-order stack program, on a stack array kept per thread.
+ * No evaluation allocates once that array has grown to fit.
+ *
+ * Operations are applied in the same order as Expression.simplify, so evaluate returns exactly the
+ * value of the Scalar that simplify returns when every variable is bound.
+ *
+ * Abstraction function:
+ *  represents the expression whose value at values is evaluator.evaluate(values), where
+ *  values[i] is the value of the variable named variables[i]
+ *
+ * Rep invariant:
+ *  slots maps variables[i] to i, for every i
+ *
+ * Safety from rep exposure:
+ *  all fields are private and final
+ *  getVariables returns a copy of variables
+ *  evaluate only reads from values
+ */
+
+public class CompiledExpression {
+    
+    /** Expressions with fewer nodes than this are interpreted instead of compiled. */
+    public static final int COMPILE_THRESHOLD = 8;
+    
+    /** Deepest chain of MethodHandles built; deeper expressions run as a ProgramNode instead. */
+    static final int MAX_HANDLE_DEPTH = 256;
+    
+    /** Most operands of a Sum or Product folded into a chain; more are looped over instead. */
+    static final int MAX_CHAIN_OPERANDS = 16;
+    
+    private static final MethodHandle ADD;
+    private static final MethodHandle MULTIPLY;
+    private static final MethodHandle ADD_ALL;
+    private static final MethodHandle MULTIPLY_ALL;
+    private static final MethodHandle ELEMENT = MethodHandles.arrayElementGetter(double[].class);
+    private static final MethodType EVALUATE_TYPE = MethodType.methodType(double.class, double[].class);
+    
+    static {
+        MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+        MethodType nary = MethodType.methodType(double.class, MethodHandle[].class, double[].class);
+        try {
+            ADD = MethodHandles.lookup().findStatic(CompiledExpression.class, "add", binary);
+            MULTIPLY = MethodHandles.lookup().findStatic(CompiledExpression.class, "multiply", binary);
+            ADD_ALL = MethodHandles.lookup().findStatic(CompiledExpression.class, "addAll", nary);
+            MULTIPLY_ALL = MethodHandles.lookup().findStatic(CompiledExpression.class, "multiplyAll", nary);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+    
+    private final String[] variables;
+    private final Map<String, Integer> slots;
+    private final Node evaluator;
+    
+    private CompiledExpression(String[] variables, Map<String, Integer> slots, Node evaluator) {
+        this.variables = variables;
+        this.slots = slots;
+        this.evaluator = evaluator;
+    }
+    
+    /**
+     * Compile an expression.
+     * @param expression expression to compile
+     * @return an evaluator for expression
+     */
+    public static CompiledExpression compile(Expression expression) {
+        expression = Derivative.force(expression);
+        Map<String, Integer> slots = new LinkedHashMap<>();
+        Shape shape = new Shape(slots);
+        int depth = Traversal.postOrder(expression, shape);
+        String[] variables = slots.keySet().toArray(new String[slots.size()]);
+        Node evaluator;
+        if (shape.size < COMPILE_THRESHOLD) {
+            evaluator = Traversal.postOrder(expression, new Interpreter(slots));
+        } else if (depth <= MAX_HANDLE_DEPTH) {
+            evaluator = new HandleNode(Traversal.postOrder(expression, new Handles(slots)));
+        } else {
+            Assembler assembler = new Assembler(slots);
+            Traversal.postOrder(expression, assembler);
+            evaluator = assembler.toNode();
+        }
+        return new CompiledExpression(variables, slots, evaluator);
+    }
+    
+    /**
+     * @return names of the variables of the expression, indexed by slot
+     */
+    public String[] getVariables() {
+        return Arrays.copyOf(variables, variables.length);
+    }
+    
+    /**
+     * @param name a variable name
+     * @return the slot of the variable name, or -1 if it doesn't appear in the expression
+     */
+    public int slotOf(String name) {
+        Integer slot = slots.get(name);
+        return slot == null ? -1 : slot;
+    }
+    
+    /**
+     * Evaluate the expression.
+     * @param values value of each variable, indexed by slot; must have at least
+     *               getVariables().length elements
+     * @return value of the expression with every variable replaced by its value
+     */
+    public double evaluate(double[] values) {
+        return evaluator.evaluate(values);
+    }
+    
+    /*
+     * Post-order visitor that assigns a slot to each variable that doesn't already have one, counts
+     * nodes, and returns the depth of the MethodHandle chain Handles would build for each node.
+     */
+    private static class Shape implements ExpressionVisitor<Integer> {
+        private final Map<String, Integer> slots;
+        private int size = 0;
+        
+        Shape(Map<String, Integer> slots) { this.slots = slots; }
+        
+        public Integer visitScalar(Scalar scalar) {
+            size++;
+            return 1;
+        }
+        
+        public Integer visitVariable(Variable variable) {
+            size++;
+            if (!slots.containsKey(variable.getName())) {
+                slots.put(variable.getName(), slots.size());
+            }
+            return 1;
+        }
+        
+        public Integer visitSum(Sum sum, List<Integer> operands) {
+            return fold(operands);
+        }
+        
+        public Integer visitProduct(Product product, List<Integer> operands) {
+            return fold(operands);
+        }
+        
+        private Integer fold(List<Integer> operands) {
+            size += operands.size() - 1;
+            if (operands.size() > MAX_CHAIN_OPERANDS) {
+                return 1 + Collections.max(operands);
+            }
+            int depth = operands.get(0);
+            for (int i = 1; i < operands.size(); i++) {
+                depth = 1 + Math.max(depth, operands.get(i));
+            }
+            return depth;
+        }
+    }
+    
+    /*
+     * Post-order visitor that builds a handle of type (double[])double for each node, folding the
+     * operands of a Sum or Product from left to right.
+     */
+    private static class Handles implements ExpressionVisitor<MethodHandle> {
+        private final Map<String, Integer> slots;
+        
+        Handles(Map<String, Integer> slots) { this.slots = slots; }
+        
+        public MethodHandle visitScalar(Scalar scalar) {
+            MethodHandle constant = MethodHandles.constant(double.class, scalar.getValue());
+            return MethodHandles.dropArguments(constant, 0, double[].class);
+        }
+        
+        public MethodHandle visitVariable(Variable variable) {
+            return MethodHandles.insertArguments(ELEMENT, 1, (int) slots.get(variable.getName()));
+        }
+        
+        public MethodHandle visitSum(Sum sum, List<MethodHandle> operands) {
+            return fold(ADD, ADD_ALL, operands);
+        }
+        
+        public MethodHandle visitProduct(Product product, List<MethodHandle> operands) {
+            return fold(MULTIPLY, MULTIPLY_ALL, operands);
+        }
+        
+        private static MethodHandle fold(MethodHandle operator, MethodHandle loop,
+                                         List<MethodHandle> operands) {
+            if (operands.size() > MAX_CHAIN_OPERANDS) {
+                MethodHandle[] array = operands.toArray(new MethodHandle[operands.size()]);
+                return MethodHandles.insertArguments(loop, 0, (Object) array);
+            }
+            MethodHandle result = operands.get(0);
+            for (int i = 1; i < operands.size(); i++) {
+                result = combine(operator, result, operands.get(i));
+            }
+            return result;
+        }
+    }
+    
+    /**
+     * @param operator handle of type (double,double)double
+     * @param left handle of type (double[])double
+     * @param right handle of type (double[])double
+     * @return handle of type (double[])double that applies operator to the results of left and right
+     */
+    private static MethodHandle combine(MethodHandle operator, MethodHandle left, MethodHandle right) {
+        MethodHandle both = MethodHandles.filterArguments(operator, 0, left, right);
+        return MethodHandles.permuteArguments(both, EVALUATE_TYPE, 0, 0);
+    }
+    
+    private static double add(double a, double b) {
+        return a + b;
+    }
+    
+    private static double multiply(double a, double b) {
+        return a * b;
+    }
+    
+    private static double addAll(MethodHandle[] operands, double[] values) throws Throwable {
+        double result = (double) operands[0].invokeExact(values);
+        for (int i = 1; i < operands.length; i++) {
+            result = result + (double) operands[i].invokeExact(values);
+        }
+        return result;
+    }
+    
+    private static double multiplyAll(MethodHandle[] operands, double[] values) throws Throwable {
+        double result = (double) operands[0].invokeExact(values);
+        for (int i = 1; i < operands.length; i++) {
+            result = result * (double) operands[i].invokeExact(values);
+        }
+        return result;
+    }
+    
+    /*
+     * Post-order visitor that builds the interpreted evaluator of each node.
+     */
+    private static class Interpreter implements ExpressionVisitor<Node> {
+        private final Map<String, Integer> slots;
+        
+        Interpreter(Map<String, Integer> slots) { this.slots = slots; }
+        
+        public Node visitScalar(Scalar scalar) {
+            return new ConstantNode(scalar.getValue());
+        }
+        
+        public Node visitVariable(Variable variable) {
+            return new SlotNode(slots.get(variable.getName()));
+        }
+        
+        public Node visitSum(Sum sum, List<Node> operands) {
+            Node result = operands.get(0);
+            for (int i = 1; i < operands.size(); i++) {
+                result = new SumNode(result, operands.get(i));
+            }
+            return result;
+        }
+        
+        public Node visitProduct(Product product, List<Node> operands) {
+            Node result = operands.get(0);
+            for (int i = 1; i < operands.size(); i++) {
+                result = new ProductNode(result, operands.get(i));
+            }
+            return result;
+        }
+    }
+    
+    /*
+     * Post-order visitor that appends the instructions of each node to a ProgramNode: a leaf
+     * pushes its value, and a Sum or Product pops the values of its operands and pushes their
+     * sum or product, folded from left to right.
+     */
+    private static class Assembler implements ExpressionVisitor<Void> {
+        private final Map<String, Integer> slots;
+        private int[] opcodes = new int[16];
+        private int[] arguments = new int[16];
+        private double[] constants = new double[16];
+        private int length = 0;
+        private int height = 0;
+        private int maxHeight = 0;
+        
+        Assembler(Map<String, Integer> slots) { this.slots = slots; }
+        
+        public Void visitScalar(Scalar scalar) {
+            append(ProgramNode.CONSTANT, 0, scalar.getValue(), 1);
+            return null;
+        }
+        
+        public Void visitVariable(Variable variable) {
+            append(ProgramNode.LOAD, slots.get(variable.getName()), 0, 1);
+            return null;
+        }
+        
+        public Void visitSum(Sum sum, List<Void> operands) {
+            append(ProgramNode.ADD, operands.size(), 0, 1 - operands.size());
+            return null;
+        }
+        
+        public Void visitProduct(Product product, List<Void> operands) {
+            append(ProgramNode.MULTIPLY, operands.size(), 0, 1 - operands.size());
+            return null;
+        }
+        
+        private void append(int opcode, int argument, double constant, int pushed) {
+            if (length == opcodes.length) {
+                opcodes = Arrays.copyOf(opcodes, length * 2);
+                arguments = Arrays.copyOf(arguments, length * 2);
+                constants = Arrays.copyOf(constants, length * 2);
+            }
+            opcodes[length] = opcode;
+            arguments[length] = argument;
+            constants[length] = constant;
+            length++;
+            height += pushed;
+            maxHeight = Math.max(maxHeight, height);
+        }
+        
+        ProgramNode toNode() {
+            return new ProgramNode(Arrays.copyOf(opcodes, length), Arrays.copyOf(arguments, length),
+                    Arrays.copyOf(constants, length), maxHeight);
+        }
+    }
+    
+    /*
+     * Evaluators. The interpreted variants mirror Scalar, Variable, Sum and Product;
+     * HandleNode runs a compiled MethodHandle chain, and ProgramNode a post-order stack program.
+     */
+    
+    private interface Node {
+        double evaluate(double[] values);
+    }
+    
+    private static class ConstantNode implements Node {
+        private final double value;
+        ConstantNode(double value) { this.value = value; }
+        public double evaluate(double[] values) { return value; }
+    }
+    
+    private static class SlotNode implements Node {
+        private final int slot;
+        SlotNode(int slot) { this.slot = slot; }
+        public double evaluate(double[] values) { return values[slot]; }
+    }
+    
+    private static class SumNode implements Node {
+        private final Node left;
+        private final Node right;
+        SumNode(Node left, Node right) { this.left = left; this.right = right; }
+        public double evaluate(double[] values) { return left.evaluate(values) + right.evaluate(values); }
+    }
+    
+    private static class ProductNode implements Node {
+        private final Node left;
+        private final Node right;
+        ProductNode(Node left, Node right) { this.left = left; this.right = right; }
+        public double evaluate(double[] values) { return left.evaluate(values) * right.evaluate(values); }
+    }
+    
+    private static class ProgramNode implements Node {
+        static final int CONSTANT = 0;
+        static final int LOAD = 1;
+        static final int ADD = 2;
+        static final int MULTIPLY = 3;
+        
+        /** Stack of the current thread, shared by every ProgramNode and grown to the largest. */
+        private static final ThreadLocal<double[]> STACK = new ThreadLocal<double[]>() {
+            @Override protected double[] initialValue() { return new double[0]; }
+        };
+        
+        private final int[] opcodes;
+        private final int[] arguments;
+        private final double[] constants;
+        private final int stackSize;
+        
+        ProgramNode(int[] opcodes, int[] arguments, double[] constants, int stackSize) {
+            this.opcodes = opcodes;
+            this.arguments = arguments;
+            this.constants = constants;
+            this.stackSize = stackSize;
+        }
+        
+        public double evaluate(double[] values) {
+            double[] stack = STACK.get();
+            if (stack.length < stackSize) {
+                stack = new double[stackSize];
+                STACK.set(stack);
+            }
+            int top = 0;
+            for (int i = 0; i < opcodes.length; i++) {
+                switch (opcodes[i]) {
+                case CONSTANT:
+                    stack[top++] = constants[i];
+                    break;
+                case LOAD:
+                    stack[top++] = values[arguments[i]];
+                    break;
+                case ADD: {
+                    top -= arguments[i];
+                    double result = stack[top];
+                    for (int k = 1; k < arguments[i]; k++) {
+                        result = result + stack[top + k];
+                    }
+                    stack[top++] = result;
+                    break;
+                }
+                case MULTIPLY: {
+                    top -= arguments[i];
+                    double result = stack[top];
+                    for (int k = 1; k < arguments[i]; k++) {
+                        result = result * stack[top + k];
+                    }
+                    stack[top++] = result;
+                    break;
+                }
+                default:
+                    throw new AssertionError("unknown opcode " + opcodes[i]);
+                }
+            }
+            return stack[0];
+        }
+    }
+    
+    private static class HandleNode implements Node {
+        private final MethodHandle handle;
+        HandleNode(MethodHandle handle) { this.handle = handle; }
+        public double evaluate(double[] values) {
+            try {
+                return (double) handle.invokeExact(values);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    }
+}
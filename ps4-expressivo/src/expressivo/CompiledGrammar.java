@@ -0,0 +1,97 @@
+package expressivo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import expressivo.Expression.ExpressionGrammar;
+import lib6005.parser.GrammarCompiler;
+import lib6005.parser.Parser;
+import lib6005.parser.UnableToParseException;
+
+/*
+ * Holds the one compiled copy of Expression.g shared by every call to Expression.parse.
+ * 
+ * The grammar is loaded from the classpath next to this class, so parsing no longer depends on
+ * the working directory of the process. The source-tree path is only used as a fallback when the
+ * grammar was not copied onto the classpath.
+ * 
+ * Thread safety:
+ *  parser is volatile and only assigned while holding the class lock (double-checked locking),
+ *  so the grammar is compiled at most once and every thread sees the fully built parser.
+ *  A failed compile leaves parser null, so the next call tries again.
+ */
+
+public class CompiledGrammar {
+    private static final String GRAMMAR_RESOURCE = "Expression.g";
+    private static final String GRAMMAR_FALLBACK_PATH = "./src/expressivo/Expression.g";
+    
+    private static volatile Parser<ExpressionGrammar> parser = null;
+    private static volatile long compileTimeNanos = -1;
+    
+    private CompiledGrammar() {}
+    
+    /**
+     * @return the compiled Expression grammar, compiling it on the first call
+     * @throws IOException if the grammar file can't be read
+     * @throws UnableToParseException if the grammar file is malformed
+     */
+    static Parser<ExpressionGrammar> parser() throws IOException, UnableToParseException {
+        Parser<ExpressionGrammar> result = parser;
+        if (result == null) {
+            synchronized (CompiledGrammar.class) {
+                result = parser;
+                if (result == null) {
+                    final long start = System.nanoTime();
+                    result = GrammarCompiler.compile(readGrammar(), ExpressionGrammar.ROOT);
+                    compileTimeNanos = System.nanoTime() - start;
+                    parser = result;
+                }
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Compile the grammar now instead of on the first call to Expression.parse,
+     * e.g. at server startup.
+     * @throws IllegalStateException if the grammar can't be loaded or compiled
+     */
+    public static void warmup() {
+        try {
+            parser();
+        } catch (IOException | UnableToParseException e) {
+            throw new IllegalStateException("unable to compile " + GRAMMAR_RESOURCE, e);
+        }
+    }
+    
+    /**
+     * @return nanoseconds spent reading and compiling the grammar, or -1 if it hasn't been compiled yet
+     */
+    public static long compileTimeNanos() {
+        return compileTimeNanos;
+    }
+    
+    /**
+     * @return contents of the grammar file, from the classpath if possible
+     * @throws IOException if the grammar can't be found or read
+     */
+    private static String readGrammar() throws IOException {
+        try (InputStream in = CompiledGrammar.class.getResourceAsStream(GRAMMAR_RESOURCE)) {
+            if (in == null) {
+                byte[] bytes = Files.readAllBytes(new File(GRAMMAR_FALLBACK_PATH).toPath());
+                return new String(bytes, StandardCharsets.UTF_8);
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
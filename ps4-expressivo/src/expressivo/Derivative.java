@@ -0,0 +1,324 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A higher-order derivative whose tree is not built until it is needed.
+ *
+ * Expression.differentiate builds the derivative tree at once, and the n-th derivative of a
+ * product grows exponentially with n, so taking it by n calls to differentiate can cost far more
+ * than the caller needs, e.g. when only its value at a point is wanted. Derivative.of records the
+ * expression and the variables to differentiate by, and differentiating a Derivative again only
+ * records one more variable.
+ *
+ * The tree is built, by the ordinary product and sum rules, the first time something needs it
+ * (toString, equals, hashCode, simplify, or any operation that walks it) and is kept from then on.
+ * Each derivative in the chain is built from the previous one, exactly as repeated calls to
+ * differentiate would, so the tree, and the result of simplify, are equal to theirs.
+ *
+ * valueAt never builds the tree: it computes the value at a point by truncated Taylor series
+ * arithmetic. Every node of the base gets the coefficients of the Taylor expansion of its value
+ * around the point, in the differentiation variables, up to the order taken in each; sums add
+ * coefficients and products multiply the series, dropping terms of higher order. The derivative
+ * is then the coefficient of the top-order term of the root, times the factorials of the orders.
+ * For an n-th derivative in one variable that is O(n^2) arithmetic per node of the base, where
+ * the tree grows exponentially with n. Since the operations are not those of the tree, the value
+ * can differ from the one simplify gives in the last bits.
+ *
+ * A Derivative is never an operand: the Sum and Product constructors and builders replace it with
+ * its tree. Operations that walk trees (Traversal, ExpressionWriter, CompiledExpression, ...)
+ * replace a Derivative root with its tree too, so it is only ever seen as a whole expression.
+ *
+ * Abstraction function:
+ *  represents base differentiated by vars[0], then by vars[1], ..., then by vars[vars.length-1]
+ *
+ * Rep invariant:
+ *  base is not a Derivative
+ *  vars.length >= 1
+ *  tree is null or the eager derivative described by the abstraction function
+ *
+ * Safety from rep exposure:
+ *  all fields are private, vars is never returned, Expressions are immutable
+ *
+ * Thread safety:
+ *  tree is only ever set to the same value (up to equality), and it is volatile and refers to an
+ *  immutable Expression, so two threads that materialize at once just both build it
+ */
+
+public class Derivative implements Expression {
+    /** Largest number of Taylor coefficients per node for which valueAt uses series arithmetic. */
+    public static final int MAX_TAYLOR_TERMS = 1024;
+    
+    private final Expression base;
+    private final String[] vars;
+    private volatile Expression tree = null;
+    
+    /**
+     * @param base any expression but a Derivative
+     * @param vars variables to differentiate by, in order, at least one
+     */
+    private Derivative(Expression base, String[] vars) {
+        this.base = base;
+        this.vars = vars;
+        checkRep();
+    }
+    
+    private void checkRep() {
+        assert !(base instanceof Derivative);
+        assert vars.length >= 1;
+    }
+    
+    /**
+     * @param expression expression to differentiate
+     * @param vars variables to differentiate by, in order, at least one
+     * @return the derivative of expression with respect to vars[0], then vars[1], and so on,
+     *         built only when needed
+     * @throws IllegalArgumentException if vars is empty
+     */
+    public static Derivative of(Expression expression, String... vars) {
+        if (vars.length == 0) {
+            throw new IllegalArgumentException("no variable to differentiate by");
+        }
+        if (expression instanceof Derivative) {
+            final Derivative derivative = (Derivative) expression;
+            final String[] all = Arrays.copyOf(derivative.vars, derivative.vars.length + vars.length);
+            System.arraycopy(vars, 0, all, derivative.vars.length, vars.length);
+            return new Derivative(derivative.base, all);
+        }
+        return new Derivative(expression, vars.clone());
+    }
+    
+    /**
+     * @param expression any expression
+     * @return the tree of expression if it is a Derivative, otherwise expression
+     */
+    static Expression force(Expression expression) {
+        return expression instanceof Derivative ? ((Derivative) expression).materialize() : expression;
+    }
+    
+    /**
+     * @return the derivative tree, built now if it has not been yet
+     */
+    Expression materialize() {
+        Expression result = tree;
+        if (result == null) {
+            result = base;
+            for (String var : vars) {
+                result = Traversal.postOrder(result, new Differentiator(var));
+            }
+            tree = result;
+        }
+        return result;
+    }
+    
+    /**
+     * Differentiate this derivative once more, still without building its tree.
+     * @param var variable to differentiate by
+     * @return the derivative of this with respect to var
+     */
+    public Derivative differentiate(String var) {
+        return of(this, var);
+    }
+    
+    public Expression simplify(Map<String, Double> env) {
+        return materialize().simplify(env);
+    }
+    
+    public Expression simplify(Environment env) {
+        return materialize().simplify(env);
+    }
+    
+    /**
+     * Evaluate this derivative at a point without building its tree.
+     * @param env value of every variable of the expression
+     * @return the value of this derivative at env; equal to the value of simplify(env), except
+     *         perhaps in the last bits
+     * @throws IllegalArgumentException if env does not bind some variable of the expression
+     */
+    public double valueAt(Map<String, Double> env) {
+        final Environment bindings = Environment.of(env);
+        final TaylorSeries series = TaylorSeries.of(vars, bindings);
+        final double value;
+        if (series != null) {
+            value = series.derivative(base);
+            if (series.unbound) {
+                throw new IllegalArgumentException("not every variable is bound: " + env.keySet());
+            }
+        } else {
+            final Expression simplified = simplify(bindings);
+            if (!(simplified instanceof Scalar)) {
+                throw new IllegalArgumentException("not every variable is bound: " + env.keySet());
+            }
+            value = ((Scalar) simplified).getValue();
+        }
+        return value;
+    }
+    
+    @Override
+    public String toString() {
+        return materialize().toString();
+    }
+    
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) return true;
+        if (!(that instanceof Expression)) return false;
+        return Traversal.equal(this, (Expression) that);
+    }
+    
+    @Override
+    public int hashCode() {
+        return materialize().hashCode();
+    }
+    
+    /*
+     * Post-order visitor computing truncated multivariate Taylor series of the nodes of a tree.
+     *
+     * The differentiation variables are numbered in order of first appearance in vars, and
+     * variable i is taken orders[i] times. A series is a double[] of terms coefficients indexed by
+     * multi-index: the term x0^a0 * x1^a1 * ... (in powers of the offsets from the point) is at
+     * a0 * strides[0] + a1 * strides[1] + ..., with 0 <= ai <= orders[i]. Adding multi-indices
+     * with no digit exceeding its order adds these offsets, so products need no carry.
+     */
+    private static class TaylorSeries implements ExpressionVisitor<double[]> {
+        private final Environment env;
+        private final Map<String, Integer> variables;
+        private final int[] orders;
+        private final int[] strides;
+        private final int terms;
+        private final Map<Expression, double[]> visited = new IdentityHashMap<>();
+        private boolean unbound = false; // true once a variable of the tree is found unbound
+        
+        private TaylorSeries(Environment env, Map<String, Integer> variables, int[] orders, int[] strides, int terms) {
+            this.env = env;
+            this.variables = variables;
+            this.orders = orders;
+            this.strides = strides;
+            this.terms = terms;
+        }
+        
+        /**
+         * @param vars differentiation variables, in order, with repeats
+         * @param env variable bindings
+         * @return series arithmetic for the derivative by vars, or null if it would need more than
+         *         MAX_TAYLOR_TERMS coefficients per node
+         */
+        static TaylorSeries of(String[] vars, Environment env) {
+            final Map<String, Integer> variables = new LinkedHashMap<>();
+            final int[] orders = new int[vars.length];
+            for (String var : vars) {
+                Integer index = variables.get(var);
+                if (index == null) {
+                    index = variables.size();
+                    variables.put(var, index);
+                }
+                orders[index]++;
+            }
+            final int[] strides = new int[variables.size()];
+            long terms = 1;
+            for (int i = 0; i < strides.length; i++) {
+                strides[i] = (int) terms;
+                terms *= orders[i] + 1;
+                if (terms > MAX_TAYLOR_TERMS) {
+                    return null;
+                }
+            }
+            return new TaylorSeries(env, variables, Arrays.copyOf(orders, strides.length), strides, (int) terms);
+        }
+        
+        /**
+         * @param base expression to differentiate
+         * @return the derivative of base at the point given by env, meaningless if unbound is
+         *         set afterwards
+         */
+        double derivative(Expression base) {
+            final double[] series = Traversal.postOrder(base, this);
+            double factorials = 1;
+            for (int order : orders) {
+                for (int k = 2; k <= order; k++) {
+                    factorials *= k;
+                }
+            }
+            return series[terms - 1] * factorials;
+        }
+        
+        @Override
+        public double[] lookup(Expression node) {
+            return visited.get(node);
+        }
+        
+        public double[] visitScalar(Scalar scalar) {
+            final double[] series = new double[terms];
+            series[0] = scalar.getValue();
+            return series;
+        }
+        
+        public double[] visitVariable(Variable variable) {
+            final double[] series = new double[terms];
+            final int slot = env.slotOf(variable.getName());
+            if (slot >= 0 && env.isBound(slot)) {
+                series[0] = env.get(slot);
+            } else {
+                unbound = true;
+            }
+            final Integer index = variables.get(variable.getName());
+            if (index != null) {
+                series[strides[index]] = 1;
+            }
+            return series;
+        }
+        
+        public double[] visitSum(Sum sum, List<double[]> operands) {
+            final double[] series = operands.get(0).clone();
+            for (int k = 1; k < operands.size(); k++) {
+                final double[] operand = operands.get(k);
+                for (int i = 0; i < terms; i++) {
+                    series[i] += operand[i];
+                }
+            }
+            visited.put(sum, series);
+            return series;
+        }
+        
+        public double[] visitProduct(Product product, List<double[]> operands) {
+            double[] series = operands.get(0);
+            for (int k = 1; k < operands.size(); k++) {
+                series = multiply(series, operands.get(k));
+            }
+            visited.put(product, series);
+            return series;
+        }
+        
+        /**
+         * @return the product of series p and q, without the terms of higher order than kept
+         */
+        private double[] multiply(double[] p, double[] q) {
+            final double[] product = new double[terms];
+            for (int a = 0; a < terms; a++) {
+                for (int b = 0; a + b < terms; b++) {
+                    if (fits(a, b)) {
+                        product[a + b] += p[a] * q[b];
+                    }
+                }
+            }
+            return product;
+        }
+        
+        /**
+         * @return true if no digit of multi-indices a and b adds up to more than its order
+         */
+        private boolean fits(int a, int b) {
+            for (int i = strides.length - 1; i >= 0; i--) {
+                final int radix = orders[i] + 1;
+                if ((a / strides[i]) % radix + (b / strides[i]) % radix > orders[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package expressivo;
+
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Process-wide memo of derivatives, keyed on (expression, variable).
+ * 
+ * Sum.differentiate and Product.differentiate look their result up here before building it, so
+ * a subexpression that occurs many times, or that is differentiated again by a later call (e.g.
+ * when computing higher-order derivatives), is only differentiated once while it stays cached.
+ * Keys compare expressions structurally; since Sum and Product cache their hash codes and
+ * differentiate returns interned nodes, lookups are usually O(1).
+ * 
+ * The cache never keeps a tree alive: keys refer to their expression weakly, so an entry is dead
+ * once its expression is garbage collected, and derivatives are softly referenced, so the
+ * collector can reclaim them under memory pressure. Dead entries are evicted like any other when
+ * their segment is full. Entries are spread by hash over independently locked LruCache segments,
+ * as in ParseCache, so concurrent differentiation rarely waits on a lock.
+ * 
+ * Leaves are not cached: Scalar and Variable derivatives are single interned constants,
+ * cheaper to produce than to look up.
+ * 
+ * Thread safety:
+ *  segments is only replaced by the synchronized setCapacity, LruCache is thread-safe, and the
+ *  counters are LongAdders
+ */
+
+public class DerivativeCache {
+    /** Number of derivatives kept when no capacity has been set. */
+    public static final int DEFAULT_CAPACITY = 10_000;
+    
+    private static final int MAX_SEGMENTS = 16;
+    
+    private static volatile List<LruCache<Key, SoftReference<Expression>>> segments = segments(DEFAULT_CAPACITY);
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    
+    private DerivativeCache() {}
+    
+    /**
+     * @param capacity maximum number of derivatives to keep, must be positive
+     * @return a power of 2 number of empty segments, up to MAX_SEGMENTS, whose capacities sum to
+     *         capacity
+     */
+    private static List<LruCache<Key, SoftReference<Expression>>> segments(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 <= capacity) {
+            count *= 2;
+        }
+        final List<LruCache<Key, SoftReference<Expression>>> segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            segments.add(new LruCache<Key, SoftReference<Expression>>(capacity / count + (i < capacity % count ? 1 : 0)));
+        }
+        return segments;
+    }
+    
+    private static LruCache<Key, SoftReference<Expression>> segmentOf(Key key) {
+        final List<LruCache<Key, SoftReference<Expression>>> current = segments;
+        return current.get((key.hash ^ (key.hash >>> 16)) & (current.size() - 1));
+    }
+    
+    /**
+     * @param expression an expression
+     * @param var a variable name
+     * @return the cached derivative of expression with respect to var, or null if there is none
+     */
+    static Expression get(Expression expression, String var) {
+        final Key key = new Key(expression, var);
+        final SoftReference<Expression> ref = segmentOf(key).get(key);
+        final Expression derivative = ref == null ? null : ref.get();
+        if (derivative == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return derivative;
+    }
+    
+    /**
+     * @param expression an expression
+     * @param var a variable name
+     * @param derivative the derivative of expression with respect to var
+     */
+    static void put(Expression expression, String var, Expression derivative) {
+        final Key key = new Key(expression, var);
+        segmentOf(key).put(key, new SoftReference<>(derivative));
+    }
+    
+    /**
+     * Drop every cached derivative and reset the counters.
+     * @param capacity maximum number of derivatives to keep, must be positive
+     */
+    public static synchronized void setCapacity(int capacity) {
+        segments = segments(capacity);
+        hits.reset();
+        misses.reset();
+    }
+    
+    /**
+     * Drop every cached derivative. The counters are kept.
+     */
+    public static void clear() {
+        for (LruCache<Key, SoftReference<Expression>> segment : segments) {
+            segment.clear();
+        }
+    }
+    
+    /**
+     * @return number of cached derivatives, some of which may already have been collected
+     */
+    public static int size() {
+        int size = 0;
+        for (LruCache<Key, SoftReference<Expression>> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+    
+    /**
+     * @return number of lookups that found a cached derivative
+     */
+    public static long hits() {
+        return hits.sum();
+    }
+    
+    /**
+     * @return number of lookups that found no cached derivative
+     */
+    public static long misses() {
+        return misses.sum();
+    }
+    
+    /*
+     * Immutable (expression, variable) pair, holding expression weakly. A key whose expression
+     * has been collected is equal only to itself.
+     */
+    private static class Key {
+        private final WeakReference<Expression> expression;
+        private final String var;
+        private final int hash;
+        
+        Key(Expression expression, String var) {
+            this.expression = new WeakReference<>(expression);
+            this.var = var;
+            this.hash = 31 * expression.hashCode() + var.hashCode();
+        }
+        
+        @Override
+        public boolean equals(Object that) {
+            if (this == that) return true;
+            if (!(that instanceof Key)) return false;
+            Key thatKey = (Key) that;
+            if (this.hash != thatKey.hash || !this.var.equals(thatKey.var)) return false;
+            Expression expression = this.expression.get();
+            return expression != null && expression.equals(thatKey.expression.get());
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package expressivo;
+
+import java.util.List;
+
+/*
+ * Post-order visitor computing Expression.differentiate with the sum and product rules.
+ * Result nodes come from ExpressionFactory, and every Sum and Product derivative goes through
+ * DerivativeCache, so a subtree whose derivative is cached is not visited at all.
+ * 
+ * The derivative of a Sum is the Sum of the derivatives of its operands. A Product of n operands
+ * is differentiated as the left-folded binary tree it stands for, so for each k from 1 to n-1
+ *  d(o0 * ... * ok) = (o0 * ... * ok-1) * d(ok) + ok * d(o0 * ... * ok-1)
+ * which is the same result the binary product rule gives.
+ */
+
+class Differentiator implements ExpressionVisitor<Expression> {
+    private final String var;
+    
+    Differentiator(String var) {
+        this.var = var;
+    }
+    
+    @Override
+    public Expression lookup(Expression node) {
+        return DerivativeCache.get(node, var);
+    }
+    
+    public Expression visitScalar(Scalar scalar) {
+        return scalar.differentiate(var);
+    }
+    
+    public Expression visitVariable(Variable variable) {
+        return variable.differentiate(var);
+    }
+    
+    public Expression visitSum(Sum sum, List<Expression> operands) {
+        Expression derivative = ExpressionFactory.sum(operands);
+        DerivativeCache.put(sum, var, derivative);
+        return derivative;
+    }
+    
+    public Expression visitProduct(Product product, List<Expression> operands) {
+        Expression derivative = operands.get(0);
+        for (int k = 1; k < operands.size(); k++) {
+            Expression new_e1 = ExpressionFactory.product(product.prefix(k), operands.get(k));
+            Expression new_e2 = ExpressionFactory.product(product.getOperand(k), derivative);
+            derivative = ExpressionFactory.sum(new_e1, new_e2);
+        }
+        DerivativeCache.put(product, var, derivative);
+        return derivative;
+    }
+}
@@ -0,0 +1,311 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Mutable map from variable names to double values, without boxing.
+ *
+ * Every name has a slot, numbered in the order names were added, and a slot may be bound to a
+ * value or not. Slots are found through an open-addressing hash index on the name; values live in
+ * a double[] indexed by slot. Lookups can be made on a range of characters of a larger string, so
+ * a command line can be bound without cutting out a String for every name that is already present.
+ * unsetAll unbinds every name but keeps its slot, so a reused environment finds those names again;
+ * clear also forgets the names, keeping only the arrays.
+ *
+ * forExpression builds the symbol table of an expression up front, with every slot unbound. A
+ * caller that simplifies the same expression under changing bindings resolves each name to its
+ * slot once, then only stores doubles with set(slot, value): no boxing, no hashing, no allocation.
+ *
+ * Abstraction function:
+ *  represents the map from names[i] to values[i] for each i in 0..size-1 with bound[i]
+ *
+ * Rep invariant:
+ *  names[0..size-1] are distinct
+ *  index.length is a power of 2 and index.length >= 2 * size
+ *  every index entry is 0 (empty) or slot + 1 for a slot < size, and every slot < size appears
+ *  exactly once, reachable by linear probing from the bucket of its name's hashCode
+ *
+ * Safety from rep exposure:
+ *  all fields are private, and arrays are never returned
+ */
+
+public class Environment {
+    private String[] names = new String[4];
+    private double[] values = new double[4];
+    private boolean[] bound = new boolean[4];
+    private int[] index = new int[8];
+    private int size = 0;
+    
+    /**
+     * Make an empty environment.
+     */
+    public Environment() {}
+    
+    /**
+     * @param map maps variables to values
+     * @return a new environment with the same bindings as map
+     */
+    public static Environment of(Map<String, Double> map) {
+        Environment environment = new Environment();
+        for (Map.Entry<String, Double> entry : map.entrySet()) {
+            environment.set(entry.getKey(), entry.getValue());
+        }
+        return environment;
+    }
+    
+    /**
+     * @param expression any expression
+     * @return a new environment with a slot for every variable of expression, in order of first
+     *         appearance from left to right, none of them bound
+     */
+    public static Environment forExpression(Expression expression) {
+        final Environment environment = new Environment();
+        Traversal.postOrder(expression, new ExpressionVisitor<Void>() {
+            public Void visitScalar(Scalar scalar) {
+                return null;
+            }
+            public Void visitVariable(Variable variable) {
+                String name = variable.getName();
+                if (environment.slotOf(name) < 0) {
+                    environment.addSlot(name, 0, name.length());
+                }
+                return null;
+            }
+            public Void visitSum(Sum sum, List<Void> operands) {
+                return null;
+            }
+            public Void visitProduct(Product product, List<Void> operands) {
+                return null;
+            }
+        });
+        return environment;
+    }
+    
+    /**
+     * Bind a variable, replacing any previous value.
+     * @param name variable name
+     * @param value its value
+     */
+    public void set(String name, double value) {
+        set(name, 0, name.length(), value);
+    }
+    
+    /**
+     * Bind the variable named by text.substring(start, end), replacing any previous value.
+     * No String is made if the variable is already bound.
+     */
+    void set(String text, int start, int end, double value) {
+        int slot = find(text, start, end);
+        if (slot < 0) {
+            slot = addSlot(text, start, end);
+        }
+        values[slot] = value;
+        bound[slot] = true;
+    }
+    
+    /**
+     * Bind the variable in a slot, replacing any previous value.
+     * @param slot 0 <= slot < size()
+     * @param value its value
+     */
+    public void set(int slot, double value) {
+        checkSlot(slot);
+        values[slot] = value;
+        bound[slot] = true;
+    }
+    
+    /**
+     * Unbind the variable in a slot; it keeps the slot.
+     * @param slot 0 <= slot < size()
+     */
+    public void unset(int slot) {
+        checkSlot(slot);
+        bound[slot] = false;
+    }
+    
+    /**
+     * Unbind every variable, keeping their slots.
+     */
+    public void unsetAll() {
+        Arrays.fill(bound, 0, size, false);
+    }
+    
+    /**
+     * @param slot 0 <= slot < size()
+     * @return true if the variable in slot is bound
+     */
+    public boolean isBound(int slot) {
+        checkSlot(slot);
+        return bound[slot];
+    }
+    
+    /**
+     * @param name variable name
+     * @return the slot of name, or -1 if name has none
+     */
+    public int slotOf(String name) {
+        int mask = index.length - 1;
+        int bucket = spread(name.hashCode()) & mask;
+        while (index[bucket] != 0) {
+            int slot = index[bucket] - 1;
+            if (names[slot].equals(name)) {
+                return slot;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        return -1;
+    }
+    
+    /**
+     * @param name variable name
+     * @return true if name is bound
+     */
+    public boolean contains(String name) {
+        int slot = slotOf(name);
+        return slot >= 0 && bound[slot];
+    }
+    
+    /**
+     * @param slot a slot returned by slotOf, 0 <= slot < size()
+     * @return the value bound in slot
+     * @throws IllegalStateException if slot is not bound
+     */
+    public double get(int slot) {
+        if (!isBound(slot)) {
+            throw new IllegalStateException(names[slot] + " is not bound");
+        }
+        return values[slot];
+    }
+    
+    /**
+     * @param slot 0 <= slot < size()
+     * @return the name bound in slot
+     */
+    public String nameOf(int slot) {
+        checkSlot(slot);
+        return names[slot];
+    }
+    
+    /**
+     * @return number of slots, bound or not; they are 0..size()-1 in the order names were added
+     */
+    public int size() {
+        return size;
+    }
+    
+    /**
+     * Remove every name and binding, keeping the allocated space for reuse.
+     */
+    public void clear() {
+        Arrays.fill(names, 0, size, null);
+        Arrays.fill(index, 0);
+        size = 0;
+    }
+    
+    /**
+     * @return a new map with the same bindings as this environment
+     */
+    public Map<String, Double> toMap() {
+        Map<String, Double> map = new HashMap<>();
+        for (int slot = 0; slot < size; slot++) {
+            if (bound[slot]) map.put(names[slot], values[slot]);
+        }
+        return map;
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int slot = 0; slot < size; slot++) {
+            if (!bound[slot]) continue;
+            if (builder.length() > 1) builder.append(", ");
+            builder.append(names[slot]).append('=').append(values[slot]);
+        }
+        return builder.append('}').toString();
+    }
+    
+    private void checkSlot(int slot) {
+        if (slot < 0 || slot >= size) {
+            throw new IndexOutOfBoundsException("slot " + slot + " of " + size);
+        }
+    }
+    
+    /**
+     * @return the slot of text.substring(start, end), or -1 if it has none
+     */
+    private int find(String text, int start, int end) {
+        int mask = index.length - 1;
+        int bucket = hash(text, start, end) & mask;
+        while (index[bucket] != 0) {
+            int slot = index[bucket] - 1;
+            if (sameName(slot, text, start, end)) {
+                return slot;
+            }
+            bucket = (bucket + 1) & mask;
+        }
+        return -1;
+    }
+    
+    /**
+     * Add an unbound slot for text.substring(start, end), which must not have one yet.
+     * @return the new slot
+     */
+    private int addSlot(String text, int start, int end) {
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+            bound = Arrays.copyOf(bound, size * 2);
+        }
+        final int slot = size++;
+        names[slot] = start == 0 && end == text.length() ? text : text.substring(start, end);
+        bound[slot] = false;
+        int mask = index.length - 1;
+        int bucket = hash(text, start, end) & mask;
+        while (index[bucket] != 0) {
+            bucket = (bucket + 1) & mask;
+        }
+        index[bucket] = slot + 1;
+        if (2 * size > index.length) {
+            rehash();
+        }
+        return slot;
+    }
+    
+    private boolean sameName(int slot, String text, int start, int end) {
+        String name = names[slot];
+        return name.length() == end - start && name.regionMatches(0, text, start, end - start);
+    }
+    
+    /**
+     * @return text.substring(start, end).hashCode(), spread over the low bits
+     */
+    private static int hash(String text, int start, int end) {
+        if (start == 0 && end == text.length()) {
+            return spread(text.hashCode()); // cached by String
+        }
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + text.charAt(i);
+        }
+        return spread(h);
+    }
+    
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+    
+    private void rehash() {
+        index = new int[index.length * 2];
+        int mask = index.length - 1;
+        for (int slot = 0; slot < size; slot++) {
+            int bucket = spread(names[slot].hashCode()) & mask;
+            while (index[bucket] != 0) {
+                bucket = (bucket + 1) & mask;
+            }
+            index[bucket] = slot + 1;
+        }
+    }
+}
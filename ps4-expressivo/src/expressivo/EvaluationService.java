@@ -0,0 +1,434 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * An embeddable service that runs Commands on a pool of worker threads.
+ *
+ * Callers submit requests, which return at once with a CompletableFuture of the same string the
+ * corresponding Commands method would return (or the exception or error it would throw; a request
+ * that fails, even with an Error such as StackOverflowError, fails only its own future, never the
+ * worker running it). Requests wait in a bounded queue; when the queue is full, submitting either
+ * blocks until there is room or fails the request at once with RejectedExecutionException, as
+ * chosen by the Backpressure policy.
+ *
+ * Each worker takes every request waiting in the queue at once, up to MAX_BATCH, and groups them by
+ * expression string, so each expression in the batch is parsed (through the default ParseCache)
+ * once. Within a group, a simplify request that binds every variable of the expression is answered
+ * by one CompiledExpression, compiled once for the group (or simplified directly if compiling
+ * fails); a group of one is simplified directly, since compiling costs more than it saves for a
+ * single evaluation. Differentiate is run once per distinct variable in the group, and normalize
+ * once. The more requests are waiting, the larger the batches and the more work is shared, so the
+ * service does less work per request exactly when it is busy.
+ *
+ * For every request the service records the time it waited in the queue and the time from
+ * submission to completion in LatencyHistograms.
+ *
+ * Abstraction function:
+ *  represents a service whose pending requests are those in queue, in submission order, run by
+ *  threads workers, accepting new requests iff !closed
+ *
+ * Rep invariant:
+ *  threads >= 1
+ *  queue holds only requests whose futures are not yet completed, followed, once closed, by at
+ *  most one STOP marker
+ *
+ * Safety from rep exposure:
+ *  all fields are private; the histograms are returned, but only record (package-private) mutates
+ *  them
+ *
+ * Thread safety:
+ *  queue is a thread-safe BlockingQueue, the counters are LongAdders and the histograms are
+ *  thread-safe. Submitting holds the read lock of closing while it checks closed and enqueues;
+ *  close takes the write lock to set closed, so once close has set it, no request can be enqueued
+ *  behind the STOP marker and be left without a worker. A worker that takes the marker puts it
+ *  back before it stops, so every worker eventually takes it. Each request is completed by exactly one
+ *  worker, the one that took it from the queue.
+ */
+
+public class EvaluationService implements AutoCloseable {
+    /** Most requests a worker takes from the queue at once. */
+    public static final int MAX_BATCH = 256;
+    
+    /**
+     * What submitting a request does when the queue is full.
+     *  BLOCK: wait for room in the queue
+     *  REJECT: complete the request's future exceptionally with RejectedExecutionException
+     */
+    public enum Backpressure {BLOCK, REJECT};
+    
+    private static final Request STOP = new Request(null, null, null, null);
+    private static final AtomicInteger SERVICES = new AtomicInteger();
+    
+    private final BlockingQueue<Request> queue;
+    private final Backpressure backpressure;
+    private final int threads;
+    private final ExecutorService workers;
+    private final ReadWriteLock closing = new ReentrantReadWriteLock();
+    private boolean closed = false; // guarded by closing
+    
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder groups = new LongAdder();
+    private final LongAdder compilations = new LongAdder();
+    
+    /**
+     * Start a service.
+     * @param threads number of worker threads, must be positive
+     * @param queueCapacity maximum number of requests waiting for a worker, must be positive
+     * @param backpressure what submitting does when queueCapacity requests are waiting
+     */
+    public EvaluationService(int threads, int queueCapacity, Backpressure backpressure) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive: " + threads);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("queueCapacity must be positive: " + queueCapacity);
+        }
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.backpressure = backpressure;
+        this.threads = threads;
+        final String prefix = "expressivo-evaluation-" + SERVICES.incrementAndGet() + "-";
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory factory = runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        this.workers = Executors.newFixedThreadPool(threads, factory);
+        for (int i = 0; i < threads; i++) {
+            workers.execute(this::work);
+        }
+    }
+    
+    /**
+     * Submit Commands.simplify(expression, environment).
+     * @return future of the result of Commands.simplify(expression, environment)
+     */
+    public CompletableFuture<String> simplify(String expression, Map<String, Double> environment) {
+        return submit(new Request(Request.Kind.SIMPLIFY, expression, new HashMap<>(environment), null));
+    }
+    
+    /**
+     * Submit Commands.differentiate(expression, variable).
+     * @return future of the result of Commands.differentiate(expression, variable)
+     */
+    public CompletableFuture<String> differentiate(String expression, String variable) {
+        return submit(new Request(Request.Kind.DIFFERENTIATE, expression, null, variable));
+    }
+    
+    /**
+     * Submit Commands.normalize(expression).
+     * @return future of the result of Commands.normalize(expression)
+     */
+    public CompletableFuture<String> normalize(String expression) {
+        return submit(new Request(Request.Kind.NORMALIZE, expression, null, null));
+    }
+    
+    private CompletableFuture<String> submit(Request request) {
+        closing.readLock().lock();
+        try {
+            if (closed) {
+                reject(request, "service is closed");
+            } else if (backpressure == Backpressure.BLOCK) {
+                queue.put(request);
+            } else if (!queue.offer(request)) {
+                reject(request, "queue is full");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            request.future.completeExceptionally(ie);
+        } finally {
+            closing.readLock().unlock();
+        }
+        return request.future;
+    }
+    
+    private void reject(Request request, String reason) {
+        rejected.increment();
+        request.future.completeExceptionally(new RejectedExecutionException(reason));
+    }
+    
+    /**
+     * Stop accepting requests, wait for the workers to finish every request already accepted, and
+     * stop them. Requests submitted from now on are rejected.
+     */
+    @Override
+    public void close() {
+        closing.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                queue.put(STOP);
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        workers.shutdown();
+        while (true) {
+            try {
+                workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Worker loop: run batches until the STOP marker is taken, then pass it on to the next worker.
+     */
+    private void work() {
+        final List<Request> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException ie) {
+                return; // only shutdownNow interrupts workers, and close never calls it
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            final boolean stop = run(batch);
+            batch.clear();
+            if (stop) {
+                queue.offer(STOP); // there is room: nothing has been enqueued since it was taken
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Run a batch of requests, grouped by expression.
+     * @return true if the batch held the STOP marker
+     */
+    private boolean run(List<Request> batch) {
+        final long taken = System.nanoTime();
+        batches.increment();
+        boolean stop = false;
+        final Map<String, List<Request>> byExpression = new LinkedHashMap<>();
+        for (Request request : batch) {
+            if (request == STOP) {
+                stop = true;
+                continue;
+            }
+            queueLatency.record(taken - request.submitted);
+            List<Request> group = byExpression.get(request.expression);
+            if (group == null) {
+                group = new ArrayList<>();
+                byExpression.put(request.expression, group);
+            }
+            group.add(request);
+        }
+        for (Map.Entry<String, List<Request>> group : byExpression.entrySet()) {
+            run(group.getKey(), group.getValue());
+        }
+        return stop;
+    }
+    
+    /**
+     * Run requests that all have the same expression.
+     */
+    private void run(String input, List<Request> group) {
+        groups.increment();
+        final Expression expression;
+        try {
+            expression = ParseCache.getDefault().parse(input);
+        } catch (Throwable t) {
+            for (Request request : group) {
+                complete(request, null, t);
+            }
+            return;
+        }
+        CompiledExpression compiled = null;
+        boolean compilable = group.size() > 1;
+        Map<String, String> derivatives = null;
+        String normalized = null;
+        for (Request request : group) {
+            try {
+                final String result;
+                switch (request.kind) {
+                case SIMPLIFY: {
+                    if (compilable && compiled == null) {
+                        try {
+                            compiled = CompiledExpression.compile(expression);
+                            compilations.increment();
+                        } catch (RuntimeException | StackOverflowError e) {
+                            compilable = false; // simplify still gives the answer, just slower
+                        }
+                    }
+                    if (compiled == null) {
+                        result = expression.simplify(request.environment).toString();
+                        break;
+                    }
+                    final double[] values = valuesOf(compiled, request.environment);
+                    result = values != null
+                            ? new Scalar(compiled.evaluate(values)).toString()
+                            : expression.simplify(request.environment).toString();
+                    break;
+                }
+                case DIFFERENTIATE: {
+                    if (derivatives == null) {
+                        derivatives = new HashMap<>();
+                    }
+                    String derivative = derivatives.get(request.variable);
+                    if (derivative == null) {
+                        derivative = expression.differentiate(request.variable).toString();
+                        derivatives.put(request.variable, derivative);
+                    }
+                    result = derivative;
+                    break;
+                }
+                default:
+                    if (normalized == null) {
+                        normalized = Polynomial.normalize(expression).toString();
+                    }
+                    result = normalized;
+                    break;
+                }
+                complete(request, result, null);
+            } catch (Throwable t) {
+                complete(request, null, t); // even an Error fails only this request, not the worker
+            }
+        }
+    }
+    
+    /**
+     * @return the value of each variable of compiled in environment, indexed by slot, or null if
+     *         environment does not bind them all
+     */
+    private static double[] valuesOf(CompiledExpression compiled, Map<String, Double> environment) {
+        final String[] variables = compiled.getVariables();
+        final double[] values = new double[variables.length];
+        for (int i = 0; i < variables.length; i++) {
+            final Double value = environment.get(variables[i]);
+            if (value == null) {
+                return null;
+            }
+            values[i] = value;
+        }
+        return values;
+    }
+    
+    private void complete(Request request, String result, Throwable failure) {
+        latency.record(System.nanoTime() - request.submitted);
+        completed.increment();
+        if (failure == null) {
+            request.future.complete(result);
+        } else {
+            request.future.completeExceptionally(failure);
+        }
+    }
+    
+    /**
+     * @return number of requests waiting for a worker, plus one once the service is closed
+     */
+    public int queued() {
+        return queue.size();
+    }
+    
+    /**
+     * @return time from submission until a worker took the request, of every request taken so far
+     */
+    public LatencyHistogram queueLatency() {
+        return queueLatency;
+    }
+    
+    /**
+     * @return time from submission until completion, of every request completed so far
+     */
+    public LatencyHistogram latency() {
+        return latency;
+    }
+    
+    /**
+     * @return number of requests completed by a worker, normally or exceptionally
+     */
+    public long completed() {
+        return completed.sum();
+    }
+    
+    /**
+     * @return number of requests rejected because the queue was full or the service closed
+     */
+    public long rejected() {
+        return rejected.sum();
+    }
+    
+    /**
+     * @return number of batches taken from the queue by workers
+     */
+    public long batches() {
+        return batches.sum();
+    }
+    
+    /**
+     * @return number of groups of requests with the same expression run, i.e. of parses
+     */
+    public long groups() {
+        return groups.sum();
+    }
+    
+    /**
+     * @return number of CompiledExpressions built for simplify requests
+     */
+    public long compilations() {
+        return compilations.sum();
+    }
+    
+    @Override
+    public String toString() {
+        return "EvaluationService(threads=" + threads + ", queued=" + queued()
+                + ", completed=" + completed() + ", rejected=" + rejected()
+                + ", batches=" + batches() + ", groups=" + groups()
+                + ", latency: " + latency + ")";
+    }
+    
+    /*
+     * A submitted request and the future it completes.
+     */
+    private static class Request {
+        enum Kind {SIMPLIFY, DIFFERENTIATE, NORMALIZE};
+        
+        final Kind kind;
+        final String expression;
+        final Map<String, Double> environment;
+        final String variable;
+        final long submitted = System.nanoTime();
+        final CompletableFuture<String> future = new CompletableFuture<>();
+        
+        Request(Kind kind, String expression, Map<String, Double> environment, String variable) {
+            this.kind = kind;
+            this.expression = expression;
+            this.environment = environment;
+            this.variable = variable;
+        }
+    }
+}
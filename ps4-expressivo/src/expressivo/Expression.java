@@ -1,6 +1,5 @@
 package expressivo;
 
-import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 
@@ -21,34 +20,74 @@ public interface Expression {
     
     // Datatype definition
     // Expr = Scalar + Variable + Sum(Expr, Expr) + Product(Expr, Expr)
+    // Derivative.of also makes a Derivative, a derivative whose tree is built on demand
     
     enum ExpressionGrammar {ROOT, SUM, PRODUCT, PRIMITIVE, VARIABLE, NUMBER, WHITESPACE, 
         POTENTIALLYWRAPPEDSUM, POTENTIALLYWRAPPEDPRODUCT, POTENTIALLYWRAPPEDPRIMITIVE};
+    
+    /**
+     * How Expression.parse turns a string into an Expression.
+     *  GRAMMAR: the lib6005 parser for Expression.g, followed by Utils.buildExpression
+     *  RECURSIVE_DESCENT: ExpressionParser, a single pass over the input with no ParseTree
+     * Both strategies accept the same inputs and produce equal expressions.
+     */
+    enum ParserStrategy {GRAMMAR, RECURSIVE_DESCENT};
         
     /**
      * Parse an expression.
      * @param input expression to parse, as defined in the PS1 handout.
      * @return expression AST for the input
-     * @throws IllegalArgumentException if the expression is invalid
+     * @throws ExpressionSyntaxException if the expression is invalid
+     * @throws IllegalStateException if Expression.g can't be compiled
      */
     public static Expression parse(String input) {
-        File grammarFile = new File("./src/expressivo/Expression.g");
+        return parse(input, ParserStrategy.GRAMMAR);
+    }
+    
+    /**
+     * Parse an expression.
+     * @param input expression to parse, as defined in the PS1 handout.
+     * @param strategy parser implementation to use
+     * @return expression AST for the input
+     * @throws ExpressionSyntaxException if the expression is invalid
+     * @throws IllegalStateException if strategy is GRAMMAR and Expression.g can't be compiled
+     */
+    public static Expression parse(String input, ParserStrategy strategy) {
+        if (strategy == ParserStrategy.RECURSIVE_DESCENT) {
+            return ExpressionParser.parse(input);
+        }
+        // reject invalid input in one pass before the grammar parser backtracks over it
+        final int error = ExpressionParser.firstError(input);
+        if (error >= 0) {
+            throw new ExpressionSyntaxException(input, error);
+        }
+        final Parser<ExpressionGrammar> parser;
+        try {
+            parser = CompiledGrammar.parser();
+        } catch (IOException | UnableToParseException e) {
+            throw new IllegalStateException("unable to compile Expression.g", e);
+        }
         try {
-            Parser<ExpressionGrammar> parser = GrammarCompiler.compile(grammarFile, ExpressionGrammar.ROOT);
             ParseTree<ExpressionGrammar> tree = parser.parse(input);
             //tree.display();
             return Utils.buildExpression(tree);
         } catch (UnableToParseException e) {
-            // TODO Auto-generated catch block
-            //e.printStackTrace();
-            throw new IllegalArgumentException("bad input: " + input);
-        } catch (IOException e) {
-            // TODO Auto-generated catch block
-            //e.printStackTrace();
-            throw new IllegalArgumentException("bad input");
+            // the prescan found no error before the end, so that is where the grammar gave up
+            throw new ExpressionSyntaxException(input, input.length());
         }
     }
     
+    /**
+     * Check an expression without parsing it: one pass over the input, with no recursion,
+     * allocation or exception, however malformed it is.
+     * @param input expression to check, as defined in the PS1 handout.
+     * @return -1 if input is a valid expression; otherwise the offset at which parse rejects it,
+     *         see ExpressionSyntaxException.getOffset()
+     */
+    public static int validate(String input) {
+        return ExpressionParser.firstError(input);
+    }
+    
     /**
      * @param the variable to take the derivative in respect to
      * @return an Expression that is the derivative of the current Expression
@@ -61,6 +100,13 @@ public interface Expression {
      */
     public Expression simplify(Map<String, Double> env);
     
+    /**
+     * @param env variable bindings; unbound slots and names without a slot are left as variables
+     * @return a new Expression simplified with variables replaced if bound in env, equal to
+     *         simplify(env.toMap())
+     */
+    public Expression simplify(Environment env);
+    
     /**
      * @return a parsable representation of this expression, such that
      * for all e:Expression, e.equals(Expression.parse(e.toString())).
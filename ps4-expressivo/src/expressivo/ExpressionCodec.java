@@ -0,0 +1,497 @@
+package expressivo;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+ * Compact binary encoding of Expressions, much faster to read back than parsing toString().
+ * 
+ * An encoded expression is a 2-byte header (FORMAT_VERSION, then flags) followed by the nodes in
+ * prefix order, each an opcode byte and its payload:
+ *  SUM, PRODUCT            no payload; the two operands follow, left first
+ *  INTEGER                 a whole-number Scalar with magnitude below 2^53, as a zigzag varint
+ *  DECIMAL                 a Scalar that is exactly the double nearest m / 10^k, for an integer
+ *                          m with magnitude below 2^41 and 1 <= k <= 22: zigzag varint m, byte k
+ *                          (at most 8 bytes, so never longer than DOUBLE)
+ *  DOUBLE                  any other Scalar, as the 8 bytes of its raw IEEE 754 bits
+ *  NEW_VARIABLE            a variable name seen for the first time: varint byte length, then UTF-8
+ *  VARIABLE                varint index of an earlier NEW_VARIABLE, counting from 0
+ *  REFERENCE               (only with SHARE_SUBTREES) varint index of an earlier Sum or Product
+ * 
+ * A Sum or Product with n operands is written as the left-folded binary tree it stands for:
+ * n-1 SUM (or PRODUCT) opcodes, then its operands from left to right.
+ * 
+ * Varints are unsigned LEB128: 7 bits per byte, low bits first, high bit set on all but the last.
+ * Constants typed in by people, like 2 or 0.25 or 57.3, take 2 to 4 bytes. m and 10^k are both
+ * exact doubles, so the division on decoding rounds the same way as parsing the decimal text.
+ * 
+ * With SHARE_SUBTREES every SUM and PRODUCT opcode is numbered in prefix order, and a later
+ * occurrence of the same Sum or Product object is written as a REFERENCE to the number of its
+ * first opcode. Trees returned by differentiate
+ * share their repeated subtrees (through ExpressionFactory), so their encoding stays proportional
+ * to the number of distinct nodes rather than to the size of the tree. A reference is always to a
+ * node whose encoding is already complete, since a tree never contains its own ancestor.
+ * 
+ * Encoding and decoding use explicit stacks, so trees of any depth can be handled.
+ */
+
+public class ExpressionCodec {
+    /** Version written in the first byte of every encoding. */
+    public static final int FORMAT_VERSION = 1;
+    
+    private static final int SHARE_SUBTREES = 1;
+    
+    private static final int SUM = 0;
+    private static final int PRODUCT = 1;
+    private static final int INTEGER = 2;
+    private static final int DOUBLE = 3;
+    private static final int NEW_VARIABLE = 4;
+    private static final int VARIABLE = 5;
+    private static final int REFERENCE = 6;
+    private static final int DECIMAL = 7;
+    
+    private static final double MAX_INTEGER = 1L << 53;
+    private static final double MAX_DECIMAL_MANTISSA = 1L << 41;
+    private static final int MAX_NAME_BYTES = 1 << 20;
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    
+    private ExpressionCodec() {}
+    
+    /**
+     * Write an expression to a stream.
+     * @param expression expression to write
+     * @param out stream to write to
+     * @param shareSubtrees if true, repeated occurrences of the same Sum or Product object are
+     *                      written once and referred to afterwards
+     * @throws IOException if out throws it
+     */
+    public static void encode(Expression expression, final DataOutput out, boolean shareSubtrees) throws IOException {
+        new Encoder(new Sink() {
+            public void writeByte(int b) throws IOException {
+                out.writeByte(b);
+            }
+            public void writeLong(long v) throws IOException {
+                out.writeLong(v);
+            }
+            public void write(byte[] bytes) throws IOException {
+                out.write(bytes);
+            }
+        }, shareSubtrees).encode(expression);
+    }
+    
+    /**
+     * Write an expression into a buffer, starting at its position and advancing it.
+     * @param expression expression to write
+     * @param buffer buffer to write to
+     * @param shareSubtrees as for encode(Expression, DataOutput, boolean)
+     * @throws java.nio.BufferOverflowException if buffer does not have room for the encoding;
+     *         its position is then unspecified
+     */
+    public static void encode(Expression expression, final ByteBuffer buffer, boolean shareSubtrees) {
+        try {
+            new Encoder(new Sink() {
+                public void writeByte(int b) {
+                    buffer.put((byte) b);
+                }
+                public void writeLong(long v) {
+                    buffer.putLong(v);
+                }
+                public void write(byte[] bytes) {
+                    buffer.put(bytes);
+                }
+            }, shareSubtrees).encode(expression);
+        } catch (IOException ioe) {
+            throw new AssertionError("buffer writes do not throw IOException", ioe);
+        }
+    }
+    
+    /**
+     * @param expression expression to encode
+     * @param shareSubtrees as for encode(Expression, DataOutput, boolean)
+     * @return the encoding of expression
+     */
+    public static byte[] toBytes(Expression expression, boolean shareSubtrees) {
+        final Bytes bytes = new Bytes();
+        try {
+            new Encoder(bytes, shareSubtrees).encode(expression);
+        } catch (IOException ioe) {
+            throw new AssertionError("array writes do not throw IOException", ioe);
+        }
+        return Arrays.copyOf(bytes.array, bytes.length);
+    }
+    
+    /**
+     * Read one expression from a stream.
+     * @param in stream positioned at the start of an encoding; left just after it
+     * @return the expression encoded there
+     * @throws EOFException if the stream ends before the encoding does
+     * @throws IOException if the encoding is malformed, or in throws it
+     */
+    public static Expression decode(final DataInput in) throws IOException {
+        return new Decoder(new Source() {
+            public int readByte() throws IOException {
+                return in.readUnsignedByte();
+            }
+            public long readLong() throws IOException {
+                return in.readLong();
+            }
+            public void readFully(byte[] bytes) throws IOException {
+                in.readFully(bytes);
+            }
+        }).decode();
+    }
+    
+    /**
+     * Read one expression from a buffer, starting at its position and advancing it past the encoding.
+     * @param buffer buffer positioned at the start of an encoding
+     * @return the expression encoded there
+     * @throws BufferUnderflowException if the buffer ends before the encoding does
+     * @throws IllegalArgumentException if the encoding is malformed
+     */
+    public static Expression decode(final ByteBuffer buffer) {
+        try {
+            return new Decoder(new Source() {
+                public int readByte() {
+                    return buffer.get() & 0xff;
+                }
+                public long readLong() {
+                    return buffer.getLong();
+                }
+                public void readFully(byte[] bytes) {
+                    buffer.get(bytes);
+                }
+            }).decode();
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException(ioe.getMessage(), ioe);
+        }
+    }
+    
+    /**
+     * @param bytes an encoding, as returned by toBytes
+     * @return the expression encoded in bytes
+     * @throws IllegalArgumentException if bytes is not exactly one well-formed encoding
+     */
+    public static Expression fromBytes(byte[] bytes) {
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        final Expression expression;
+        try {
+            expression = decode(buffer);
+        } catch (BufferUnderflowException bue) {
+            throw new IllegalArgumentException("truncated encoding", bue);
+        }
+        if (buffer.hasRemaining()) {
+            throw new IllegalArgumentException(buffer.remaining() + " bytes after the encoding");
+        }
+        return expression;
+    }
+    
+    /*
+     * Destination of encoded bytes.
+     */
+    private interface Sink {
+        void writeByte(int b) throws IOException;
+        void writeLong(long v) throws IOException;
+        void write(byte[] bytes) throws IOException;
+    }
+    
+    /*
+     * Origin of encoded bytes.
+     */
+    private interface Source {
+        int readByte() throws IOException;
+        long readLong() throws IOException;
+        void readFully(byte[] bytes) throws IOException;
+    }
+    
+    /*
+     * Growable byte array sink.
+     */
+    private static class Bytes implements Sink {
+        byte[] array = new byte[64];
+        int length = 0;
+        
+        public void writeByte(int b) {
+            if (length == array.length) {
+                array = Arrays.copyOf(array, length * 2);
+            }
+            array[length++] = (byte) b;
+        }
+        
+        public void writeLong(long v) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                writeByte((int) (v >>> shift));
+            }
+        }
+        
+        public void write(byte[] bytes) {
+            if (length + bytes.length > array.length) {
+                array = Arrays.copyOf(array, Math.max(length * 2, length + bytes.length));
+            }
+            System.arraycopy(bytes, 0, array, length, bytes.length);
+            length += bytes.length;
+        }
+    }
+    
+    /*
+     * Writes one expression in prefix order.
+     */
+    private static class Encoder {
+        private final Sink out;
+        private final boolean shareSubtrees;
+        private final Map<String, Integer> variables = new HashMap<>();
+        private final Map<Expression, Integer> operators = new IdentityHashMap<>();
+        private int operatorCount = 0;
+        
+        Encoder(Sink out, boolean shareSubtrees) {
+            this.out = out;
+            this.shareSubtrees = shareSubtrees;
+        }
+        
+        void encode(Expression expression) throws IOException {
+            out.writeByte(FORMAT_VERSION);
+            out.writeByte(shareSubtrees ? SHARE_SUBTREES : 0);
+            
+            Expression[] stack = new Expression[32];
+            int count = 0;
+            stack[count++] = Derivative.force(expression);
+            while (count > 0) {
+                final Expression node = stack[--count];
+                stack[count] = null;
+                if (node instanceof Sum || node instanceof Product) {
+                    if (shareSubtrees) {
+                        final Integer known = operators.get(node);
+                        if (known != null) {
+                            out.writeByte(REFERENCE);
+                            writeVarint(known);
+                            continue;
+                        }
+                        operators.put(node, operatorCount);
+                    }
+                    final int operands = Traversal.operandCount(node);
+                    operatorCount += operands - 1;
+                    for (int i = 1; i < operands; i++) {
+                        out.writeByte(node instanceof Sum ? SUM : PRODUCT);
+                    }
+                    if (count + operands > stack.length) {
+                        stack = Arrays.copyOf(stack, Math.max(stack.length * 2, count + operands));
+                    }
+                    for (int i = operands - 1; i >= 0; i--) {
+                        stack[count++] = Traversal.operand(node, i);
+                    }
+                } else if (node instanceof Scalar) {
+                    writeScalar(((Scalar) node).getValue());
+                } else if (node instanceof Variable) {
+                    writeVariable(((Variable) node).getName());
+                } else {
+                    throw new IllegalArgumentException("unknown expression variant: " + node.getClass());
+                }
+            }
+        }
+        
+        private void writeScalar(double value) throws IOException {
+            if (Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(-0.0)
+                    || !(Math.abs(value) < MAX_INTEGER)) {
+                writeDouble(value);
+            } else if (value == Math.rint(value)) {
+                out.writeByte(INTEGER);
+                writeZigzag((long) value);
+            } else {
+                for (int scale = 1; scale < POWERS_OF_TEN.length; scale++) {
+                    final double scaled = Math.rint(value * POWERS_OF_TEN[scale]);
+                    if (!(Math.abs(scaled) < MAX_DECIMAL_MANTISSA)) {
+                        break;
+                    }
+                    if (scaled / POWERS_OF_TEN[scale] == value) {
+                        out.writeByte(DECIMAL);
+                        writeZigzag((long) scaled);
+                        out.writeByte(scale);
+                        return;
+                    }
+                }
+                writeDouble(value);
+            }
+        }
+        
+        private void writeDouble(double value) throws IOException {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits(value));
+        }
+        
+        private void writeVariable(String name) throws IOException {
+            final Integer known = variables.get(name);
+            if (known != null) {
+                out.writeByte(VARIABLE);
+                writeVarint(known);
+                return;
+            }
+            variables.put(name, variables.size());
+            final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(NEW_VARIABLE);
+            writeVarint(bytes.length);
+            out.write(bytes);
+        }
+        
+        private void writeZigzag(long value) throws IOException {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+        
+        private void writeVarint(long value) throws IOException {
+            while ((value & ~0x7FL) != 0) {
+                out.writeByte((int) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            out.writeByte((int) value);
+        }
+    }
+    
+    /*
+     * Reads one expression, building each Sum and Product once both its operands are read.
+     */
+    private static class Decoder {
+        private final Source in;
+        private Variable[] variables = new Variable[8]; // immutable, so shared by every occurrence
+        private int variableCount = 0;
+        private Expression[] operators = new Expression[32];
+        private int operatorCount = 0;
+        
+        Decoder(Source in) {
+            this.in = in;
+        }
+        
+        Expression decode() throws IOException {
+            final int version = in.readByte();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("unsupported format version " + version);
+            }
+            final int flags = in.readByte();
+            if ((flags & ~SHARE_SUBTREES) != 0) {
+                throw new IOException("unknown flags " + flags);
+            }
+            final boolean shareSubtrees = (flags & SHARE_SUBTREES) != 0;
+            
+            // pending operators, innermost last: opcode, id, and left operand once it is read
+            int[] opcodes = new int[32];
+            int[] ids = new int[32];
+            Expression[] lefts = new Expression[32];
+            int depth = 0;
+            while (true) {
+                final int opcode = in.readByte();
+                Expression value;
+                switch (opcode) {
+                case SUM:
+                case PRODUCT:
+                    if (depth == opcodes.length) {
+                        opcodes = Arrays.copyOf(opcodes, depth * 2);
+                        ids = Arrays.copyOf(ids, depth * 2);
+                        lefts = Arrays.copyOf(lefts, depth * 2);
+                    }
+                    opcodes[depth] = opcode;
+                    ids[depth] = shareSubtrees ? reserveOperator() : -1;
+                    lefts[depth] = null;
+                    depth++;
+                    continue;
+                case INTEGER:
+                    value = new Scalar(readZigzag());
+                    break;
+                case DECIMAL: {
+                    final long mantissa = readZigzag();
+                    final int scale = in.readByte();
+                    value = new Scalar(mantissa / POWERS_OF_TEN[checkIndex(scale, POWERS_OF_TEN.length, "scale")]);
+                    break;
+                }
+                case DOUBLE:
+                    value = new Scalar(Double.longBitsToDouble(in.readLong()));
+                    break;
+                case NEW_VARIABLE:
+                    value = readVariable();
+                    break;
+                case VARIABLE:
+                    value = variables[checkIndex(readVarint(), variableCount, "variable")];
+                    break;
+                case REFERENCE: {
+                    if (!shareSubtrees) {
+                        throw new IOException("reference without shared subtrees");
+                    }
+                    value = operators[checkIndex(readVarint(), operatorCount, "subtree")];
+                    if (value == null) {
+                        throw new IOException("reference to an incomplete subtree");
+                    }
+                    break;
+                }
+                default:
+                    throw new IOException("unknown opcode " + opcode);
+                }
+                
+                // value completes the right operand of every pending operator that has its left
+                while (depth > 0 && lefts[depth - 1] != null) {
+                    depth--;
+                    value = opcodes[depth] == SUM
+                            ? new Sum(lefts[depth], value)
+                            : new Product(lefts[depth], value);
+                    lefts[depth] = null;
+                    if (ids[depth] >= 0) {
+                        operators[ids[depth]] = value;
+                    }
+                }
+                if (depth == 0) {
+                    return value;
+                }
+                lefts[depth - 1] = value;
+            }
+        }
+        
+        private int reserveOperator() {
+            if (operatorCount == operators.length) {
+                operators = Arrays.copyOf(operators, operatorCount * 2);
+            }
+            return operatorCount++;
+        }
+        
+        private Variable readVariable() throws IOException {
+            final byte[] bytes = new byte[checkIndex(readVarint(), MAX_NAME_BYTES, "name length")];
+            in.readFully(bytes);
+            final Variable variable = new Variable(new String(bytes, StandardCharsets.UTF_8));
+            if (variableCount == variables.length) {
+                variables = Arrays.copyOf(variables, variableCount * 2);
+            }
+            variables[variableCount++] = variable;
+            return variable;
+        }
+        
+        private long readZigzag() throws IOException {
+            final long zigzag = readVarint();
+            return (zigzag >>> 1) ^ -(zigzag & 1);
+        }
+        
+        private long readVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = in.readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("varint too long");
+        }
+        
+        private static int checkIndex(long index, int limit, String what) throws IOException {
+            if (index < 0 || index >= limit) {
+                throw new IOException(what + " " + index + " out of range");
+            }
+            return (int) index;
+        }
+    }
+}
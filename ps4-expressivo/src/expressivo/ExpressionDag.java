@@ -0,0 +1,600 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Common-subexpression-eliminated form of an Expression: a DAG with one node per distinct
+ * subexpression.
+ *
+ * Differentiation duplicates operands into several branches (d(e1*e2) mentions e1 and e2 twice),
+ * so after a few derivatives the tree is mostly copies of the same subtrees. Here every distinct
+ * subexpression is stored once, and evaluate and simplify visit each distinct node once, with its
+ * result memoized for every place it occurs.
+ *
+ * Building the DAG costs time proportional to the number of distinct Expression objects, not the
+ * size of the tree they spell out: an object reached again through another path is recognized by
+ * identity and not walked twice, and structurally equal objects are merged by hash-consing.
+ *
+ * Nodes are numbered in post-order, so the operands of node n are always numbered below n, and
+ * the root is the last node. Like Sum and Product, a SUM or PRODUCT node has any number of
+ * operands, stored for all nodes together in one array.
+ *
+ * A Session keeps the simplified form of every node for one environment, and when bindings change
+ * re-simplifies only the nodes that depend on the changed variables. Every distinct variable is
+ * a single node, so those are exactly the ancestors of a few nodes, found by walking the operand
+ * edges backwards; in numbering order they can be recomputed in one pass.
+ *
+ *
+ * Abstraction function:
+ *  represents the expression of node count-1, where node n is
+ *      SCALAR: the number values[n]
+ *      VARIABLE: the variable names[(int) values[n]]
+ *      SUM: the sum of nodes operands[firsts[n]], ..., operands[firsts[n+1]-1], from left to right
+ *      PRODUCT: the product of the same nodes
+ *
+ * Rep invariant:
+ *  count >= 1
+ *  firsts has count+1 elements, firsts[0] == 0, and firsts[n+1] == firsts[n] for leaves
+ *  for SUM and PRODUCT nodes n, firsts[n+1] - firsts[n] >= 2, and each of their operands is < n
+ *  no two nodes have the same kind and the same value or operands
+ *
+ * Safety from rep exposure:
+ *  all fields are private and final, arrays are never returned
+ */
+
+public class ExpressionDag {
+    private static final byte SCALAR = 0;
+    private static final byte VARIABLE = 1;
+    private static final byte SUM = 2;
+    private static final byte PRODUCT = 3;
+    
+    private final int count;
+    private final byte[] kinds;
+    private final int[] firsts;
+    private final int[] operands;
+    private final double[] values;
+    private final String[] names;
+    private final long treeSize;
+    
+    private ExpressionDag(int count, byte[] kinds, int[] firsts, int[] operands, double[] values, String[] names) {
+        this.count = count;
+        this.kinds = kinds;
+        this.firsts = firsts;
+        this.operands = operands;
+        this.values = values;
+        this.names = names;
+        long[] sizes = new long[count];
+        for (int n = 0; n < count; n++) {
+            if (isOperator(n)) {
+                // a node with k operands stands for k-1 binary nodes
+                long size = firsts[n + 1] - firsts[n] - 1;
+                for (int i = firsts[n]; i < firsts[n + 1]; i++) {
+                    size = saturatedAdd(size, sizes[operands[i]]);
+                }
+                sizes[n] = size;
+            } else {
+                sizes[n] = 1;
+            }
+        }
+        this.treeSize = sizes[count - 1];
+    }
+    
+    /**
+     * Eliminate common subexpressions.
+     * @param expression any expression
+     * @return the DAG of the distinct subexpressions of expression
+     */
+    public static ExpressionDag of(Expression expression) {
+        Builder builder = new Builder();
+        int root = Traversal.postOrder(expression, builder);
+        assert root == builder.count - 1;
+        return builder.build();
+    }
+    
+    /**
+     * @return number of distinct subexpressions, i.e. nodes in this DAG
+     */
+    public int distinctNodes() {
+        return count;
+    }
+    
+    /**
+     * @return number of nodes in the expression tree this DAG represents, or Long.MAX_VALUE
+     *         if there are more than that
+     */
+    public long treeNodes() {
+        return treeSize;
+    }
+    
+    /**
+     * Evaluate the expression, computing each distinct subexpression once.
+     * @param env maps variables to values; must contain every variable of the expression
+     * @return value of the expression
+     * @throws IllegalArgumentException if a variable of the expression is not in env
+     */
+    public double evaluate(Map<String, Double> env) {
+        double[] results = new double[count];
+        for (int n = 0; n < count; n++) {
+            switch (kinds[n]) {
+            case SCALAR:
+                results[n] = values[n];
+                break;
+            case VARIABLE:
+                Double value = env.get(nameOf(n));
+                if (value == null) {
+                    throw new IllegalArgumentException("no value for variable " + nameOf(n));
+                }
+                results[n] = value;
+                break;
+            case SUM: {
+                double result = results[operands[firsts[n]]];
+                for (int i = firsts[n] + 1; i < firsts[n + 1]; i++) {
+                    result += results[operands[i]];
+                }
+                results[n] = result;
+                break;
+            }
+            default: {
+                double result = results[operands[firsts[n]]];
+                for (int i = firsts[n] + 1; i < firsts[n + 1]; i++) {
+                    result *= results[operands[i]];
+                }
+                results[n] = result;
+                break;
+            }
+            }
+        }
+        return results[count - 1];
+    }
+    
+    /**
+     * Simplify the expression, simplifying each distinct subexpression once.
+     * @param env maps variables to values
+     * @return an expression equal to the result of Expression.simplify(env) on the original
+     *         expression, in which repeated subexpressions are shared objects
+     */
+    public Expression simplify(Map<String, Double> env) {
+        Simplifier simplifier = new Simplifier(env);
+        Expression[] results = new Expression[count];
+        for (int n = 0; n < count; n++) {
+            switch (kinds[n]) {
+            case SCALAR:
+                results[n] = new Scalar(values[n]);
+                break;
+            case VARIABLE:
+                results[n] = simplifier.visitVariable(new Variable(nameOf(n)));
+                break;
+            case SUM:
+                results[n] = simplifier.visitSum(null, operandsOf(n, results));
+                break;
+            default:
+                results[n] = simplifier.visitProduct(null, operandsOf(n, results));
+                break;
+            }
+        }
+        return results[count - 1];
+    }
+    
+    /**
+     * Start incremental simplification of the expression.
+     * @param env maps variables to values; not changed, and not used after this call
+     * @return a session whose result is equal to the result of Expression.simplify(env) on the
+     *         original expression, and stays equal to the result for its current bindings
+     */
+    public Session session(Map<String, Double> env) {
+        return new Session(env);
+    }
+    
+    /**
+     * @return an expression equal to the original expression, in which repeated subexpressions
+     *         are shared objects
+     */
+    public Expression toExpression() {
+        Expression[] results = new Expression[count];
+        for (int n = 0; n < count; n++) {
+            switch (kinds[n]) {
+            case SCALAR:
+                results[n] = new Scalar(values[n]);
+                break;
+            case VARIABLE:
+                results[n] = new Variable(nameOf(n));
+                break;
+            case SUM: {
+                Sum.Builder sum = new Sum.Builder();
+                for (int i = firsts[n]; i < firsts[n + 1]; i++) {
+                    sum.add(results[operands[i]]);
+                }
+                results[n] = sum.build();
+                break;
+            }
+            default: {
+                Product.Builder product = new Product.Builder();
+                for (int i = firsts[n]; i < firsts[n + 1]; i++) {
+                    product.add(results[operands[i]]);
+                }
+                results[n] = product.build();
+                break;
+            }
+            }
+        }
+        return results[count - 1];
+    }
+    
+    @Override
+    public String toString() {
+        return "ExpressionDag(" + count + " distinct nodes, " + treeSize + " tree nodes)";
+    }
+    
+    private boolean isOperator(int n) {
+        return kinds[n] == SUM || kinds[n] == PRODUCT;
+    }
+    
+    /**
+     * @return the results for the operands of node n, from left to right
+     */
+    private List<Expression> operandsOf(int n, Expression[] results) {
+        Expression[] operandResults = new Expression[firsts[n + 1] - firsts[n]];
+        for (int i = 0; i < operandResults.length; i++) {
+            operandResults[i] = results[operands[firsts[n] + i]];
+        }
+        return Arrays.asList(operandResults);
+    }
+    
+    private String nameOf(int n) {
+        return names[(int) values[n]];
+    }
+    
+    private static long saturatedAdd(long a, long b) {
+        long sum = a + b;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+    
+    /**
+     * Incremental simplification of the expression of an ExpressionDag, for an environment that
+     * changes a few bindings at a time.
+     * 
+     * <p>Changing the binding of a variable marks the nodes that depend on it; the next call to
+     * result() or simplify re-simplifies just those nodes, each at a cost proportional to its
+     * number of operands, and reuses the simplified form of every other node. A node whose new
+     * simplified form is the same Scalar as before does not change the nodes that depend on it.
+     * 
+     * <p>A session is not safe for use by several threads at once.
+     */
+    public class Session {
+        /*
+         * Abstraction function:
+         *  the simplified expression for the bindings in bound and boundValues, where variable v
+         *  is names[v]
+         *
+         * Rep invariant:
+         *  results[n] is the simplified form of node n for the current bindings, unless n depends
+         *      on a VARIABLE node in pending
+         *  parents[parentFirsts[n]..parentFirsts[n+1]-1] are the nodes that have n as an operand
+         *  marked and changed are all false between calls
+         */
+        
+        private final Expression[] results = new Expression[count];
+        private final int[] parentFirsts = new int[count + 1];
+        private final int[] parents;
+        private final int[] variableNodes = new int[names.length];
+        private final Map<String, Integer> variableIndex = new HashMap<>();
+        private final boolean[] bound = new boolean[names.length];
+        private final double[] boundValues = new double[names.length];
+        private final Simplifier simplifier = new Simplifier(new Environment());
+        private final List<Integer> pending = new ArrayList<>();
+        private final boolean[] marked = new boolean[count];
+        private final boolean[] changed = new boolean[count];
+        private int recomputed = 0;
+        
+        private Session(Map<String, Double> env) {
+            for (int n = 0; n < count; n++) {
+                if (isOperator(n)) {
+                    for (int i = firsts[n]; i < firsts[n + 1]; i++) {
+                        parentFirsts[operands[i] + 1]++;
+                    }
+                } else if (kinds[n] == VARIABLE) {
+                    variableNodes[(int) values[n]] = n;
+                    variableIndex.put(nameOf(n), (int) values[n]);
+                }
+            }
+            for (int n = 0; n < count; n++) {
+                parentFirsts[n + 1] += parentFirsts[n];
+            }
+            parents = new int[parentFirsts[count]];
+            int[] next = Arrays.copyOf(parentFirsts, count);
+            for (int n = 0; n < count; n++) {
+                if (isOperator(n)) {
+                    for (int i = firsts[n]; i < firsts[n + 1]; i++) {
+                        parents[next[operands[i]]++] = n;
+                    }
+                }
+            }
+            
+            for (int v = 0; v < names.length; v++) {
+                Double value = env.get(names[v]);
+                if (value != null) {
+                    bound[v] = true;
+                    boundValues[v] = value;
+                }
+            }
+            for (int n = 0; n < count; n++) {
+                results[n] = recompute(n);
+            }
+            recomputed = count;
+        }
+        
+        /**
+         * Bind a variable.
+         * @param name a variable name; names that do not occur in the expression are ignored
+         * @param value its new value
+         */
+        public void set(String name, double value) {
+            Integer v = variableIndex.get(name);
+            if (v == null) return;
+            if (bound[v] && Double.doubleToLongBits(boundValues[v]) == Double.doubleToLongBits(value)) return;
+            bound[v] = true;
+            boundValues[v] = value;
+            pending.add(variableNodes[v]);
+        }
+        
+        /**
+         * Unbind a variable.
+         * @param name a variable name; names that do not occur in the expression are ignored
+         */
+        public void unset(String name) {
+            Integer v = variableIndex.get(name);
+            if (v == null || !bound[v]) return;
+            bound[v] = false;
+            pending.add(variableNodes[v]);
+        }
+        
+        /**
+         * Change the bindings to env and simplify. Costs time proportional to the number of
+         * distinct variables of the expression, plus the cost of re-simplifying the nodes that
+         * depend on the variables whose bindings changed.
+         * @param env maps variables to values; not changed
+         * @return an expression equal to the result of Expression.simplify(env) on the original
+         *         expression
+         */
+        public Expression simplify(Map<String, Double> env) {
+            for (int v = 0; v < names.length; v++) {
+                Double value = env.get(names[v]);
+                if (value != null) {
+                    set(names[v], value);
+                } else {
+                    unset(names[v]);
+                }
+            }
+            return result();
+        }
+        
+        /**
+         * @return an expression equal to the result of Expression.simplify on the original
+         *         expression, with the current bindings of this session
+         */
+        public Expression result() {
+            if (!pending.isEmpty()) {
+                update();
+            }
+            return results[count - 1];
+        }
+        
+        /**
+         * @return number of nodes re-simplified by the last call to result() or simplify that
+         *         had binding changes to apply, or by creating this session
+         */
+        public int recomputedNodes() {
+            return recomputed;
+        }
+        
+        private void update() {
+            // mark every node that depends on a changed variable
+            int[] dirty = new int[pending.size()];
+            int size = 0;
+            for (int variable : pending) {
+                if (!marked[variable]) {
+                    marked[variable] = true;
+                    changed[variable] = true;
+                    dirty[size++] = variable;
+                }
+            }
+            pending.clear();
+            for (int done = 0; done < size; done++) {
+                int n = dirty[done];
+                for (int i = parentFirsts[n]; i < parentFirsts[n + 1]; i++) {
+                    int parent = parents[i];
+                    if (!marked[parent]) {
+                        marked[parent] = true;
+                        if (size == dirty.length) {
+                            dirty = Arrays.copyOf(dirty, 2 * size);
+                        }
+                        dirty[size++] = parent;
+                    }
+                }
+            }
+            
+            // recompute them in numbering order, operands first
+            Arrays.sort(dirty, 0, size);
+            recomputed = 0;
+            for (int k = 0; k < size; k++) {
+                int n = dirty[k];
+                if (kinds[n] != VARIABLE && !anyOperandChanged(n)) {
+                    continue;
+                }
+                Expression result = recompute(n);
+                recomputed++;
+                Expression old = results[n];
+                if (old instanceof Scalar && result instanceof Scalar && Double.doubleToLongBits(
+                        ((Scalar) old).getValue()) == Double.doubleToLongBits(((Scalar) result).getValue())) {
+                    changed[n] = false;
+                } else {
+                    results[n] = result;
+                    changed[n] = true;
+                }
+            }
+            for (int k = 0; k < size; k++) {
+                marked[dirty[k]] = false;
+                changed[dirty[k]] = false;
+            }
+        }
+        
+        private boolean anyOperandChanged(int n) {
+            for (int i = firsts[n]; i < firsts[n + 1]; i++) {
+                if (changed[operands[i]]) return true;
+            }
+            return false;
+        }
+        
+        /**
+         * @return the simplified form of node n, given those of its operands
+         */
+        private Expression recompute(int n) {
+            switch (kinds[n]) {
+            case SCALAR:
+                return new Scalar(values[n]);
+            case VARIABLE: {
+                int v = (int) values[n];
+                if (bound[v]) {
+                    return new Scalar(boundValues[v]);
+                }
+                return results[n] instanceof Variable ? results[n] : new Variable(names[v]);
+            }
+            case SUM:
+                return simplifier.visitSum(null, operandsOf(n, results));
+            default:
+                return simplifier.visitProduct(null, operandsOf(n, results));
+            }
+        }
+    }
+    
+    /*
+     * Post-order visitor that numbers the distinct subexpressions of a tree.
+     */
+    private static class Builder implements ExpressionVisitor<Integer> {
+        private final Map<Expression, Integer> visited = new IdentityHashMap<>();
+        private final Map<OperatorKey, Integer> operators = new HashMap<>();
+        private final Map<Double, Integer> scalars = new HashMap<>();
+        private final Map<String, Integer> variables = new HashMap<>();
+        private final Map<String, Integer> nameIndex = new HashMap<>();
+        private String[] names = new String[8];
+        private byte[] kinds = new byte[64];
+        private int[] firsts = new int[65];
+        private double[] values = new double[64];
+        private int[] operands = new int[64];
+        private int operandCount = 0;
+        private int count = 0;
+        
+        @Override
+        public Integer lookup(Expression node) {
+            return visited.get(node);
+        }
+        
+        public Integer visitScalar(Scalar scalar) {
+            double value = scalar.getValue() + 0.0; // 0.0 and -0.0 are equal Scalars
+            Integer known = scalars.get(value);
+            if (known == null) {
+                known = add(SCALAR, value, null);
+                scalars.put(value, known);
+            }
+            return known;
+        }
+        
+        public Integer visitVariable(Variable variable) {
+            String name = variable.getName();
+            Integer known = variables.get(name);
+            if (known == null) {
+                Integer index = nameIndex.get(name);
+                if (index == null) {
+                    index = nameIndex.size();
+                    nameIndex.put(name, index);
+                    if (index == names.length) {
+                        names = Arrays.copyOf(names, index * 2);
+                    }
+                    names[index] = name;
+                }
+                known = add(VARIABLE, index, null);
+                variables.put(name, known);
+            }
+            return known;
+        }
+        
+        public Integer visitSum(Sum sum, List<Integer> operands) {
+            return operator(sum, SUM, operands);
+        }
+        
+        public Integer visitProduct(Product product, List<Integer> operands) {
+            return operator(product, PRODUCT, operands);
+        }
+        
+        private Integer operator(Expression node, byte kind, List<Integer> operandIds) {
+            int[] ids = new int[operandIds.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = operandIds.get(i);
+            }
+            OperatorKey key = new OperatorKey(kind, ids);
+            Integer known = operators.get(key);
+            if (known == null) {
+                known = add(kind, 0, ids);
+                operators.put(key, known);
+            }
+            visited.put(node, known);
+            return known;
+        }
+        
+        private int add(byte kind, double value, int[] ids) {
+            if (count == kinds.length) {
+                kinds = Arrays.copyOf(kinds, count * 2);
+                firsts = Arrays.copyOf(firsts, count * 2 + 1);
+                values = Arrays.copyOf(values, count * 2);
+            }
+            if (ids != null) {
+                if (operandCount + ids.length > operands.length) {
+                    operands = Arrays.copyOf(operands, Math.max(operands.length * 2, operandCount + ids.length));
+                }
+                System.arraycopy(ids, 0, operands, operandCount, ids.length);
+                operandCount += ids.length;
+            }
+            kinds[count] = kind;
+            values[count] = value;
+            firsts[count + 1] = operandCount;
+            return count++;
+        }
+        
+        ExpressionDag build() {
+            return new ExpressionDag(count, kinds, firsts, operands, values,
+                    Arrays.copyOf(names, nameIndex.size()));
+        }
+    }
+    
+    /*
+     * Hash-consing key of a SUM or PRODUCT node: its kind and its operands.
+     */
+    private static class OperatorKey {
+        private final byte kind;
+        private final int[] operands;
+        private final int hashCode;
+        
+        OperatorKey(byte kind, int[] operands) {
+            this.kind = kind;
+            this.operands = operands;
+            this.hashCode = 31 * kind + Arrays.hashCode(operands);
+        }
+        
+        @Override
+        public boolean equals(Object that) {
+            if (!(that instanceof OperatorKey)) return false;
+            OperatorKey thatKey = (OperatorKey) that;
+            return kind == thatKey.kind && Arrays.equals(operands, thatKey.operands);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package expressivo;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/*
+ * Interning factory for Expression nodes.
+ * 
+ * Every node returned by this factory is the canonical instance of its structure: two calls that
+ * build structurally-equal nodes return the same object, so repeated subtrees (e.g. the copies
+ * that Product.differentiate makes) are shared instead of duplicated, and equals on two canonical
+ * nodes succeeds on its identity check.
+ * 
+ * The table is weak-keyed, so a canonical node is garbage collected once nothing outside the
+ * factory refers to it. The value is a WeakReference to the key itself, so the table never keeps
+ * its own keys alive. It is split by hash into SEGMENTS independently locked WeakHashMaps, so
+ * threads interning different nodes (e.g. differentiating in parallel) rarely wait on each other.
+ * 
+ * Thread safety:
+ *  each segment is only accessed while holding its own lock
+ */
+
+public class ExpressionFactory {
+    private static final int SEGMENTS = 16;
+    
+    private static final List<Map<Expression, WeakReference<Expression>>> canonical = new ArrayList<>(SEGMENTS);
+    
+    static {
+        for (int i = 0; i < SEGMENTS; i++) {
+            canonical.add(new WeakHashMap<Expression, WeakReference<Expression>>());
+        }
+    }
+    
+    private ExpressionFactory() {}
+    
+    /**
+     * @param e1 left operand
+     * @param e2 right operand
+     * @return the canonical Sum of e1 and e2
+     */
+    public static Expression sum(Expression e1, Expression e2) {
+        return intern(new Sum(e1, e2));
+    }
+    
+    /**
+     * @param e1 left operand
+     * @param e2 right operand
+     * @return the canonical Product of e1 and e2
+     */
+    public static Expression product(Expression e1, Expression e2) {
+        return intern(new Product(e1, e2));
+    }
+    
+    /**
+     * @param operands one or more operands, from left to right
+     * @return the canonical Sum of operands, or the only operand if there is one
+     */
+    public static Expression sum(List<Expression> operands) {
+        Sum.Builder builder = new Sum.Builder();
+        for (Expression operand : operands) {
+            builder.add(operand);
+        }
+        return intern(builder.build());
+    }
+    
+    /**
+     * @param operands one or more operands, from left to right
+     * @return the canonical Product of operands, or the only operand if there is one
+     */
+    public static Expression product(List<Expression> operands) {
+        Product.Builder builder = new Product.Builder();
+        for (Expression operand : operands) {
+            builder.add(operand);
+        }
+        return intern(builder.build());
+    }
+    
+    /**
+     * @param value a number
+     * @return the canonical Scalar of value
+     */
+    public static Expression scalar(double value) {
+        return intern(new Scalar(value));
+    }
+    
+    /**
+     * @param name a case-sensitive nonempty string of letters
+     * @return the canonical Variable named name
+     */
+    public static Expression variable(String name) {
+        return intern(new Variable(name));
+    }
+    
+    /**
+     * @param e an expression node
+     * @return the canonical node structurally equal to e; e itself if there was none yet
+     */
+    public static Expression intern(Expression e) {
+        e = Derivative.force(e);
+        final int h = e.hashCode();
+        final Map<Expression, WeakReference<Expression>> segment = canonical.get((h ^ (h >>> 16)) & (SEGMENTS - 1));
+        synchronized (segment) {
+            WeakReference<Expression> ref = segment.get(e);
+            if (ref != null) {
+                Expression existing = ref.get();
+                if (existing != null) {
+                    return existing;
+                }
+            }
+            segment.put(e, new WeakReference<>(e));
+            return e;
+        }
+    }
+    
+    /**
+     * @return number of canonical nodes currently held
+     */
+    public static int size() {
+        int size = 0;
+        for (Map<Expression, WeakReference<Expression>> segment : canonical) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+}
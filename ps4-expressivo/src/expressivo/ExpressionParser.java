@@ -0,0 +1,210 @@
+package expressivo;
+
+/*
+ * Hand-written recursive-descent parser for the language of Expression.g.
+ * 
+ * Builds Sum, Product, Scalar and Variable nodes in a single left-to-right pass over the input,
+ * without building a ParseTree first and without backtracking. Sums and products are folded
+ * left-associatively, exactly like Utils.buildExpression, so both parsers produce equal
+ * expressions for every valid input.
+ * 
+ * Grammar recognized (whitespace allowed between tokens):
+ *  sum ::= product ('+' product)*
+ *  product ::= primitive ('*' primitive)*
+ *  primitive ::= '(' sum ')' | number | variable
+ *  number ::= [0-9]+ ('.' [0-9]+)? | '.' [0-9]+
+ *  variable ::= [a-zA-Z]+
+ * 
+ * Only nested parentheses recurse; chains of + and * are parsed with loops.
+ * 
+ * firstError recognizes the same language without building anything: it only needs to know how
+ * many parentheses are open and whether an operand or an operator comes next, so it is a single
+ * loop, and reports the same offset at which parse fails.
+ */
+
+class ExpressionParser {
+    private final String input;
+    private int pos = 0;
+    
+    private ExpressionParser(String input) {
+        this.input = input;
+    }
+    
+    /**
+     * Parse an expression.
+     * @param input expression to parse, as defined in the PS1 handout.
+     * @return expression AST for the input
+     * @throws ExpressionSyntaxException if the expression is invalid
+     */
+    static Expression parse(String input) {
+        ExpressionParser parser = new ExpressionParser(input);
+        Expression result = parser.parseSum();
+        parser.skipWhitespace();
+        if (parser.pos != input.length()) {
+            throw parser.badInput();
+        }
+        return result;
+    }
+    
+    /**
+     * Check an expression without parsing it, in time linear in its length and without allocating.
+     * @param input expression to check
+     * @return -1 if input is valid; otherwise the offset at which parse(input) fails, see
+     *         ExpressionSyntaxException.getOffset()
+     */
+    static int firstError(String input) {
+        final int length = input.length();
+        int depth = 0; // parentheses open
+        boolean operand = true; // true if a primitive comes next, false if an operator or ')'
+        int pos = 0;
+        while (true) {
+            while (pos < length && isWhitespace(input.charAt(pos))) {
+                pos++;
+            }
+            if (pos == length) {
+                return operand || depth > 0 ? pos : -1;
+            }
+            char c = input.charAt(pos);
+            if (operand) {
+                if (c == '(') {
+                    depth++;
+                    pos++;
+                    continue;
+                } else if (isLetter(c)) {
+                    do {
+                        pos++;
+                    } while (pos < length && isLetter(input.charAt(pos)));
+                } else if (isDigit(c) || c == '.') {
+                    while (pos < length && isDigit(input.charAt(pos))) {
+                        pos++;
+                    }
+                    if (pos < length && input.charAt(pos) == '.') {
+                        int fraction = ++pos;
+                        while (pos < length && isDigit(input.charAt(pos))) {
+                            pos++;
+                        }
+                        if (pos == fraction) {
+                            return pos;
+                        }
+                    }
+                } else {
+                    return pos;
+                }
+                operand = false;
+            } else if (c == '+' || c == '*') {
+                operand = true;
+                pos++;
+            } else if (c == ')' && depth > 0) {
+                depth--;
+                pos++;
+            } else {
+                return pos;
+            }
+        }
+    }
+    
+    private Expression parseSum() {
+        Expression first = parseProduct();
+        if (skipWhitespace() != '+') {
+            return first;
+        }
+        Sum.Builder sum = new Sum.Builder().add(first);
+        while (skipWhitespace() == '+') {
+            pos++;
+            sum.add(parseProduct());
+        }
+        return sum.build();
+    }
+    
+    private Expression parseProduct() {
+        Expression first = parsePrimitive();
+        if (skipWhitespace() != '*') {
+            return first;
+        }
+        Product.Builder product = new Product.Builder().add(first);
+        while (skipWhitespace() == '*') {
+            pos++;
+            product.add(parsePrimitive());
+        }
+        return product.build();
+    }
+    
+    private Expression parsePrimitive() {
+        char c = skipWhitespace();
+        if (c == '(') {
+            pos++;
+            Expression result = parseSum();
+            if (skipWhitespace() != ')') {
+                throw badInput();
+            }
+            pos++;
+            return result;
+        } else if (isDigit(c) || c == '.') {
+            return parseNumber();
+        } else if (isLetter(c)) {
+            int start = pos;
+            while (pos < input.length() && isLetter(input.charAt(pos))) {
+                pos++;
+            }
+            return new Variable(input.substring(start, pos));
+        }
+        throw badInput();
+    }
+    
+    private Expression parseNumber() {
+        int start = pos;
+        int integerDigits = skipDigits();
+        if (pos < input.length() && input.charAt(pos) == '.') {
+            pos++;
+            if (skipDigits() == 0) {
+                throw badInput();
+            }
+        } else if (integerDigits == 0) {
+            throw badInput();
+        }
+        return new Scalar(Double.parseDouble(input.substring(start, pos)));
+    }
+    
+    /**
+     * Advance past a run of digits.
+     * @return number of digits skipped
+     */
+    private int skipDigits() {
+        int start = pos;
+        while (pos < input.length() && isDigit(input.charAt(pos))) {
+            pos++;
+        }
+        return pos - start;
+    }
+    
+    /**
+     * Advance past whitespace.
+     * @return the next character, or 0 at the end of the input
+     */
+    private char skipWhitespace() {
+        while (pos < input.length()) {
+            char c = input.charAt(pos);
+            if (!isWhitespace(c)) {
+                return c;
+            }
+            pos++;
+        }
+        return 0;
+    }
+    
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+    
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+    
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+    
+    private ExpressionSyntaxException badInput() {
+        return new ExpressionSyntaxException(input, pos);
+    }
+}
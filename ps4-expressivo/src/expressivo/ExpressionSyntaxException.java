@@ -0,0 +1,51 @@
+package expressivo;
+
+/**
+ * Thrown by Expression.parse when its input is not a valid expression.
+ *
+ * Rejecting malformed input is an expected, frequent outcome (every mistyped line of the console
+ * or of a batch), so this exception records no stack trace and builds its message only when asked:
+ * throwing it costs one small allocation.
+ */
+public class ExpressionSyntaxException extends IllegalArgumentException {
+    private static final long serialVersionUID = 1;
+
+    private final String input;
+    private final int offset;
+
+    /**
+     * @param input the rejected input
+     * @param offset offset in input of the first character at which it cannot be a valid
+     *               expression, or input.length() if it ends too early
+     */
+    public ExpressionSyntaxException(String input, int offset) {
+        super((String) null);
+        this.input = input;
+        this.offset = offset;
+    }
+
+    /**
+     * @return the rejected input
+     */
+    public String getInput() {
+        return input;
+    }
+
+    /**
+     * @return offset in getInput() of the first character at which it cannot be a valid
+     *         expression, or getInput().length() if it ends too early
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    @Override
+    public String getMessage() {
+        return "bad input at offset " + offset + ": " + input;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        return this;
+    }
+}
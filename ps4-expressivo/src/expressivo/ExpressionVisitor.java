@@ -0,0 +1,53 @@
+package expressivo;
+
+import java.util.List;
+
+/**
+ * A post-order computation over the variants of Expression, run by Traversal.postOrder.
+ * 
+ * The visit method for a Sum or Product receives the results already computed for all of its
+ * operands (see Sum.getOperand and Product.getOperand), so implementations never recurse
+ * themselves, and Traversal.postOrder can run them over trees of any depth with an explicit stack.
+ * 
+ * @param <R> type of the result computed for each node
+ */
+public interface ExpressionVisitor<R> {
+    
+    /**
+     * @param scalar a leaf
+     * @return result for scalar
+     */
+    public R visitScalar(Scalar scalar);
+    
+    /**
+     * @param variable a leaf
+     * @return result for variable
+     */
+    public R visitVariable(Variable variable);
+    
+    /**
+     * @param sum a Sum node
+     * @param operands operands.get(i) is the result for sum.getOperand(i); a read-only
+     *                 list that is only valid until this method returns
+     * @return result for sum
+     */
+    public R visitSum(Sum sum, List<R> operands);
+    
+    /**
+     * @param product a Product node
+     * @param operands operands.get(i) is the result for product.getOperand(i); a read-only
+     *                 list that is only valid until this method returns
+     * @return result for product
+     */
+    public R visitProduct(Product product, List<R> operands);
+    
+    /**
+     * Called before the operands of a Sum or Product are visited.
+     * @param node a Sum or Product node
+     * @return an already known result for node, in which case its operands are skipped and
+     *         visitSum or visitProduct is not called for it; or null to visit node normally
+     */
+    public default R lookup(Expression node) {
+        return null;
+    }
+}
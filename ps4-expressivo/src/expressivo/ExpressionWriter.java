@@ -0,0 +1,122 @@
+package expressivo;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/*
+ * Streaming serializer for Expressions.
+ * 
+ * Appends the text of an expression directly to any Appendable (a StringBuilder, a Writer on a
+ * file or socket, ...) with one left-to-right pass and an explicit stack, so no intermediate
+ * String is built per subtree, and trees of any depth can be written.
+ * 
+ * Two layouts are supported, and both re-parse to an equal expression:
+ *  STANDARD: the layout of Expression.toString; every Sum is wrapped in parentheses
+ *  MINIMAL: parentheses only where the grammar needs them, i.e. around a Sum that is the right
+ *           operand of a Sum or an operand of a Product, and around a Product that is the right
+ *           operand of a Product
+ * In both layouts a Product that is the right operand of a Product is parenthesized, because
+ * "a * b * c" parses as (a * b) * c.
+ */
+
+public class ExpressionWriter {
+    
+    /**
+     * Where to put parentheses.
+     */
+    public enum Layout {STANDARD, MINIMAL};
+    
+    private static final int INITIAL_CAPACITY = 32;
+    
+    private ExpressionWriter() {}
+    
+    /**
+     * @param expression expression to write
+     * @param layout where to put parentheses
+     * @return the text of expression in the given layout
+     */
+    public static String toString(Expression expression, Layout layout) {
+        StringBuilder builder = new StringBuilder();
+        try {
+            write(expression, builder, layout);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // StringBuilder never throws
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Write an expression.
+     * @param expression expression to write
+     * @param out destination; its contents are extended, not replaced
+     * @param layout where to put parentheses
+     * @throws IOException if out throws
+     */
+    public static void write(Expression expression, Appendable out, Layout layout) throws IOException {
+        final boolean minimal = layout == Layout.MINIMAL;
+        final StringBuilder builder = out instanceof StringBuilder ? (StringBuilder) out : null;
+        // pending holds Expressions still to write and Strings to copy, top of the stack last
+        Object[] pending = new Object[INITIAL_CAPACITY];
+        int count = 0;
+        
+        pending[count++] = Derivative.force(expression);
+        while (count > 0) {
+            final Object item = pending[--count];
+            pending[count] = null;
+            if (item instanceof Sum || item instanceof Product) {
+                // at most 4 items per operand, and one more for the opening parentheses
+                final int operands = Traversal.operandCount((Expression) item);
+                if (count + 4 * operands + 1 > pending.length) {
+                    pending = Arrays.copyOf(pending, Math.max(pending.length * 2, count + 4 * operands + 1));
+                }
+            }
+            if (item instanceof Sum) {
+                // ((o0 + o1) + o2) + ...: the parentheses of every left-folded Sum open together
+                Sum sum = (Sum) item;
+                for (int i = sum.getOperandCount() - 1; i > 0; i--) {
+                    Expression right = sum.getOperand(i);
+                    if (!minimal) pending[count++] = ")";
+                    count = push(pending, count, right, minimal && right instanceof Sum);
+                    pending[count++] = " + ";
+                }
+                count = push(pending, count, sum.getOperand(0), false);
+                if (!minimal) pending[count++] = repeat('(', sum.getOperandCount() - 1);
+            } else if (item instanceof Product) {
+                Product product = (Product) item;
+                for (int i = product.getOperandCount() - 1; i > 0; i--) {
+                    Expression right = product.getOperand(i);
+                    count = push(pending, count, right, right instanceof Product || (minimal && right instanceof Sum));
+                    pending[count++] = " * ";
+                }
+                Expression left = product.getOperand(0);
+                count = push(pending, count, left, minimal && left instanceof Sum);
+            } else if (item instanceof Scalar && builder != null) {
+                builder.append(((Scalar) item).getValue());
+            } else {
+                // a String, Scalar or Variable
+                out.append(item.toString());
+            }
+        }
+    }
+    
+    /**
+     * @return a String of count copies of c
+     */
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+    
+    /**
+     * Push operand onto pending, between parentheses if parenthesize is true.
+     * @return new number of items in pending
+     */
+    private static int push(Object[] pending, int count, Expression operand, boolean parenthesize) {
+        if (parenthesize) pending[count++] = ")";
+        pending[count++] = operand;
+        if (parenthesize) pending[count++] = "(";
+        return count;
+    }
+}
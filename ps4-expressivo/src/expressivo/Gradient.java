@@ -0,0 +1,274 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The gradient of an Expression, computed numerically by reverse-mode automatic differentiation.
+ *
+ * The expression is recorded once as a tape: its distinct nodes in post-order, each with the
+ * nodes of its operands. A subtree shared by several parents (as differentiation produces) is
+ * recorded once, as is every variable name. At a point, a forward sweep over the tape computes
+ * the value of every node, and a backward sweep propagates the adjoint (the partial derivative of
+ * the whole expression with respect to that node) from the root down to the operands, adding up
+ * the contributions of every parent. The adjoints of the variable nodes are the gradient. Both
+ * sweeps are linear in the size of the tape, however many variables there are, and allocate no
+ * Expressions.
+ *
+ * Variables get slots as in CompiledExpression: in order of first appearance from left to right.
+ *
+ * Abstraction function:
+ *  represents the expression of node count-1, where node n is
+ *      SCALAR: the number constants[n]
+ *      VARIABLE: the variable variables[slots[n]]
+ *      SUM: the sum of nodes operands[firsts[n]], ..., operands[firsts[n+1]-1], from left to right
+ *      PRODUCT: the product of the same nodes
+ *
+ * Rep invariant:
+ *  count >= 1
+ *  firsts has count+1 elements, firsts[0] == 0, and firsts[n+1] == firsts[n] for leaves
+ *  for SUM and PRODUCT nodes n, firsts[n+1] - firsts[n] >= 2, and each of their operands is < n
+ *  maxOperands is the largest firsts[n+1] - firsts[n]
+ *  0 <= slots[n] < variables.length for VARIABLE nodes
+ *
+ * Safety from rep exposure:
+ *  all fields are private and final, arrays are never returned
+ *  getVariables returns a copy of variables
+ *  gradient only reads from values
+ */
+
+public class Gradient {
+    private static final byte SCALAR = 0;
+    private static final byte VARIABLE = 1;
+    private static final byte SUM = 2;
+    private static final byte PRODUCT = 3;
+    
+    private final String[] variables;
+    private final Map<String, Integer> variableSlots;
+    private final int count;
+    private final byte[] kinds;
+    private final int[] firsts;
+    private final int[] operands;
+    private final double[] constants;
+    private final int[] slots;
+    private final int maxOperands;
+    
+    private Gradient(String[] variables, Map<String, Integer> variableSlots, Tape tape) {
+        this.variables = variables;
+        this.variableSlots = variableSlots;
+        this.count = tape.count;
+        this.kinds = Arrays.copyOf(tape.kinds, count);
+        this.firsts = Arrays.copyOf(tape.firsts, count + 1);
+        this.operands = Arrays.copyOf(tape.operands, tape.operandCount);
+        this.constants = Arrays.copyOf(tape.constants, count);
+        this.slots = Arrays.copyOf(tape.slots, count);
+        this.maxOperands = tape.maxOperands;
+    }
+    
+    /**
+     * Record an expression for computing its gradient.
+     * @param expression any expression
+     * @return the gradient of expression with respect to all of its variables
+     */
+    public static Gradient of(Expression expression) {
+        Tape tape = new Tape();
+        int root = Traversal.postOrder(expression, tape);
+        assert root == tape.count - 1;
+        String[] variables = tape.variableSlots.keySet().toArray(new String[tape.variableSlots.size()]);
+        return new Gradient(variables, tape.variableSlots, tape);
+    }
+    
+    /**
+     * @return names of the variables of the expression, indexed by slot
+     */
+    public String[] getVariables() {
+        return Arrays.copyOf(variables, variables.length);
+    }
+    
+    /**
+     * @param name a variable name
+     * @return the slot of the variable name, or -1 if it doesn't appear in the expression
+     */
+    public int slotOf(String name) {
+        Integer slot = variableSlots.get(name);
+        return slot == null ? -1 : slot;
+    }
+    
+    /**
+     * @return number of distinct nodes recorded, i.e. the work of one sweep
+     */
+    public int tapeLength() {
+        return count;
+    }
+    
+    /**
+     * Compute the gradient at a point.
+     * @param values value of each variable, indexed by slot; must have at least
+     *               getVariables().length elements
+     * @return the partial derivative of the expression with respect to each variable at values,
+     *         indexed by slot
+     */
+    public double[] gradient(double[] values) {
+        double[] gradient = new double[variables.length];
+        evaluate(values, gradient);
+        return gradient;
+    }
+    
+    /**
+     * Compute the value and the gradient at a point.
+     * @param values value of each variable, indexed by slot; must have at least
+     *               getVariables().length elements
+     * @param gradient set to the partial derivative of the expression with respect to each
+     *                 variable at values, indexed by slot; must have at least
+     *                 getVariables().length elements
+     * @return value of the expression at values, as CompiledExpression.evaluate computes it
+     */
+    public double evaluate(double[] values, double[] gradient) {
+        final double[] primals = new double[count];
+        final double[] adjoints = new double[count];
+        final double[] suffixes = new double[maxOperands];
+        
+        for (int n = 0; n < count; n++) {
+            switch (kinds[n]) {
+            case SCALAR:
+                primals[n] = constants[n];
+                break;
+            case VARIABLE:
+                primals[n] = values[slots[n]];
+                break;
+            case SUM: {
+                double result = primals[operands[firsts[n]]];
+                for (int i = firsts[n] + 1; i < firsts[n + 1]; i++) {
+                    result += primals[operands[i]];
+                }
+                primals[n] = result;
+                break;
+            }
+            default: {
+                double result = primals[operands[firsts[n]]];
+                for (int i = firsts[n] + 1; i < firsts[n + 1]; i++) {
+                    result *= primals[operands[i]];
+                }
+                primals[n] = result;
+                break;
+            }
+            }
+        }
+        
+        Arrays.fill(gradient, 0, variables.length, 0.0);
+        adjoints[count - 1] = 1;
+        for (int n = count - 1; n >= 0; n--) {
+            final double adjoint = adjoints[n];
+            switch (kinds[n]) {
+            case SCALAR:
+                break;
+            case VARIABLE:
+                gradient[slots[n]] += adjoint;
+                break;
+            case SUM:
+                for (int i = firsts[n]; i < firsts[n + 1]; i++) {
+                    adjoints[operands[i]] += adjoint;
+                }
+                break;
+            default: {
+                // the partial derivative by operand i is the product of all the other operands:
+                // the operands before it, times suffixes[i - first], the operands after it
+                final int first = firsts[n];
+                final int last = firsts[n + 1] - 1;
+                suffixes[last - first] = 1;
+                for (int i = last; i > first; i--) {
+                    suffixes[i - 1 - first] = primals[operands[i]] * suffixes[i - first];
+                }
+                double prefix = 1;
+                for (int i = first; i <= last; i++) {
+                    adjoints[operands[i]] += adjoint * prefix * suffixes[i - first];
+                    prefix *= primals[operands[i]];
+                }
+                break;
+            }
+            }
+        }
+        return primals[count - 1];
+    }
+    
+    /*
+     * Post-order visitor that records the distinct nodes of a tree.
+     */
+    private static class Tape implements ExpressionVisitor<Integer> {
+        private final Map<Expression, Integer> visited = new IdentityHashMap<>();
+        private final Map<String, Integer> variableNodes = new HashMap<>();
+        private final Map<String, Integer> variableSlots = new LinkedHashMap<>();
+        private byte[] kinds = new byte[64];
+        private int[] firsts = new int[65];
+        private double[] constants = new double[64];
+        private int[] slots = new int[64];
+        private int[] operands = new int[64];
+        private int operandCount = 0;
+        private int maxOperands = 0;
+        private int count = 0;
+        
+        @Override
+        public Integer lookup(Expression node) {
+            return visited.get(node);
+        }
+        
+        public Integer visitScalar(Scalar scalar) {
+            return add(SCALAR, scalar.getValue(), -1);
+        }
+        
+        public Integer visitVariable(Variable variable) {
+            String name = variable.getName();
+            Integer known = variableNodes.get(name);
+            if (known == null) {
+                Integer slot = variableSlots.get(name);
+                if (slot == null) {
+                    slot = variableSlots.size();
+                    variableSlots.put(name, slot);
+                }
+                known = add(VARIABLE, 0, slot);
+                variableNodes.put(name, known);
+            }
+            return known;
+        }
+        
+        public Integer visitSum(Sum sum, List<Integer> operandIds) {
+            return operator(sum, SUM, operandIds);
+        }
+        
+        public Integer visitProduct(Product product, List<Integer> operandIds) {
+            return operator(product, PRODUCT, operandIds);
+        }
+        
+        private Integer operator(Expression node, byte kind, List<Integer> operandIds) {
+            final int size = operandIds.size();
+            if (operandCount + size > operands.length) {
+                operands = Arrays.copyOf(operands, Math.max(operands.length * 2, operandCount + size));
+            }
+            for (int i = 0; i < size; i++) {
+                operands[operandCount++] = operandIds.get(i);
+            }
+            maxOperands = Math.max(maxOperands, size);
+            Integer id = add(kind, 0, -1);
+            visited.put(node, id);
+            return id;
+        }
+        
+        private int add(byte kind, double constant, int slot) {
+            if (count == kinds.length) {
+                kinds = Arrays.copyOf(kinds, count * 2);
+                firsts = Arrays.copyOf(firsts, count * 2 + 1);
+                constants = Arrays.copyOf(constants, count * 2);
+                slots = Arrays.copyOf(slots, count * 2);
+            }
+            kinds[count] = kind;
+            constants[count] = constant;
+            slots[count] = slot;
+            firsts[count + 1] = operandCount;
+            return count++;
+        }
+    }
+}
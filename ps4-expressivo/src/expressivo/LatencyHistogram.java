@@ -0,0 +1,127 @@
+package expressivo;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A histogram of durations in nanoseconds, with power-of-two buckets.
+ *
+ * Bucket 0 counts durations of 0, and bucket b > 0 counts durations d with 2^(b-1) <= d < 2^b, so
+ * 64 buckets cover every nonnegative long, and a percentile is known to within a factor of two.
+ * Recording is a few atomic increments, cheap enough to do for every request.
+ *
+ * Abstraction function:
+ *  represents the multiset of recorded durations, of which counts[b] fall in bucket b,
+ *  adding up to total and at most max
+ *
+ * Rep invariant:
+ *  every counts[b] >= 0, total >= 0, max >= 0
+ *
+ * Safety from rep exposure:
+ *  all fields are private and final, and no mutable object is returned
+ *
+ * Thread safety:
+ *  the fields are atomic, so record can be called from any number of threads. A reader running
+ *  concurrently with record may see a duration in some of the counters and not yet in others.
+ */
+
+public class LatencyHistogram {
+    /** Number of buckets. */
+    public static final int BUCKETS = 64;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+    
+    /**
+     * Record one duration.
+     * @param nanos duration in nanoseconds; negative durations are recorded as 0
+     */
+    void record(long nanos) {
+        final long duration = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(duration));
+        total.add(duration);
+        max.accumulate(duration);
+    }
+    
+    /**
+     * @param nanos a nonnegative duration
+     * @return the bucket that counts nanos
+     */
+    public static int bucketOf(long nanos) {
+        return Long.SIZE - Long.numberOfLeadingZeros(nanos);
+    }
+    
+    /**
+     * @param bucket 0 <= bucket < BUCKETS
+     * @return the largest duration counted by bucket
+     */
+    public static long upperBound(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+    
+    /**
+     * @return number of durations recorded
+     */
+    public long count() {
+        long count = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            count += counts.get(b);
+        }
+        return count;
+    }
+    
+    /**
+     * @param bucket 0 <= bucket < BUCKETS
+     * @return number of durations recorded in bucket
+     */
+    public long count(int bucket) {
+        return counts.get(bucket);
+    }
+    
+    /**
+     * @return mean duration in nanoseconds, or 0 if none was recorded
+     */
+    public double mean() {
+        final long count = count();
+        return count == 0 ? 0 : (double) total.sum() / count;
+    }
+    
+    /**
+     * @return longest duration recorded, or 0 if none was
+     */
+    public long max() {
+        return max.get();
+    }
+    
+    /**
+     * @param fraction 0 <= fraction <= 1, e.g. 0.99 for the 99th percentile
+     * @return upper bound of the bucket holding the duration at that fraction of the recorded
+     *         durations in increasing order, capped at max(); 0 if none was recorded
+     */
+    public long percentile(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1: " + fraction);
+        }
+        final long count = count();
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts.get(b);
+            if (seen >= rank) {
+                return Math.min(upperBound(b), max());
+            }
+        }
+        return max();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("count=%d mean=%.1fus p50<=%.1fus p99<=%.1fus max=%.1fus",
+                count(), mean() / 1e3, percentile(0.5) / 1e3, percentile(0.99) / 1e3, max() / 1e3);
+    }
+}
@@ -0,0 +1,125 @@
+package expressivo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * A bounded, thread-safe map that evicts its least recently used entry when it is full,
+ * and counts hits, misses and evictions.
+ * 
+ * Abstraction function:
+ *  represents the cache holding the mappings in entries, most recently used last,
+ *  after hits successful lookups, misses failed lookups and evictions removals for space
+ * 
+ * Rep invariant:
+ *  entries.size() <= capacity
+ *  hits, misses, evictions >= 0
+ * 
+ * Safety from rep exposure:
+ *  all fields are private, entries is never returned
+ * 
+ * Thread safety:
+ *  every method that touches entries or the counters is synchronized on this cache
+ */
+
+public class LruCache<K, V> {
+    private final int capacity;
+    private final Map<K, V> entries;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    
+    /**
+     * @param capacity maximum number of entries, must be positive
+     */
+    public LruCache(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                if (size() > capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * @param key key to look up
+     * @return the value cached for key, or null if there is none
+     */
+    public synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return value;
+    }
+    
+    /**
+     * Cache a value, evicting the least recently used entry if the cache is full.
+     * @param key key to store under
+     * @param value non-null value
+     */
+    public synchronized void put(K key, V value) {
+        entries.put(key, value);
+    }
+    
+    /**
+     * Remove one entry, if it is present. Not counted as an eviction.
+     * @param key key to remove
+     */
+    public synchronized void remove(K key) {
+        entries.remove(key);
+    }
+    
+    /**
+     * Remove every entry. The counters are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+    
+    /**
+     * @return maximum number of entries
+     */
+    public int capacity() {
+        return capacity;
+    }
+    
+    /**
+     * @return number of entries
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+    
+    /**
+     * @return number of lookups that found a value
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+    
+    /**
+     * @return number of lookups that found no value
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+    
+    /**
+     * @return number of entries removed to make room for new ones
+     */
+    public synchronized long evictions() {
+        return evictions;
+    }
+}
@@ -1,14 +1,16 @@
 package expressivo;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.NoSuchElementException;
 import java.util.Optional;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Console interface to the expression system.
@@ -21,12 +23,24 @@ public class Main {
     /**
      * Read expression and command inputs from the console and output results.
      * An empty input terminates the program.
-     * @param args unused
+     * 
+     * <p>With --batch, instead read newline-delimited inputs from a file (or standard input if no
+     * file is given) until the end of the input, skipping blank lines, and write one output line
+     * per input line with no prompts. --threads N processes independent parts of the input on N
+     * worker threads; output order is unchanged. Throughput and parse cache statistics are
+     * reported on standard error.
+     * 
+     * @param args empty for interactive mode, or: --batch [--threads N] [file]
      * @throws IOException if there is an error reading the input
      */
     public static void main(String[] args) throws IOException {
+        if (args.length > 0) {
+            batch(args);
+            return;
+        }
+        
         final BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-        Optional<String> currentExpression = Optional.empty();
+        final Session session = new Session();
         
         while (true) {
             System.out.print("> ");
@@ -36,68 +50,143 @@ public class Main {
                 return; // exits the program
             }
             
+            System.out.println(session.execute(input));
+        }
+    }
+    
+    private static final String USAGE = "usage: Main [--batch [--threads N] [file]]";
+    
+    private static void batch(String[] args) throws IOException {
+        int threads = 1;
+        String file = null;
+        if (!args[0].equals("--batch")) {
+            System.err.println(USAGE);
+            return;
+        }
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--threads")) {
+                threads = i + 1 < args.length ? parseThreads(args[++i]) : -1;
+                if (threads <= 0) {
+                    System.err.println("--threads needs a positive number of threads");
+                    System.err.println(USAGE);
+                    return;
+                }
+            } else if (file == null && !args[i].startsWith("--")) {
+                file = args[i];
+            } else {
+                System.err.println(USAGE);
+                return;
+            }
+        }
+        
+        final BufferedReader in;
+        if (file == null) {
+            in = new BufferedReader(Channels.newReader(Channels.newChannel(System.in), "UTF-8"), IO_BUFFER_SIZE);
+        } else {
+            in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8);
+        }
+        final Writer out = new BufferedWriter(
+                Channels.newWriter(Channels.newChannel(System.out), "UTF-8"), IO_BUFFER_SIZE);
+        
+        final long start = System.nanoTime();
+        final long lines;
+        try {
+            lines = new BatchProcessor(threads).run(in, out);
+        } finally {
+            in.close();
+            out.flush();
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("processed %d lines in %.3f s (%.0f lines/sec)%n", lines, seconds, lines / seconds);
+        System.err.println(ParseCache.getDefault());
+    }
+    
+    /**
+     * @param value argument of --threads
+     * @return value as an int, or -1 if it is not one
+     */
+    private static int parseThreads(String value) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+    
+    private static final int IO_BUFFER_SIZE = 1 << 16;
+    
+    /*
+     * The state of one console session: the current expression that commands apply to.
+     */
+    static class Session {
+        private Optional<String> currentExpression = Optional.empty();
+        private final Environment environment = new Environment(); // reused by every !simplify
+        
+        Session() {}
+        
+        /**
+         * Make a session that starts with the current expression of another.
+         * @param other a session
+         */
+        Session(Session other) {
+            this.currentExpression = other.currentExpression;
+        }
+        
+        /**
+         * @return true if an expression has been entered in this session
+         */
+        boolean hasExpression() {
+            return currentExpression.isPresent();
+        }
+        
+        /**
+         * Run one input line: an expression, which becomes the current expression,
+         * or a command applied to the current expression.
+         * @param input a nonempty line of input
+         * @return the line to print in response
+         */
+        String execute(String input) {
             try {
                 final String output;
                 
-                if (input.startsWith(DIFFERENTIATE_PREFIX)) {
-                    final String variable = parseDifferentiate(input);
+                switch (CommandLexer.kindOf(input)) {
+                case DIFFERENTIATE: {
+                    final String variable = CommandLexer.differentiateVariable(input);
                     output = Commands.differentiate(currentExpression.get(), variable);
                     currentExpression = Optional.of(output);
-                } else if (input.startsWith(SIMPLIFY_PREFIX)) {
-                    final Map<String,Double> environment = parseSimpify(input);
+                    break;
+                }
+                case SIMPLIFY:
+                    CommandLexer.simplifyBindings(input, environment);
+                    // un-comment the following line to print the environment after each !simplify command
+                    //System.out.println(environment);
                     output = Commands.simplify(currentExpression.get(), environment);
                     // ... but don't change currentExpression
-                } else {
-                    final Expression expression = Expression.parse(input);
+                    break;
+                default: {
+                    final Expression expression = ParseCache.getDefault().parse(input);
                     output = expression.toString();
                     currentExpression = Optional.of(output);
+                    break;
+                }
                 }
                 
-                System.out.println(output);
+                return output;
             } catch (NoSuchElementException nse) {
                 // currentExpression was empty
-                System.out.println("must enter an expression before using this command");
+                return "must enter an expression before using this command";
             } catch (RuntimeException re) {
-                System.out.println(re.getClass().getName() + ": " + re.getMessage());
+                return re.getClass().getName() + ": " + re.getMessage();
             }
         }
     }
- 
-    private static final String DIFFERENTIATE_PREFIX = "!d/d";
-    private static final String VARIABLE = "[A-Za-z]+";
-    private static final String DIFFERENTIATE = DIFFERENTIATE_PREFIX + "(" + VARIABLE + ") *";
-
-    private static String parseDifferentiate(final String input) {
-        final Matcher commandMatcher = Pattern.compile(DIFFERENTIATE).matcher(input);
-        if (!commandMatcher.matches()) {
-            throw new CommandSyntaxException("usage: !d/d must be followed by a variable name");
-        }
-
-        final String variable = commandMatcher.group(1);
-        return variable;
-    }
     
-    private static final String SIMPLIFY_PREFIX = "!simplify";
-    private static final String ASSIGNMENT = "(" + VARIABLE + ") *= *([^ ]+)";
-    private static final String SIMPLIFY = SIMPLIFY_PREFIX + "( +" + ASSIGNMENT + ")* *";    
-
-    private static Map<String,Double> parseSimpify(final String input) {
-        final Matcher commandMatcher = Pattern.compile(SIMPLIFY).matcher(input);
-        if (!commandMatcher.matches()) {
-            throw new CommandSyntaxException("usage: !simplify var1=val1 var2=val2 ...");
-        }
-        
-        final Map<String,Double> environment = new HashMap<>();
-        final Matcher argumentMatcher = Pattern.compile(ASSIGNMENT).matcher(input);
-        while (argumentMatcher.find()) {
-            final String variable = argumentMatcher.group(1);
-            final double value = Double.valueOf(argumentMatcher.group(2));
-            environment.put(variable, value);
-        }
-
-        // un-comment the following line to print the environment after each !simplify command
-        //System.out.println(environment);
-        return environment;
+    /**
+     * @param input a line of input
+     * @return true if input is a command rather than an expression
+     */
+    static boolean isCommand(String input) {
+        return CommandLexer.kindOf(input) != CommandLexer.Kind.EXPRESSION;
     }
     
     public static class CommandSyntaxException extends RuntimeException {
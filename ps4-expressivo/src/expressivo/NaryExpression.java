@@ -0,0 +1,174 @@
+package expressivo;
+
+import java.util.Map;
+
+/*
+ * The n-ary operator nodes, Sum and Product, which differ only in their operator.
+ *
+ * Abstraction function:
+ *  represents the expression ((o0 op o1) op ...) op on-1, where op is the operator of kind(),
+ *  n = count, o0 = first, on-1 = last, and oi = operands.get(i) for the others;
+ *  i.e. getLeft() op getRight()
+ *  
+ * Rep invariant:
+ *  count >= 2
+ *  first is not a node of the same class
+ *  operands == null if count == 2, otherwise operands holds o0..on-2
+ *  hashCode == StructuralHash.combine(kind(), getLeft().hashCode(), getRight().hashCode())
+ *  size == 1 + number of nodes in getLeft() and getRight(), or Integer.MAX_VALUE if that is larger
+ * 
+ * Safety from rep exposure:
+ *  Expressions are immutable
+ *  operands is shared only with other nodes of the same class, which never change its first
+ *  count-1 operands
+ *  getLeft, getRight and getOperand return Expressions, which are immutable
+ *  equals takes in an Object which is never changed or assigned to instance variables
+ */
+
+abstract class NaryExpression implements Expression {
+    private final Expression first;
+    private final OperandArray operands;
+    private final int count;
+    private final Expression last;
+    private final int hashCode;
+    private final int size;
+    
+    /**
+     * Make the node e1 op e2. If e1 is a node of the same class, the result has the operands of
+     * e1 followed by e2.
+     * @param e1 left operand
+     * @param e2 right operand
+     */
+    NaryExpression(Expression e1, Expression e2) {
+        e1 = Derivative.force(e1);
+        e2 = Derivative.force(e2);
+        if (e1.getClass() == getClass()) {
+            NaryExpression left = (NaryExpression) e1;
+            this.first = left.first;
+            this.operands = OperandArray.holding(kind(),
+                    left.first, left.operands, left.count, left.last, left.hashCode, left.size);
+            this.count = left.count + 1;
+        } else {
+            this.first = e1;
+            this.operands = null;
+            this.count = 2;
+        }
+        this.last = e2;
+        this.hashCode = StructuralHash.combine(kind(), e1.hashCode(), e2.hashCode());
+        this.size = OperandArray.size(Traversal.sizeOf(e1), e2);
+    }
+    
+    NaryExpression(Expression first, OperandArray operands, int count, Expression last, int hashCode, int size) {
+        this.first = first;
+        this.operands = operands;
+        this.count = count;
+        this.last = last;
+        this.hashCode = hashCode;
+        this.size = size;
+    }
+    
+    /**
+     * @return OperandArray.SUM or OperandArray.PRODUCT; must not depend on any field
+     */
+    abstract int kind();
+    
+    /**
+     * @return a node of the same class with the given rep
+     */
+    abstract NaryExpression make(Expression first, OperandArray operands, int count, Expression last,
+            int hashCode, int size);
+    
+    /**
+     * @return the left operand: the node of the same operator over all operands but the last, or
+     *         the first operand if there are only two
+     */
+    public Expression getLeft() {
+        return prefix(count - 1);
+    }
+    
+    /**
+     * @return the right operand, i.e. the last operand
+     */
+    public Expression getRight() {
+        return last;
+    }
+    
+    /**
+     * @return number of operands, at least 2; the first operand is never a node of the same
+     *         operator
+     */
+    public int getOperandCount() {
+        return count;
+    }
+    
+    /**
+     * @param i index of an operand, 0 <= i < getOperandCount()
+     * @return operand i, counting from the left
+     * @throws IndexOutOfBoundsException if i is out of range
+     */
+    public Expression getOperand(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("operand " + i + " of " + count);
+        }
+        return i == 0 ? first : i == count - 1 ? last : operands.get(i);
+    }
+    
+    /**
+     * @return number of nodes in this expression tree, counting repeated subtrees every time
+     *         they occur, or Integer.MAX_VALUE if there are more than that
+     */
+    public int getSize() {
+        return size;
+    }
+    
+    /**
+     * @param k number of operands, 1 <= k <= getOperandCount()
+     * @return the node of the same operator over the first k operands, or the first operand if
+     *         k is 1
+     */
+    Expression prefix(int k) {
+        if (k == count) return this;
+        if (k == 1) return first;
+        return make(first, k == 2 ? null : operands, k, operands.get(k - 1),
+                operands.hashCode(k), operands.size(k));
+    }
+    
+    /**
+     * @return storage holding all operands but the last, or null if there are only two
+     */
+    OperandArray operands() {
+        return operands;
+    }
+    
+    public Expression differentiate(String var) {
+        return Traversal.postOrder(this, new Differentiator(var));
+    }
+    
+    public Expression simplify(Map<String, Double> env) {
+        return Traversal.postOrder(this, new Simplifier(env));
+    }
+    
+    public Expression simplify(Environment env) {
+        return Traversal.postOrder(this, new Simplifier(env));
+    }
+    
+    @Override
+    public String toString() {
+        return ExpressionWriter.toString(this, ExpressionWriter.Layout.STANDARD);
+    }
+    
+    @Override
+    public boolean equals(Object that) {
+        if (this == that) return true;
+        if (that instanceof Derivative) return that.equals(this);
+        if (that == null || that.getClass() != getClass()) return false;
+        NaryExpression thatNode = (NaryExpression) that;
+        if (this.hashCode != thatNode.hashCode) return false;
+        return Traversal.equal(this, thatNode);
+    }
+    
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
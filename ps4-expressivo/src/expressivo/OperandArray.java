@@ -0,0 +1,254 @@
+package expressivo;
+
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/*
+ * Flattened operand storage shared by the n-ary Sum and Product nodes.
+ *
+ * A Sum with operands o0, o1, ..., on-1 stands for the left-folded binary tree
+ * ((o0 + o1) + ...) + on-1, which is what the parser builds for o0 + o1 + ... + on-1, and is equal
+ * to it as an Expression. Instead of n-1 nodes on a left spine, the operands are kept in one
+ * array. The first operand is never itself a node of the same operator, so every tree has exactly
+ * one flattened form.
+ *
+ * A node with n operands keeps its first and last operand in fields, and operands 0..n-2 in a
+ * prefix of an OperandArray, which many nodes can share; a node with two operands needs no
+ * OperandArray at all. The left operand of a node is the node one operand shorter, over the same
+ * storage, so getLeft is O(1).
+ *
+ * Appending operand x to a node with n operands needs storage whose slot n-1 holds the node's last
+ * operand. The node's own storage is reused if that slot already holds that very object (e.g. the
+ * node is a prefix of a longer node, as in the product rule) or is still free (the node is the
+ * longest one built so far); otherwise the n-1 operands are copied. Folding n operands one at a
+ * time (the binary constructors, or Builder) therefore costs O(n) in total, not O(n^2).
+ *
+ * The hash code and size of every prefix are stored next to the operands, so every node knows
+ * its hashCode and size in O(1).
+ *
+ * Abstraction function:
+ *  represents the operand lists items[0..k-1] for every k in 1..written, each combined with the
+ *  operator kind
+ *
+ * Rep invariant:
+ *  kind is SUM or PRODUCT
+ *  1 <= written <= used <= items.length, and written == used except while extend is writing
+ *  items[0..written-1] are non-null, and items[0] is not a node of kind
+ *  prefixes.length == 2 * items.length, and for i < written, with hash(i) == prefixes[2*i] and
+ *  size(i) == prefixes[2*i+1]:
+ *      hash(0) == items[0].hashCode(), hash(i) == StructuralHash.combine(kind, hash(i-1), items[i].hashCode())
+ *      size(0) == size of items[0], size(i) == 1 + size(i-1) + size of items[i], saturated at
+ *          Integer.MAX_VALUE
+ *
+ * Safety from rep exposure:
+ *  package-private, and the arrays are never returned
+ *
+ * Thread safety:
+ *  a free slot is claimed by compare-and-set on used, so only one thread ever writes it, and it
+ *  is never written again; the claiming thread then writes it and publishes written, before
+ *  constructing the node that covers it. Slots are claimed one after another, since slot i can
+ *  only be claimed through a node that covers slot i-1, so written only moves forward. Slots at or
+ *  above written are never read except through a node that covers them.
+ */
+
+final class OperandArray {
+    static final int SUM = 0;
+    static final int PRODUCT = 1;
+    
+    private static final int MIN_CAPACITY = 4;
+    
+    private final int kind;
+    private final Expression[] items;
+    private final int[] prefixes; // hash code and size of each prefix, see rep invariant
+    private volatile int used = 0; // slots claimed
+    private volatile int written = 0; // slots written, <= used
+    
+    private static final AtomicIntegerFieldUpdater<OperandArray> USED =
+            AtomicIntegerFieldUpdater.newUpdater(OperandArray.class, "used");
+    private static final AtomicIntegerFieldUpdater<OperandArray> WRITTEN =
+            AtomicIntegerFieldUpdater.newUpdater(OperandArray.class, "written");
+    
+    private OperandArray(int kind, int capacity) {
+        this.kind = kind;
+        this.items = new Expression[capacity];
+        this.prefixes = new int[2 * capacity];
+    }
+    
+    /**
+     * @param kind SUM or PRODUCT
+     * @param first operand 0 of a node of kind with n >= 2 operands
+     * @param operands storage holding operands 0..n-2 of the node, or null if n == 2
+     * @param count n
+     * @param last operand n-1 of the node
+     * @param hashCode hashCode of the node
+     * @param size size of the node, see size()
+     * @return storage holding operands 0..n-1 of the node
+     */
+    static OperandArray holding(int kind, Expression first, OperandArray operands, int count, Expression last,
+            int hashCode, int size) {
+        if (operands == null) {
+            OperandArray pair = new OperandArray(kind, MIN_CAPACITY);
+            pair.put(0, first, first.hashCode(), Traversal.sizeOf(first));
+            pair.put(1, last, hashCode, size);
+            USED.lazySet(pair, 2);
+            WRITTEN.lazySet(pair, 2);
+            return pair;
+        }
+        return operands.extend(count - 1, last, hashCode, size);
+    }
+    
+    /**
+     * @param index number of operands already held, 2 <= index <= used
+     * @param operand operand to hold at index
+     * @param hashCode hash code of the first index+1 operands
+     * @param size size of the first index+1 operands
+     * @return storage whose first index+1 operands are those of this storage followed by operand:
+     *         this storage if slot index is free or already holds operand, otherwise a copy
+     */
+    private OperandArray extend(int index, Expression operand, int hashCode, int size) {
+        if (index < written && items[index] == operand) {
+            return this;
+        }
+        if (index < items.length && USED.compareAndSet(this, index, index + 1)) {
+            put(index, operand, hashCode, size);
+            WRITTEN.lazySet(this, index + 1);
+            return this;
+        }
+        OperandArray copy = new OperandArray(kind, Math.max(MIN_CAPACITY, 2 * (index + 1)));
+        System.arraycopy(items, 0, copy.items, 0, index);
+        System.arraycopy(prefixes, 0, copy.prefixes, 0, 2 * index);
+        copy.put(index, operand, hashCode, size);
+        USED.lazySet(copy, index + 1);
+        WRITTEN.lazySet(copy, index + 1);
+        return copy;
+    }
+    
+    /**
+     * Like extend, for storage that no node can see yet.
+     * @param index number of operands held, 2 <= index == used
+     * @param operand operand to hold at index
+     * @param hashCode hash code of the first index+1 operands
+     * @param size size of the first index+1 operands
+     * @return storage whose first index+1 operands are those of this storage followed by operand:
+     *         this storage if it has room, otherwise a copy
+     */
+    private OperandArray extendUnshared(int index, Expression operand, int hashCode, int size) {
+        if (index < items.length) {
+            put(index, operand, hashCode, size);
+            USED.lazySet(this, index + 1);
+            WRITTEN.lazySet(this, index + 1);
+            return this;
+        }
+        return extend(index, operand, hashCode, size);
+    }
+    
+    /**
+     * @param i index of an operand held by this storage
+     * @return the operand at i
+     */
+    Expression get(int i) {
+        return items[i];
+    }
+    
+    /**
+     * @param k number of operands, 1 <= k <= number held
+     * @return hashCode of the node over the first k operands held
+     */
+    int hashCode(int k) {
+        return prefixes[2 * (k - 1)];
+    }
+    
+    /**
+     * @param k number of operands, 1 <= k <= number held
+     * @return size of the node over the first k operands held, see size()
+     */
+    int size(int k) {
+        return prefixes[2 * (k - 1) + 1];
+    }
+    
+    private void put(int i, Expression operand, int hashCode, int size) {
+        items[i] = operand;
+        prefixes[2 * i] = hashCode;
+        prefixes[2 * i + 1] = size;
+    }
+    
+    /**
+     * @return 1 + left + size of right, i.e. the number of nodes in the binary tree of a node whose
+     *         left operand has left nodes, or Integer.MAX_VALUE if that is larger
+     */
+    static int size(int left, Expression right) {
+        long size = 1L + left + Traversal.sizeOf(right);
+        return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+    }
+    
+    /*
+     * Accumulates the operands of one Sum or Product, flattening a first operand of the same kind.
+     */
+    static final class Builder {
+        private final int kind;
+        private Expression first;
+        private OperandArray operands;
+        private boolean shared = false; // true if operands may be visible to some node
+        private int count = 0;
+        private Expression last;
+        private int hashCode; // of the node over the operands so far
+        private int size;
+        
+        Builder(int kind) {
+            this.kind = kind;
+        }
+        
+        /**
+         * @param operand next operand, rightmost so far
+         */
+        void add(Expression operand) {
+            operand = Derivative.force(operand);
+            if (count == 0) {
+                if (operand instanceof NaryExpression && ((NaryExpression) operand).kind() == kind) {
+                    NaryExpression node = (NaryExpression) operand;
+                    first = node.getOperand(0);
+                    operands = node.operands();
+                    shared = true;
+                    count = node.getOperandCount();
+                    last = node.getRight();
+                    hashCode = node.hashCode();
+                    size = node.getSize();
+                } else {
+                    first = operand;
+                    count = 1;
+                    last = operand;
+                    hashCode = operand.hashCode();
+                    size = Traversal.sizeOf(operand);
+                }
+                return;
+            }
+            if (count >= 2) {
+                OperandArray extended = shared || operands == null
+                        ? holding(kind, first, operands, count, last, hashCode, size)
+                        : operands.extendUnshared(count - 1, last, hashCode, size);
+                shared = shared && extended == operands;
+                operands = extended;
+            }
+            count++;
+            last = operand;
+            hashCode = StructuralHash.combine(kind, hashCode, operand.hashCode());
+            size = size(size, operand);
+        }
+        
+        /**
+         * @return the only operand if there is one, otherwise the node of kind over all operands
+         * @throws IllegalStateException if no operand was added
+         */
+        Expression build() {
+            if (count == 0) {
+                throw new IllegalStateException("no operands");
+            }
+            if (count == 1) {
+                return first;
+            }
+            shared = true;
+            return kind == SUM
+                    ? new Sum(first, operands, count, last, hashCode, size)
+                    : new Product(first, operands, count, last, hashCode, size);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+ * Fork/join versions of Expression.simplify and Expression.differentiate for very large trees.
+ * 
+ * A subtree with at most threshold nodes (see Sum.getSize and Product.getSize) is handled
+ * sequentially by the ordinary operation. A larger subtree is a Sum or Product, e.g. the one the
+ * parser builds for o1 + o2 + o3 + o4. Its operands are processed in parallel, splitting the
+ * operand list in halves until each half has at most threshold nodes, and then the results are
+ * combined exactly as the sequential operation would, so both produce equal trees.
+ * 
+ * Splitting stops below MAX_SPLIT_DEPTH nested operators and the rest of the subtree is handled
+ * sequentially, so deeply nested input cannot exhaust the call stack of a worker.
+ */
+
+public class ParallelExpressions {
+    /** Subtrees with at most this many nodes are processed sequentially by default. */
+    public static final int DEFAULT_THRESHOLD = 10_000;
+    
+    private static final int MAX_SPLIT_DEPTH = 64;
+    
+    private ParallelExpressions() {}
+    
+    /**
+     * Simplify in parallel on the common pool with the default threshold.
+     * @see #simplify(Expression, Map, ForkJoinPool, int)
+     */
+    public static Expression simplify(Expression expression, Map<String, Double> env) {
+        return simplify(expression, env, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+    
+    /**
+     * Simplify an expression in parallel.
+     * @param expression expression to simplify
+     * @param env maps variables to values
+     * @param pool pool to run on
+     * @param threshold subtrees with at most this many nodes are simplified sequentially; must be positive
+     * @return an expression equal to expression.simplify(env)
+     * @throws IllegalArgumentException if threshold is not positive
+     */
+    public static Expression simplify(Expression expression, Map<String, Double> env,
+            ForkJoinPool pool, int threshold) {
+        checkThreshold(threshold);
+        final Simplifier simplifier = new Simplifier(env);
+        return pool.invoke(new Task(Derivative.force(expression), new Operation() {
+            public Expression sequential(Expression operand) {
+                return Traversal.postOrder(operand, simplifier);
+            }
+            public Expression combine(Expression node, Expression[] operands) {
+                return node instanceof Sum
+                        ? simplifier.visitSum((Sum) node, Arrays.asList(operands))
+                        : simplifier.visitProduct((Product) node, Arrays.asList(operands));
+            }
+        }, threshold, 0));
+    }
+    
+    /**
+     * Differentiate in parallel on the common pool with the default threshold.
+     * @see #differentiate(Expression, String, ForkJoinPool, int)
+     */
+    public static Expression differentiate(Expression expression, String var) {
+        return differentiate(expression, var, ForkJoinPool.commonPool(), DEFAULT_THRESHOLD);
+    }
+    
+    /**
+     * Differentiate an expression in parallel.
+     * @param expression expression to differentiate
+     * @param var the variable to take the derivative with respect to
+     * @param pool pool to run on
+     * @param threshold subtrees with at most this many nodes are differentiated sequentially; must be positive
+     * @return an expression equal to expression.differentiate(var)
+     * @throws IllegalArgumentException if threshold is not positive
+     */
+    public static Expression differentiate(Expression expression, String var,
+            ForkJoinPool pool, int threshold) {
+        checkThreshold(threshold);
+        final Differentiator differentiator = new Differentiator(var);
+        return pool.invoke(new Task(Derivative.force(expression), new Operation() {
+            public Expression sequential(Expression operand) {
+                return Traversal.postOrder(operand, differentiator);
+            }
+            public Expression combine(Expression node, Expression[] operands) {
+                return node instanceof Sum
+                        ? differentiator.visitSum((Sum) node, Arrays.asList(operands))
+                        : differentiator.visitProduct((Product) node, Arrays.asList(operands));
+            }
+        }, threshold, 0));
+    }
+    
+    private static void checkThreshold(int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("threshold must be positive: " + threshold);
+        }
+    }
+    
+    /*
+     * What to compute for each node.
+     */
+    private interface Operation {
+        /**
+         * @return the result for operand, computed sequentially
+         */
+        Expression sequential(Expression operand);
+        
+        /**
+         * Combine the results for the operands of a node.
+         * @param node a Sum or Product
+         * @param operands the result for each operand of node, leftmost first
+         * @return the result for node
+         */
+        Expression combine(Expression node, Expression[] operands);
+    }
+    
+    /*
+     * Computes the result for one subtree, splitting its operands if it is above threshold.
+     */
+    private static class Task extends RecursiveTask<Expression> {
+        private static final long serialVersionUID = 1;
+        
+        private final Expression node;
+        private final Operation operation;
+        private final int threshold;
+        private final int depth;
+        
+        Task(Expression node, Operation operation, int threshold, int depth) {
+            this.node = node;
+            this.operation = operation;
+            this.threshold = threshold;
+            this.depth = depth;
+        }
+        
+        @Override
+        protected Expression compute() {
+            if (Traversal.sizeOf(node) <= threshold || depth >= MAX_SPLIT_DEPTH) {
+                return operation.sequential(node);
+            }
+            Expression[] operands = new Expression[Traversal.operandCount(node)];
+            for (int i = 0; i < operands.length; i++) {
+                operands[i] = Traversal.operand(node, i);
+            }
+            
+            Expression[] results = new Expression[operands.length];
+            new Operands(operands, results, 0, operands.length, this).compute();
+            return operation.combine(node, results);
+        }
+    }
+    
+    /*
+     * Computes results[i] for operands[lo..hi-1], splitting the range while it is above threshold.
+     */
+    private static class Operands extends RecursiveAction {
+        private static final long serialVersionUID = 1;
+        
+        private final Expression[] operands;
+        private final Expression[] results;
+        private final int lo;
+        private final int hi;
+        private final Task parent;
+        
+        Operands(Expression[] operands, Expression[] results, int lo, int hi, Task parent) {
+            this.operands = operands;
+            this.results = results;
+            this.lo = lo;
+            this.hi = hi;
+            this.parent = parent;
+        }
+        
+        @Override
+        protected void compute() {
+            long size = 0;
+            for (int i = lo; i < hi && size <= parent.threshold; i++) {
+                size += Traversal.sizeOf(operands[i]);
+            }
+            if (hi - lo == 1 || size <= parent.threshold) {
+                for (int i = lo; i < hi; i++) {
+                    results[i] = new Task(operands[i], parent.operation, parent.threshold, parent.depth + 1).compute();
+                }
+                return;
+            }
+            int mid = (lo + hi) >>> 1;
+            invokeAll(new Operands(operands, results, lo, mid, parent),
+                      new Operands(operands, results, mid, hi, parent));
+        }
+    }
+}
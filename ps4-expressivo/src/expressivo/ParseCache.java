@@ -0,0 +1,218 @@
+package expressivo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+ * Bounded cache of parsed expressions, keyed on the input string.
+ * 
+ * Commands and Main parse the same few expressions over and over, and Expressions are immutable,
+ * so one parse can be shared by every caller. Entries are spread by hash over independently
+ * locked LruCache segments, so concurrent callers rarely wait on each other; each segment evicts
+ * its least recently used entry when it is full. An entry older than the time to live, if one is
+ * set, is dropped and parsed again when it is next looked up.
+ * 
+ * Inputs that fail to parse are not cached: every call with them throws again.
+ * 
+ * Abstraction function:
+ *  represents the mapping from each input string in some segment to the Expression it parsed to,
+ *  parsed at time created (by clock), with the given lookup counters
+ * 
+ * Rep invariant:
+ *  segments.size() is a power of 2 and the segment capacities sum to capacity
+ *  timeToLiveNanos >= 0, where 0 means entries never expire
+ *  an input is only ever stored in segments.get(segmentOf(input))
+ * 
+ * Safety from rep exposure:
+ *  all fields are private and final, segments is never returned
+ * 
+ * Thread safety:
+ *  segments are thread-safe LruCaches and the counters are LongAdders; the rest is immutable.
+ *  Two threads missing on the same input may both parse it, and the later put wins, which is
+ *  harmless because the results are equal.
+ */
+
+public class ParseCache {
+    /** Number of expressions kept by the default cache. */
+    public static final int DEFAULT_CAPACITY = 10_000;
+    
+    private static final int MAX_SEGMENTS = 16;
+    
+    private static final ParseCache DEFAULT = new ParseCache(DEFAULT_CAPACITY, 0, TimeUnit.NANOSECONDS);
+    
+    private final List<LruCache<String, Entry>> segments;
+    private final int capacity;
+    private final long timeToLiveNanos;
+    private final LongSupplier clock;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    
+    /**
+     * Make a cache whose entries never expire.
+     * @param capacity maximum number of expressions kept, must be positive
+     */
+    public ParseCache(int capacity) {
+        this(capacity, 0, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * @param capacity maximum number of expressions kept, must be positive
+     * @param timeToLive how long an entry stays valid after it is parsed, or 0 to never expire
+     * @param unit unit of timeToLive
+     */
+    public ParseCache(int capacity, long timeToLive, TimeUnit unit) {
+        this(capacity, unit.toNanos(timeToLive), System::nanoTime);
+    }
+    
+    /**
+     * @param capacity maximum number of expressions kept, must be positive
+     * @param timeToLiveNanos nanoseconds an entry stays valid after it is parsed, or 0 to never expire
+     * @param clock source of the current time in nanoseconds
+     */
+    ParseCache(int capacity, long timeToLiveNanos, LongSupplier clock) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        if (timeToLiveNanos < 0) {
+            throw new IllegalArgumentException("time to live must not be negative: " + timeToLiveNanos);
+        }
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 <= capacity) {
+            count *= 2;
+        }
+        this.segments = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            segments.add(new LruCache<String, Entry>(capacity / count + (i < capacity % count ? 1 : 0)));
+        }
+        this.capacity = capacity;
+        this.timeToLiveNanos = timeToLiveNanos;
+        this.clock = clock;
+    }
+    
+    /**
+     * @return the cache shared by Commands and Main, with DEFAULT_CAPACITY and no expiry
+     */
+    public static ParseCache getDefault() {
+        return DEFAULT;
+    }
+    
+    /**
+     * Parse an expression, or return the result of an earlier parse of the same input.
+     * @param input expression to parse, as defined in the PS1 handout.
+     * @return expression AST for the input
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public Expression parse(String input) {
+        final LruCache<String, Entry> segment = segments.get(segmentOf(input));
+        final long now = timeToLiveNanos > 0 ? clock.getAsLong() : 0;
+        final Entry entry = segment.get(input);
+        if (entry != null) {
+            if (timeToLiveNanos == 0 || now - entry.created < timeToLiveNanos) {
+                hits.increment();
+                return entry.expression;
+            }
+            segment.remove(input);
+            expirations.increment();
+        }
+        misses.increment();
+        final Expression expression = Expression.parse(input);
+        segment.put(input, new Entry(expression, now));
+        return expression;
+    }
+    
+    /**
+     * Drop every cached expression. The counters are kept.
+     */
+    public void clear() {
+        for (LruCache<String, Entry> segment : segments) {
+            segment.clear();
+        }
+    }
+    
+    /**
+     * @return maximum number of expressions kept
+     */
+    public int capacity() {
+        return capacity;
+    }
+    
+    /**
+     * @return number of cached expressions, some of which may have expired
+     */
+    public int size() {
+        int size = 0;
+        for (LruCache<String, Entry> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+    
+    /**
+     * @return number of parse calls answered from the cache
+     */
+    public long hits() {
+        return hits.sum();
+    }
+    
+    /**
+     * @return number of parse calls that had to parse, including those that found an expired entry
+     */
+    public long misses() {
+        return misses.sum();
+    }
+    
+    /**
+     * @return hits() / (hits() + misses()), or 0 if there have been no parse calls
+     */
+    public double hitRate() {
+        final long hits = hits();
+        final long lookups = hits + misses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+    
+    /**
+     * @return number of entries dropped to make room for new ones
+     */
+    public long evictions() {
+        long evictions = 0;
+        for (LruCache<String, Entry> segment : segments) {
+            evictions += segment.evictions();
+        }
+        return evictions;
+    }
+    
+    /**
+     * @return number of entries dropped because they outlived the time to live
+     */
+    public long expirations() {
+        return expirations.sum();
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("ParseCache(%d/%d entries, hit rate %.3f, %d evictions, %d expirations)",
+                size(), capacity, hitRate(), evictions(), expirations());
+    }
+    
+    private int segmentOf(String input) {
+        final int h = input.hashCode();
+        return (h ^ (h >>> 16)) & (segments.size() - 1);
+    }
+    
+    /*
+     * A parsed expression and the time it was parsed.
+     */
+    private static class Entry {
+        final Expression expression;
+        final long created;
+        
+        Entry(Expression expression, long created) {
+            this.expression = expression;
+            this.created = created;
+        }
+    }
+}
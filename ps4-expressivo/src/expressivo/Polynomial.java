@@ -0,0 +1,375 @@
+package expressivo;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * Canonical polynomial normal form of an Expression.
+ *
+ * A polynomial is stored sparsely as a list of terms, each a coefficient times a monomial. A
+ * monomial is an exponent vector over the polynomial's variables. Like terms are always collected
+ * and terms with a zero coefficient are dropped, so every polynomial has exactly one
+ * representation. Differentiation and substitution then take time proportional to the number of
+ * terms, no matter how large the Expression tree they came from.
+ *
+ * Exponents are stored row-major in one int[] (term t, variable v at t*width + v) and coefficients
+ * in a parallel double[], so a polynomial holds no boxed numbers and no per-term objects.
+ *
+ * Variables are kept in alphabetical order, so equal polynomials print the same way no matter how
+ * the original expressions were written.
+ *
+ * Abstraction function:
+ *  represents the sum over t in 0..size-1 of
+ *      coefficients[t] * product over v of variables[v]^exponents[t*width + v]
+ *
+ * Rep invariant:
+ *  width == variables.length, variables are sorted and distinct
+ *  exponents.length == size * width, coefficients.length == size
+ *  all exponents are nonnegative, all coefficients are nonzero
+ *  no two terms have the same exponent vector
+ *  terms are sorted by compareTerms (highest total degree first)
+ *
+ * Safety from rep exposure:
+ *  all fields are private and final, and arrays are never returned or shared with clients
+ */
+
+public class Polynomial {
+    private final String[] variables;
+    private final int width;
+    private final int size;
+    private final int[] exponents;
+    private final double[] coefficients;
+    
+    private Polynomial(String[] variables, int size, int[] exponents, double[] coefficients) {
+        this.variables = variables;
+        this.width = variables.length;
+        this.size = size;
+        this.exponents = exponents;
+        this.coefficients = coefficients;
+        checkRep();
+    }
+    
+    private void checkRep() {
+        assert exponents.length == size * width;
+        assert coefficients.length == size;
+        for (int t = 0; t < size; t++) {
+            assert coefficients[t] != 0;
+            assert t == 0 || compareTerms(exponents, (t - 1) * width, exponents, t * width, width) < 0;
+        }
+    }
+    
+    /**
+     * Convert an expression to normal form.
+     * @param expression any expression
+     * @return the polynomial equal to expression, with like terms collected
+     */
+    public static Polynomial fromExpression(Expression expression) {
+        expression = Derivative.force(expression);
+        Map<String, Integer> slots = new TreeMap<>();
+        collectVariables(expression, slots);
+        String[] variables = slots.keySet().toArray(new String[slots.size()]);
+        for (int v = 0; v < variables.length; v++) {
+            slots.put(variables[v], v);
+        }
+        Terms terms = convert(expression, slots);
+        return terms.toPolynomial(variables);
+    }
+    
+    /**
+     * @param expression any expression
+     * @return a compact expression equal to expression, with like terms collected
+     */
+    public static Expression normalize(Expression expression) {
+        return fromExpression(expression).toExpression();
+    }
+    
+    /**
+     * @return number of terms with a nonzero coefficient
+     */
+    public int termCount() {
+        return size;
+    }
+    
+    /**
+     * @param var the variable to take the derivative with respect to
+     * @return the derivative of this polynomial with respect to var
+     */
+    public Polynomial differentiate(String var) {
+        int v = indexOf(var);
+        Terms result = new Terms(width);
+        if (v < 0) {
+            return result.toPolynomial(variables);
+        }
+        int[] exponent = new int[width];
+        for (int t = 0; t < size; t++) {
+            int power = exponents[t * width + v];
+            if (power > 0) {
+                System.arraycopy(exponents, t * width, exponent, 0, width);
+                exponent[v] = power - 1;
+                result.add(exponent, 0, coefficients[t] * power);
+            }
+        }
+        return result.toPolynomial(variables);
+    }
+    
+    /**
+     * @param env maps variables to values
+     * @return this polynomial with every variable in env replaced by its value, like terms collected
+     */
+    public Polynomial simplify(Map<String, Double> env) {
+        double[] values = new double[width];
+        boolean[] bound = new boolean[width];
+        for (int v = 0; v < width; v++) {
+            Double value = env.get(variables[v]);
+            if (value != null) {
+                values[v] = value;
+                bound[v] = true;
+            }
+        }
+        Terms result = new Terms(width);
+        int[] exponent = new int[width];
+        for (int t = 0; t < size; t++) {
+            double coefficient = coefficients[t];
+            for (int v = 0; v < width; v++) {
+                int power = exponents[t * width + v];
+                if (bound[v] && power > 0) {
+                    for (int i = 0; i < power; i++) {
+                        coefficient *= values[v];
+                    }
+                    exponent[v] = 0;
+                } else {
+                    exponent[v] = power;
+                }
+            }
+            result.add(exponent, 0, coefficient);
+        }
+        return result.toPolynomial(variables);
+    }
+    
+    /**
+     * @return an expression equal to this polynomial: a left-folded Sum of terms, each a left-folded
+     *         Product of the coefficient (omitted if it is 1) followed by each variable repeated
+     *         exponent times; Scalar 0 if there are no terms
+     */
+    public Expression toExpression() {
+        if (size == 0) {
+            return new Scalar(0);
+        }
+        Expression result = null;
+        for (int t = 0; t < size; t++) {
+            Expression term = null;
+            if (coefficients[t] != 1) {
+                term = new Scalar(coefficients[t]);
+            }
+            for (int v = 0; v < width; v++) {
+                for (int i = 0; i < exponents[t * width + v]; i++) {
+                    Expression factor = new Variable(variables[v]);
+                    term = term == null ? factor : new Product(term, factor);
+                }
+            }
+            if (term == null) {
+                term = new Scalar(coefficients[t]);
+            }
+            result = result == null ? term : new Sum(result, term);
+        }
+        return result;
+    }
+    
+    @Override
+    public String toString() {
+        return toExpression().toString();
+    }
+    
+    private int indexOf(String var) {
+        for (int v = 0; v < width; v++) {
+            if (variables[v].equals(var)) return v;
+        }
+        return -1;
+    }
+    
+    private static void collectVariables(Expression expression, final Map<String, Integer> slots) {
+        Traversal.postOrder(expression, new ExpressionVisitor<Void>() {
+            public Void visitScalar(Scalar scalar) {
+                return null;
+            }
+            public Void visitVariable(Variable variable) {
+                if (!slots.containsKey(variable.getName())) {
+                    slots.put(variable.getName(), slots.size());
+                }
+                return null;
+            }
+            public Void visitSum(Sum sum, List<Void> operands) {
+                return null;
+            }
+            public Void visitProduct(Product product, List<Void> operands) {
+                return null;
+            }
+        });
+    }
+    
+    private static Terms convert(Expression expression, final Map<String, Integer> slots) {
+        final int width = slots.size();
+        return Traversal.postOrder(expression, new ExpressionVisitor<Terms>() {
+            public Terms visitScalar(Scalar scalar) {
+                Terms result = new Terms(width);
+                result.add(new int[width], 0, scalar.getValue());
+                return result;
+            }
+            public Terms visitVariable(Variable variable) {
+                Terms result = new Terms(width);
+                int[] exponent = new int[width];
+                exponent[slots.get(variable.getName())] = 1;
+                result.add(exponent, 0, 1);
+                return result;
+            }
+            public Terms visitSum(Sum sum, List<Terms> operands) {
+                Terms result = operands.get(0);
+                for (int k = 1; k < operands.size(); k++) {
+                    Terms right = operands.get(k);
+                    for (int t = 0; t < right.size; t++) {
+                        result.add(right.exponents, t * width, right.coefficients[t]);
+                    }
+                }
+                return result;
+            }
+            public Terms visitProduct(Product product, List<Terms> operands) {
+                Terms result = operands.get(0);
+                int[] exponent = new int[width];
+                for (int k = 1; k < operands.size(); k++) {
+                    Terms left = result;
+                    Terms right = operands.get(k);
+                    result = new Terms(width);
+                    for (int i = 0; i < left.size; i++) {
+                        for (int j = 0; j < right.size; j++) {
+                            for (int v = 0; v < width; v++) {
+                                exponent[v] = left.exponents[i * width + v] + right.exponents[j * width + v];
+                            }
+                            result.add(exponent, 0, left.coefficients[i] * right.coefficients[j]);
+                        }
+                    }
+                }
+                return result;
+            }
+        });
+    }
+    
+    /**
+     * Graded order on exponent vectors: higher total degree first, then lexicographically
+     * larger exponents first.
+     * @return negative if the term at offset a of as comes before the term at offset b of bs,
+     *         positive if after, 0 if the exponent vectors are equal
+     */
+    private static int compareTerms(int[] as, int a, int[] bs, int b, int width) {
+        int degreeA = 0;
+        int degreeB = 0;
+        for (int v = 0; v < width; v++) {
+            degreeA += as[a + v];
+            degreeB += bs[b + v];
+        }
+        if (degreeA != degreeB) {
+            return Integer.compare(degreeB, degreeA);
+        }
+        for (int v = 0; v < width; v++) {
+            if (as[a + v] != bs[b + v]) {
+                return Integer.compare(bs[b + v], as[a + v]);
+            }
+        }
+        return 0;
+    }
+    
+    /*
+     * Mutable accumulator of terms, with an open-addressing hash index from exponent vector to
+     * term so that like terms are collected as they are added.
+     */
+    private static class Terms {
+        final int width;
+        int size = 0;
+        int[] exponents;
+        double[] coefficients;
+        int[] index; // term + 1, or 0 for an empty bucket; length is a power of 2
+        
+        Terms(int width) {
+            this.width = width;
+            this.exponents = new int[4 * width];
+            this.coefficients = new double[4];
+            this.index = new int[8];
+        }
+        
+        /**
+         * Add coefficient times the monomial at offset from in source.
+         */
+        void add(int[] source, int from, double coefficient) {
+            int mask = index.length - 1;
+            int bucket = hash(source, from) & mask;
+            while (index[bucket] != 0) {
+                int t = index[bucket] - 1;
+                if (sameExponents(t, source, from)) {
+                    coefficients[t] += coefficient;
+                    return;
+                }
+                bucket = (bucket + 1) & mask;
+            }
+            if (size == coefficients.length) {
+                exponents = Arrays.copyOf(exponents, 2 * size * width);
+                coefficients = Arrays.copyOf(coefficients, 2 * size);
+            }
+            System.arraycopy(source, from, exponents, size * width, width);
+            coefficients[size] = coefficient;
+            size++;
+            index[bucket] = size;
+            if (2 * size > index.length) {
+                rehash();
+            }
+        }
+        
+        private boolean sameExponents(int t, int[] source, int from) {
+            for (int v = 0; v < width; v++) {
+                if (exponents[t * width + v] != source[from + v]) return false;
+            }
+            return true;
+        }
+        
+        private int hash(int[] source, int from) {
+            int h = 0;
+            for (int v = 0; v < width; v++) {
+                h = 31 * h + source[from + v];
+            }
+            return h ^ (h >>> 16);
+        }
+        
+        private void rehash() {
+            index = new int[index.length * 2];
+            int mask = index.length - 1;
+            for (int t = 0; t < size; t++) {
+                int bucket = hash(exponents, t * width) & mask;
+                while (index[bucket] != 0) {
+                    bucket = (bucket + 1) & mask;
+                }
+                index[bucket] = t + 1;
+            }
+        }
+        
+        /**
+         * @return the polynomial of the nonzero terms, sorted
+         */
+        Polynomial toPolynomial(String[] variables) {
+            Integer[] order = new Integer[size];
+            int kept = 0;
+            for (int t = 0; t < size; t++) {
+                if (coefficients[t] != 0) {
+                    order[kept++] = t;
+                }
+            }
+            Arrays.sort(order, 0, kept, (a, b) -> compareTerms(exponents, a * width, exponents, b * width, width));
+            int[] sortedExponents = new int[kept * width];
+            double[] sortedCoefficients = new double[kept];
+            for (int i = 0; i < kept; i++) {
+                System.arraycopy(exponents, order[i] * width, sortedExponents, i * width, width);
+                sortedCoefficients[i] = coefficients[order[i]];
+            }
+            return new Polynomial(variables, kept, sortedExponents, sortedCoefficients);
+        }
+    }
+}
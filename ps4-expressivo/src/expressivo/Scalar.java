@@ -7,28 +7,42 @@ import java.util.Map;
  *  Represents a scalar value of value
  *  
  * Rep Invariant:
+ *  hashCode == StructuralHash.scalar(value)
  * 
  * Safety from rep exposure:
- *  value is private and final and never returned
+ *  value is private and final, and getValue returns it as a primitive copy
  *  the constructor takes in a double which is passed by copy
  *  equals takes in an Object which is never changed or assigned to instance variables
  */
 
 public class Scalar implements Expression {
     private final double value;
+    private final int hashCode;
     
     public Scalar(double value) {
         this.value = value;
+        this.hashCode = StructuralHash.scalar(value);
+    }
+    
+    /**
+     * @return the numeric value of this scalar
+     */
+    public double getValue() {
+        return value;
     }
     
     public Expression differentiate(String var) {
-        return new Scalar(0.0);
+        return ExpressionFactory.scalar(0.0);
     }
     
     public Expression simplify(Map<String, Double> env) {
         return this;
     }
     
+    public Expression simplify(Environment env) {
+        return this;
+    }
+    
     @Override
     public String toString() {
         return Double.toString(value);
@@ -36,6 +50,7 @@ public class Scalar implements Expression {
     
     @Override
     public boolean equals(Object that) {
+        if (that instanceof Derivative) return that.equals(this);
         if (!(that instanceof Scalar)) return false;
         Scalar thatScalar = (Scalar) that;
         return this.value == thatScalar.value;
@@ -43,6 +58,6 @@ public class Scalar implements Expression {
     
     @Override
     public int hashCode() {
-        return (int) value;
+        return hashCode;
     }
 }
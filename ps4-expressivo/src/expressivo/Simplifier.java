@@ -0,0 +1,91 @@
+package expressivo;
+
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Post-order visitor computing Expression.simplify: substitutes bound variables and folds the
+ * Scalar operands of every Sum or Product into a single Scalar, in one pass over the operands.
+ * 
+ * The folded Scalar takes the place of the first Scalar operand, and Scalars are combined from
+ * left to right, so a Sum or Product whose operands all simplify to Scalars becomes exactly the
+ * Scalar that evaluating it as a left-folded binary tree gives.
+ * 
+ * Bindings come either from a caller's Map, which is read in place with one get per Variable
+ * node and never copied, or from an Environment.
+ */
+
+class Simplifier implements ExpressionVisitor<Expression> {
+    private final Map<String, Double> map; // null if the bindings are in env
+    private final Environment env; // null if the bindings are in map
+    
+    Simplifier(Map<String, Double> map) {
+        this.map = map;
+        this.env = null;
+    }
+    
+    Simplifier(Environment env) {
+        this.map = null;
+        this.env = env;
+    }
+    
+    public Expression visitScalar(Scalar scalar) {
+        return scalar;
+    }
+    
+    public Expression visitVariable(Variable variable) {
+        return map != null ? variable.simplify(map) : variable.simplify(env);
+    }
+    
+    /**
+     * @param sum the Sum being simplified, or null if there is none
+     */
+    public Expression visitSum(Sum sum, List<Expression> operands) {
+        return fold(sum, operands, OperandArray.SUM);
+    }
+    
+    /**
+     * @param product the Product being simplified, or null if there is none
+     */
+    public Expression visitProduct(Product product, List<Expression> operands) {
+        return fold(product, operands, OperandArray.PRODUCT);
+    }
+    
+    private static Expression fold(Expression node, List<Expression> operands, int kind) {
+        final int count = operands.size();
+        int firstScalar = -1;
+        int scalars = 0;
+        double constant = 0;
+        boolean unchanged = node != null;
+        for (int i = 0; i < count; i++) {
+            final Expression operand = operands.get(i);
+            if (operand instanceof Scalar) {
+                final double value = ((Scalar) operand).getValue();
+                if (scalars == 0) {
+                    firstScalar = i;
+                    constant = value;
+                } else {
+                    constant = kind == OperandArray.SUM ? constant + value : constant * value;
+                }
+                scalars++;
+            }
+            unchanged = unchanged && operand == Traversal.operand(node, i);
+        }
+        if (scalars == count) {
+            return new Scalar(constant);
+        }
+        if (unchanged && scalars <= 1) {
+            return node;
+        }
+        final OperandArray.Builder builder = new OperandArray.Builder(kind);
+        for (int i = 0; i < count; i++) {
+            final Expression operand = operands.get(i);
+            if (i == firstScalar) {
+                builder.add(scalars == 1 ? operand : new Scalar(constant));
+            } else if (!(operand instanceof Scalar)) {
+                builder.add(operand);
+            }
+        }
+        return builder.build();
+    }
+}
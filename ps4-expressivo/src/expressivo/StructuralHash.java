@@ -0,0 +1,64 @@
+package expressivo;
+
+/*
+ * The structural hash codes of Expressions, computed once when a node is constructed.
+ *
+ * A hash code is a function of the node's structure only, so equal Expressions get equal hash
+ * codes however they were built. It distinguishes the operator and the order of the operands, so
+ * x + y, y + x, x * y and y * x hash differently, and it is well mixed, so that small values,
+ * fractions and similar names spread over all 32 bits instead of piling up in a few buckets.
+ *
+ * The hash code of a Sum or Product is a left fold of combine over its operands, exactly as if it
+ * were the binary tree it stands for, so a node with n operands hashes the same as the n-1 nested
+ * binary nodes it is equal to, and appending an operand needs only the hash code of the node it
+ * extends.
+ */
+
+final class StructuralHash {
+    private static final int SCALAR_SEED = 0x5ca1a7;
+    private static final int VARIABLE_SEED = 0x7a71ab1e;
+    private static final int[] OPERATOR_SEEDS = { 0x50b5, 0x9e0d }; // by OperandArray kind
+    private static final int GOLDEN = 0x9e3779b9;
+    
+    private StructuralHash() {}
+    
+    /**
+     * @param value value of a Scalar
+     * @return hash code of the Scalar; 0.0 and -0.0, which are equal Scalars, hash the same
+     */
+    static int scalar(double value) {
+        long bits = Double.doubleToLongBits(value + 0.0); // -0.0 + 0.0 == +0.0
+        return mix((int) (bits ^ (bits >>> 32)) ^ SCALAR_SEED);
+    }
+    
+    /**
+     * @param name name of a Variable
+     * @return hash code of the Variable
+     */
+    static int variable(String name) {
+        return mix(name.hashCode() ^ VARIABLE_SEED);
+    }
+    
+    /**
+     * @param kind OperandArray.SUM or OperandArray.PRODUCT
+     * @param left hash code of the left operand
+     * @param right hash code of the right operand
+     * @return hash code of the binary node of kind over those operands
+     */
+    static int combine(int kind, int left, int right) {
+        return mix(left * GOLDEN + right + OPERATOR_SEEDS[kind]);
+    }
+    
+    /**
+     * Finalization step of MurmurHash3: a bijection on int in which every input bit affects every
+     * output bit.
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
@@ -1,72 +1,66 @@
 package expressivo;
 
-import java.util.Map;
-
 /*
+ * An n-ary Sum; see NaryExpression, which holds the operands.
+ *
  * Abstraction function:
- *  represents an expression of e1 + e2
+ *  represents the expression ((o0 + o1) + ...) + on-1, where o0..on-1 are the operands,
+ *  i.e. getLeft() + getRight()
  *  
  * Rep invariant:
+ *  as for NaryExpression, with kind() == OperandArray.SUM
  * 
  * Safety from rep exposure:
- *  Expressions are immutable
- *  constructor takes in two Expressions, which are immutable
- *  equals takes in an Object which is never changed or assigned to instance variables
+ *  as for NaryExpression
  */
 
-public class Sum implements Expression {
-    private final Expression e1;
-    private final Expression e2;
-    
-    public Sum(Expression e1, Expression e2) {
-        this.e1 = e1;
-        this.e2 = e2;
-    }
-    
-    public Expression differentiate(String var) {
-        return new Sum(e1.differentiate(var), e2.differentiate(var));
-    }
-    
-    public Expression simplify(Map<String, Double> env) {
-        Expression simplified_e1 = e1.simplify(env);
-        Expression simplified_e2 = e2.simplify(env);
-        if (isDouble(simplified_e1.toString()) && isDouble(simplified_e2.toString())) {
-            return new Scalar(Double.parseDouble(simplified_e1.toString()) 
-                            + Double.parseDouble(simplified_e2.toString()));
-        } else {
-            return new Sum(simplified_e1, simplified_e2);
-        }
-    }
+public class Sum extends NaryExpression {
     
     /**
-     * 
-     * @param s string
-     * @return true if s is a string consisting of only a double. false otherwise
+     * Make the Sum e1 + e2. If e1 is a Sum, the result has the operands of e1 followed by e2.
+     * @param e1 left operand
+     * @param e2 right operand
      */
-    private boolean isDouble(String s) {
-        try {
-            Double.parseDouble(s);
-            return true;
-        } catch(NumberFormatException e) {
-            return false;
-        }
+    public Sum(Expression e1, Expression e2) {
+        super(e1, e2);
     }
     
-    public String toString() {
-        return "(" + e1.toString() + " + " + e2.toString() + ")";
+    Sum(Expression first, OperandArray operands, int count, Expression last, int hashCode, int size) {
+        super(first, operands, count, last, hashCode, size);
     }
     
     @Override
-    public boolean equals(Object that) {
-        if (!(that instanceof Sum)) return false;
-        Sum thatSum = (Sum) that;
-        if (!this.e1.equals(thatSum.e1)) return false;
-        if (!this.e2.equals(thatSum.e2)) return false;
-        return true;
+    int kind() {
+        return OperandArray.SUM;
     }
     
     @Override
-    public int hashCode() {
-        return e1.hashCode() + e2.hashCode();
+    Sum make(Expression first, OperandArray operands, int count, Expression last, int hashCode, int size) {
+        return new Sum(first, operands, count, last, hashCode, size);
+    }
+    
+    /**
+     * Builds a Sum of any number of operands in time proportional to that number.
+     */
+    public static class Builder {
+        private final OperandArray.Builder builder = new OperandArray.Builder(OperandArray.SUM);
+        
+        /**
+         * @param operand next operand, to the right of those added so far
+         * @return this builder
+         */
+        public Builder add(Expression operand) {
+            builder.add(operand);
+            return this;
+        }
+        
+        /**
+         * @return the Sum of the operands added so far, from left to right, or the operand itself
+         *         if only one was added
+         * @throws IllegalStateException if no operand was added
+         */
+        public Expression build() {
+            return builder.build();
+        }
     }
 }
@@ -0,0 +1,208 @@
+package expressivo;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.RandomAccess;
+
+/*
+ * Stack-safe traversals of Expression trees.
+ * 
+ * Every operation that walks a whole tree (simplify, differentiate, equals) runs here with an
+ * explicit, array-backed work stack instead of the call stack, so trees of any depth can be
+ * handled; toString does the same in ExpressionWriter. Parsing "x + x + ... + x" with a million
+ * terms produces a single Sum with a million operands, but "x + (x + (... + x))" is a million-deep
+ * right spine of Sum nodes, which overflows the call stack of any recursive implementation.
+ * 
+ * hashCode needs no traversal: Sum and Product compute theirs from their operands' when they are
+ * constructed.
+ * 
+ * A Derivative root is replaced by its tree before it is walked; it is never found below the root.
+ */
+
+public class Traversal {
+    private static final int INITIAL_CAPACITY = 32;
+    
+    private Traversal() {}
+    
+    /**
+     * Run a post-order computation over a tree.
+     * @param root tree to visit
+     * @param visitor computation to run; for each Sum and Product node, its operands are visited
+     *                from left to right before the node itself, unless visitor.lookup returns a
+     *                result
+     * @return visitor's result for root
+     */
+    public static <R> R postOrder(Expression root, ExpressionVisitor<R> visitor) {
+        root = Derivative.force(root);
+        Expression[] nodes = new Expression[INITIAL_CAPACITY];
+        boolean[] operandsDone = new boolean[INITIAL_CAPACITY];
+        Object[] results = new Object[INITIAL_CAPACITY];
+        int nodeCount = 0;
+        int resultCount = 0;
+        final OperandResults<R> operandResults = new OperandResults<>();
+        
+        nodes[nodeCount++] = root;
+        while (nodeCount > 0) {
+            nodeCount--;
+            final Expression node = nodes[nodeCount];
+            final boolean done = operandsDone[nodeCount];
+            nodes[nodeCount] = null;
+            
+            final R result;
+            if (done) {
+                final int operands = operandCount(node);
+                resultCount -= operands;
+                operandResults.view(results, resultCount, operands);
+                if (node instanceof Sum) {
+                    result = visitor.visitSum((Sum) node, operandResults);
+                } else {
+                    result = visitor.visitProduct((Product) node, operandResults);
+                }
+                Arrays.fill(results, resultCount, resultCount + operands, null);
+            } else if (node instanceof Sum || node instanceof Product) {
+                R known = visitor.lookup(node);
+                if (known == null) {
+                    final int operands = operandCount(node);
+                    if (nodeCount + operands + 1 > nodes.length) {
+                        nodes = Arrays.copyOf(nodes, Math.max(nodes.length * 2, nodeCount + operands + 1));
+                        operandsDone = Arrays.copyOf(operandsDone, nodes.length);
+                    }
+                    nodes[nodeCount] = node;
+                    operandsDone[nodeCount++] = true;
+                    for (int i = operands - 1; i >= 0; i--) {
+                        nodes[nodeCount] = operand(node, i);
+                        operandsDone[nodeCount++] = false;
+                    }
+                    continue;
+                }
+                result = known;
+            } else if (node instanceof Scalar) {
+                result = visitor.visitScalar((Scalar) node);
+            } else if (node instanceof Variable) {
+                result = visitor.visitVariable((Variable) node);
+            } else {
+                throw new IllegalArgumentException("unknown expression variant: " + node.getClass());
+            }
+            
+            if (resultCount == results.length) {
+                results = Arrays.copyOf(results, results.length * 2);
+            }
+            results[resultCount++] = result;
+        }
+        
+        @SuppressWarnings("unchecked")
+        R result = (R) results[0];
+        return result;
+    }
+    
+    /**
+     * @param a an expression
+     * @param b an expression
+     * @return true if and only if a and b are structurally equal, as defined by Expression.equals
+     */
+    public static boolean equal(Expression a, Expression b) {
+        Expression[] pairs = new Expression[INITIAL_CAPACITY];
+        int count = 0;
+        
+        pairs[count++] = Derivative.force(a);
+        pairs[count++] = Derivative.force(b);
+        while (count > 0) {
+            final Expression y = pairs[--count];
+            final Expression x = pairs[--count];
+            pairs[count] = null;
+            pairs[count + 1] = null;
+            if (x == y) {
+                continue;
+            }
+            if (x.getClass() != y.getClass() || x.hashCode() != y.hashCode()) {
+                return false;
+            }
+            if (x instanceof Sum || x instanceof Product) {
+                final int operands = operandCount(x);
+                if (operands != operandCount(y)) {
+                    return false;
+                }
+                // nodes over the same storage share all operands but the last, e.g. a prefix of a
+                // Product and the copy of it that the product rule builds
+                final OperandArray storage = operandsOf(x);
+                final int shared = storage != null && storage == operandsOf(y) ? operands - 1 : 0;
+                if (count + 2 * (operands - shared) > pairs.length) {
+                    pairs = Arrays.copyOf(pairs, Math.max(pairs.length * 2, count + 2 * (operands - shared)));
+                }
+                for (int i = operands - 1; i >= shared; i--) {
+                    pairs[count++] = operand(x, i);
+                    pairs[count++] = operand(y, i);
+                }
+            } else if (!x.equals(y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * @param expression any expression
+     * @return number of nodes in expression, or Integer.MAX_VALUE if there are more than that
+     */
+    public static int sizeOf(Expression expression) {
+        expression = Derivative.force(expression);
+        if (expression instanceof NaryExpression) return ((NaryExpression) expression).getSize();
+        return 1;
+    }
+    
+    /**
+     * @param node a Sum or Product
+     * @return number of operands of node
+     */
+    static int operandCount(Expression node) {
+        return ((NaryExpression) node).getOperandCount();
+    }
+    
+    /**
+     * @param node a Sum or Product
+     * @return storage holding all operands of node but the last, or null if it has only two
+     */
+    private static OperandArray operandsOf(Expression node) {
+        return ((NaryExpression) node).operands();
+    }
+    
+    /**
+     * @param node a Sum or Product
+     * @param i index of an operand of node
+     * @return operand i of node
+     */
+    static Expression operand(Expression node, int i) {
+        return ((NaryExpression) node).getOperand(i);
+    }
+    
+    /*
+     * Read-only view of a range of the results stack, passed to visitSum and visitProduct.
+     * One view is reused for every node of a traversal.
+     */
+    private static class OperandResults<R> extends AbstractList<R> implements RandomAccess {
+        private Object[] results;
+        private int from;
+        private int size;
+        
+        void view(Object[] results, int from, int size) {
+            this.results = results;
+            this.from = from;
+            this.size = size;
+        }
+        
+        @Override
+        public R get(int i) {
+            if (i < 0 || i >= size) {
+                throw new IndexOutOfBoundsException("operand " + i + " of " + size);
+            }
+            @SuppressWarnings("unchecked")
+            R result = (R) results[from + i];
+            return result;
+        }
+        
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
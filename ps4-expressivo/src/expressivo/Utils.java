@@ -21,29 +21,17 @@ public class Utils {
         case VARIABLE:
             return new Variable(node.getContents());
         case SUM:
-            boolean first = true;
-            Expression result = null;
+            Sum.Builder sum = new Sum.Builder();
             for (ParseTree<ExpressionGrammar> child: getNonWhitespaceChildren(node)) {
-                if (first) {
-                    result = buildExpression(child);
-                    first = false;
-                } else {
-                    result = new Sum(result, buildExpression(child));
-                }
+                sum.add(buildExpression(child));
             }
-            return result;
+            return sum.build();
         case PRODUCT:
-            boolean _first = true;
-            Expression _result = null;
+            Product.Builder product = new Product.Builder();
             for (ParseTree<ExpressionGrammar> child: getNonWhitespaceChildren(node)) {
-                if (_first) {
-                    _result = buildExpression(child);
-                    _first = false;
-                } else {
-                    _result = new Product(_result, buildExpression(child));
-                }
+                product.add(buildExpression(child));
             }
-            return _result;
+            return product.build();
         }
         throw new RuntimeException("You should never reach here: " + node);
             
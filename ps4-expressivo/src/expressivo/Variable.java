@@ -7,28 +7,47 @@ import java.util.Map;
  *  represents a variable of name name
  *  
  * Rep invarariant:
+ *  hashCode == StructuralHash.variable(name)
  * 
  * Safety from rep exposure:
- *  name is private and final and never returned
+ *  name is private and final, and getName returns it as an immutable String
  *  the contructor takes in a string, which is immutable
  *  equals takes in an Object which is never changed or assigned to instance variables
  */
 
 public class Variable implements Expression {
     private final String name;
+    private final int hashCode;
     
     public Variable(String name) {
         this.name = name;
+        this.hashCode = StructuralHash.variable(name);
+    }
+    
+    /**
+     * @return the name of this variable
+     */
+    public String getName() {
+        return name;
     }
     
     public Expression differentiate(String var) {
-        if (var.equals(name)) return new Scalar(1.0);
-        else return new Scalar(0.0);
+        if (var.equals(name)) return ExpressionFactory.scalar(1.0);
+        else return ExpressionFactory.scalar(0.0);
     }
     
     public Expression simplify(Map<String, Double> env) {
-        if (env.containsKey(name)) {
-            return new Scalar(env.get(name));
+        Double value = env.get(name);
+        if (value != null) {
+            return new Scalar(value);
+        }
+        return this;
+    }
+    
+    public Expression simplify(Environment env) {
+        int slot = env.slotOf(name);
+        if (slot >= 0 && env.isBound(slot)) {
+            return new Scalar(env.get(slot));
         }
         return this;
     }
@@ -40,6 +59,7 @@ public class Variable implements Expression {
     
     @Override
     public boolean equals(Object that) {
+        if (that instanceof Derivative) return that.equals(this);
         if (!(that instanceof Variable)) return false;
         Variable thatVariable = (Variable) that;
         return this.name.equals(thatVariable.name);
@@ -47,6 +67,6 @@ public class Variable implements Expression {
     
     @Override
     public int hashCode() {
-        return name.hashCode();
+        return hashCode;
     }
 }
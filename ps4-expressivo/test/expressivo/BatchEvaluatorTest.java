@@ -0,0 +1,104 @@
+package expressivo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+
+import org.junit.Test;
+
+/**
+ * Tests for BatchEvaluator.
+ */
+public class BatchEvaluatorTest {
+    
+    /*
+     * Testing strategy:
+     *  rows = 0, less than one block, several blocks with a partial last block
+     *  columns = double[], direct DoubleBuffer with nonzero position
+     *  expression = constant, one variable, several variables, repeated variables
+     *  result = same value as CompiledExpression for every row
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private static double[][] makeColumns(int count, int rows) {
+        double[][] columns = new double[count][rows];
+        for (int c = 0; c < count; c++) {
+            for (int r = 0; r < rows; r++) {
+                columns[c][r] = (r * 7 + c * 13) % 101 / 10.0;
+            }
+        }
+        return columns;
+    }
+    
+    private void testSameAsCompiled(String input, int rows) {
+        Expression expr = Expression.parse(input);
+        BatchEvaluator batch = BatchEvaluator.compile(expr);
+        CompiledExpression compiled = CompiledExpression.compile(expr);
+        assertArrayEquals(compiled.getVariables(), batch.getVariables());
+        
+        double[][] columns = makeColumns(batch.getVariables().length, rows);
+        double[] output = new double[rows];
+        batch.evaluate(columns, output, rows);
+        
+        double[] row = new double[columns.length];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < columns.length; c++) {
+                row[c] = columns[c][r];
+            }
+            assertEquals(compiled.evaluate(row), output[r], 0);
+        }
+    }
+    
+    @Test
+    public void testNoRows() {
+        testSameAsCompiled("x + 1", 0);
+    }
+    
+    @Test
+    public void testConstant() {
+        testSameAsCompiled("2 * 3 + 1", 10);
+    }
+    
+    @Test
+    public void testPartialBlock() {
+        testSameAsCompiled("x * x + 2 * x + 1", 100);
+    }
+    
+    @Test
+    public void testSeveralBlocks() {
+        testSameAsCompiled("a * b * (c + a) + 0.5 * c * (b + 1) + a", BatchEvaluator.BLOCK_SIZE * 2 + 17);
+    }
+    
+    @Test
+    public void testDirectBuffers() {
+        Expression expr = Expression.parse("x * y + x");
+        BatchEvaluator batch = BatchEvaluator.compile(expr);
+        int rows = BatchEvaluator.BLOCK_SIZE + 5;
+        double[][] columns = makeColumns(2, rows);
+        double[] expected = new double[rows];
+        batch.evaluate(columns, expected, rows);
+        
+        DoubleBuffer[] buffers = new DoubleBuffer[2];
+        for (int c = 0; c < 2; c++) {
+            buffers[c] = ByteBuffer.allocateDirect((rows + 3) * 8).asDoubleBuffer();
+            buffers[c].position(3);
+            buffers[c].mark();
+            buffers[c].put(columns[c]);
+            buffers[c].reset();
+        }
+        DoubleBuffer output = ByteBuffer.allocateDirect(rows * 8).asDoubleBuffer();
+        batch.evaluate(buffers, output, rows);
+        
+        assertEquals(3, buffers[0].position());
+        assertEquals(0, output.position());
+        double[] actual = new double[rows];
+        output.get(actual);
+        assertArrayEquals(expected, actual, 0);
+    }
+}
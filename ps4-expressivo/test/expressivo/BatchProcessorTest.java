@@ -0,0 +1,76 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * Tests for BatchProcessor, the batch mode of Main.
+ */
+public class BatchProcessorTest {
+    
+    /*
+     * Testing strategy:
+     *  threads = 1, several
+     *  input = empty, blank lines, commands before any expression, invalid expressions,
+     *          chains of !d/d, more lines than one chunk
+     *  output = one line per nonblank input, same as one interactive session
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private static String run(String input, int threads) throws IOException {
+        StringWriter out = new StringWriter();
+        new BatchProcessor(threads).run(new BufferedReader(new StringReader(input)), out);
+        return out.toString();
+    }
+    
+    @Test
+    public void testEmptyInput() throws IOException {
+        assertEquals("", run("", 1));
+        assertEquals("", run("\n\n", 4));
+    }
+    
+    @Test
+    public void testSession() throws IOException {
+        String input = "!simplify x=1\n"
+                + "x * x\n"
+                + "\n"
+                + "!d/dx\n"
+                + "!simplify x=2\n"
+                + "4 +\n"
+                + "!simplify x=3\n";
+        String expected = "must enter an expression before using this command\n"
+                + "x * x\n"
+                + "(x * 1.0 + x * 1.0)\n"
+                + "4.0\n"
+                + "expressivo.ExpressionSyntaxException: bad input at offset 3: 4 +\n"
+                + "6.0\n";
+        assertEquals(expected, run(input, 1));
+        assertEquals(expected, run(input, 3));
+    }
+    
+    @Test
+    public void testParallelSameAsSequential() throws IOException {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 5 * BatchProcessor.CHUNK_LINES; i++) {
+            switch (i % 7) {
+            case 0: input.append("x * y + ").append(i).append('\n'); break;
+            case 3: input.append("(bad + \n"); break;
+            case 5: input.append("!simplify x=").append(i).append(" y=2\n"); break;
+            default: input.append("!d/dx\n"); break;
+            }
+        }
+        input.append("still bad +\n!simplify y=1\n");
+        String sequential = run(input.toString(), 1);
+        assertEquals(sequential, run(input.toString(), 4));
+    }
+}
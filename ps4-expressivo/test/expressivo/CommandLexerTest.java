@@ -0,0 +1,160 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import expressivo.Main.CommandSyntaxException;
+
+/**
+ * Tests for CommandLexer and Environment.
+ */
+public class CommandLexerTest {
+    
+    /*
+     * Testing strategy:
+     *  kindOf: each command, expression, command prefix inside an expression
+     *  differentiateVariable: one letter, several letters, trailing spaces; missing variable,
+     *      non-letter after the variable
+     *  simplifyBindings: no assignments, one, several, repeated variable, spaces around '=';
+     *      missing space before an assignment, missing '=', missing value, bad value,
+     *      bad value followed by a syntax error; environment reused between commands (slots kept, bindings unset)
+     *  parseValue: integers, decimals, leading/trailing point, long mantissas, exponents,
+     *      random decimals compared against Double.valueOf
+     *  Environment: set new and existing names, grow past the initial size, clear, toMap
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    @Test
+    public void testKindOf() {
+        assertEquals(CommandLexer.Kind.DIFFERENTIATE, CommandLexer.kindOf("!d/dx"));
+        assertEquals(CommandLexer.Kind.SIMPLIFY, CommandLexer.kindOf("!simplify x=1"));
+        assertEquals(CommandLexer.Kind.EXPRESSION, CommandLexer.kindOf("x + 1"));
+    }
+    
+    @Test
+    public void testDifferentiateVariable() {
+        assertEquals("x", CommandLexer.differentiateVariable("!d/dx"));
+        assertEquals("Foo", CommandLexer.differentiateVariable("!d/dFoo  "));
+    }
+    
+    @Test(expected=CommandSyntaxException.class)
+    public void testDifferentiateMissingVariable() {
+        CommandLexer.differentiateVariable("!d/d ");
+    }
+    
+    @Test(expected=CommandSyntaxException.class)
+    public void testDifferentiateNotLetter() {
+        CommandLexer.differentiateVariable("!d/dx1");
+    }
+    
+    @Test
+    public void testSimplifyBindings() {
+        Environment environment = new Environment();
+        CommandLexer.simplifyBindings("!simplify", environment);
+        assertEquals(0, environment.size());
+        
+        CommandLexer.simplifyBindings("!simplify x=1 yy = 2.5  x= 3 ", environment);
+        assertEquals(2, environment.size());
+        assertEquals(3.0, environment.get(environment.slotOf("x")), 0);
+        assertEquals(2.5, environment.get(environment.slotOf("yy")), 0);
+        
+        final int x = environment.slotOf("x");
+        CommandLexer.simplifyBindings("!simplify z=4", environment);
+        assertEquals(3, environment.size());
+        assertFalse(environment.contains("x"));
+        assertFalse(environment.contains("yy"));
+        assertEquals(4.0, environment.get(environment.slotOf("z")), 0);
+        
+        CommandLexer.simplifyBindings("!simplify x=5", environment);
+        assertEquals(3, environment.size());
+        assertEquals(x, environment.slotOf("x"));
+        assertEquals(5.0, environment.get(x), 0);
+        assertFalse(environment.contains("z"));
+    }
+    
+    @Test(expected=CommandSyntaxException.class)
+    public void testSimplifyMissingSpace() {
+        CommandLexer.simplifyBindings("!simplifyx=1", new Environment());
+    }
+    
+    @Test(expected=CommandSyntaxException.class)
+    public void testSimplifyMissingEquals() {
+        CommandLexer.simplifyBindings("!simplify x 1", new Environment());
+    }
+    
+    @Test(expected=CommandSyntaxException.class)
+    public void testSimplifyMissingValue() {
+        CommandLexer.simplifyBindings("!simplify x=", new Environment());
+    }
+    
+    @Test(expected=NumberFormatException.class)
+    public void testSimplifyBadValue() {
+        CommandLexer.simplifyBindings("!simplify x=1 y=abc", new Environment());
+    }
+    
+    @Test(expected=CommandSyntaxException.class)
+    public void testSimplifyBadValueThenSyntaxError() {
+        CommandLexer.simplifyBindings("!simplify y=abc z", new Environment());
+    }
+    
+    private static double parse(String value) {
+        return CommandLexer.parseValue("=" + value + " ", 1, value.length() + 1);
+    }
+    
+    @Test
+    public void testParseValue() {
+        String[] values = { "0", "7", "42", "3.25", "0.1", "5.", ".5", "000123.4500",
+                "9007199254740993", "123456789012345678901234567890", "1e10", "2.5E-3",
+                "0.30000000000000004", "1.7976931348623157e308", "-2", "+3", "Infinity", "NaN" };
+        for (String value : values) {
+            assertEquals(value, Double.valueOf(value), parse(value), 0);
+        }
+    }
+    
+    @Test
+    public void testParseValueRandomDecimals() {
+        Random random = new Random(6005);
+        for (int i = 0; i < 100_000; i++) {
+            String value = Math.abs(random.nextLong() % 1_000_000_000_000L)
+                    + "." + Math.abs(random.nextLong() % 100_000_000L);
+            assertEquals(value, Double.valueOf(value), parse(value), 0);
+        }
+    }
+    
+    @Test(expected=NumberFormatException.class)
+    public void testParseValuePointOnly() {
+        parse(".");
+    }
+    
+    @Test
+    public void testEnvironmentGrows() {
+        Environment environment = new Environment();
+        for (int i = 0; i < 1000; i++) {
+            environment.set("v" + i, i);
+        }
+        environment.set("v7", -1);
+        assertEquals(1000, environment.size());
+        for (int i = 0; i < 1000; i++) {
+            int slot = environment.slotOf("v" + i);
+            assertEquals("v" + i, environment.nameOf(slot));
+            assertEquals(i == 7 ? -1 : i, environment.get(slot), 0);
+        }
+        assertEquals(-1, environment.slotOf("w"));
+        assertEquals(1000, environment.toMap().size());
+        
+        environment.clear();
+        assertEquals(0, environment.size());
+        assertFalse(environment.contains("v1"));
+        environment.set("v1", 1);
+        assertTrue(environment.contains("v1"));
+    }
+}
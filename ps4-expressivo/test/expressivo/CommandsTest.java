@@ -17,6 +17,10 @@ public class CommandsTest {
      * differentiate():
      *  operation = sum, product, both
      *  values = scalars, variables
+     * normalize():
+     *  like terms = none, collected; same polynomial written differently
+     * simplify() with an Environment:
+     *  bindings = none, some, all variables; same result as with a Map
      */
     
     @Test(expected=AssertionError.class)
@@ -48,6 +52,50 @@ public class CommandsTest {
         testDifferentiateHelper("x * x + 2 * x", "x", "((x * 1.0 + x * 1.0) + (2.0 * 1.0 + x * 0.0))");
     }
     
+    /*
+     * normalize()
+     */
+    
+    @Test
+    public void testNormalizeCollectsLikeTerms() {
+        assertEquals("((x * x + 2.0 * x) + 1.0)", Commands.normalize("(x + 1) * (x + 1)"));
+    }
+    
+    @Test
+    public void testNormalizeSamePolynomial() {
+        assertEquals(Commands.normalize("y * x + x * x"), Commands.normalize("x * (x + y)"));
+    }
+    
+    @Test
+    public void testNormalizeDerivative() {
+        String derivative = Commands.differentiate("x * x * x", "x");
+        assertEquals("3.0 * x * x", Commands.normalize(derivative));
+    }
+    
+    /*
+     * simplify() with an Environment
+     */
+    
+    @Test
+    public void testSimplifyEnvironmentEmpty() {
+        assertEquals("(x + 1.0)", Commands.simplify("x + 1", new Environment()));
+    }
+    
+    @Test
+    public void testSimplifyEnvironmentSomeBound() {
+        Environment environment = new Environment();
+        environment.set("y", 2);
+        assertEquals("x * 2.0", Commands.simplify("x * y", environment));
+        assertEquals(Commands.simplify("x * y", environment.toMap()), Commands.simplify("x * y", environment));
+    }
+    
+    @Test
+    public void testSimplifyEnvironmentAllBound() {
+        Environment environment = new Environment();
+        environment.set("x", 3);
+        environment.set("y", 0.5);
+        assertEquals("2.5", Commands.simplify("x * y + 1", environment));
+    }
     
     // TODO tests for Commands.differentiate() and Commands.simplify()
     
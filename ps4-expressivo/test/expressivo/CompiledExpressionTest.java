@@ -0,0 +1,162 @@
+package expressivo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for CompiledExpression.
+ */
+public class CompiledExpressionTest {
+    
+    /*
+     * Testing strategy:
+     *  size = below COMPILE_THRESHOLD (interpreted), at or above it (MethodHandles),
+     *      more than MAX_CHAIN_OPERANDS operands (looped handle): long flat sum
+     *      handle chain deeper than MAX_HANDLE_DEPTH (stack program): deep nesting
+     *  variables = none, one, several, repeated
+     *  operations = sum, product, both
+     *  result = same value as simplify() with every variable bound
+     *  allocation = none per evaluation, for a long flat sum and deep nesting
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private void testSameAsSimplify(String input, double... values) {
+        testSameAsSimplify(Expression.parse(input), values);
+    }
+    
+    private void testSameAsSimplify(Expression expr, double... values) {
+        CompiledExpression compiled = CompiledExpression.compile(expr);
+        String[] variables = compiled.getVariables();
+        Map<String, Double> env = new HashMap<String, Double>();
+        for (int i = 0; i < variables.length; i++) {
+            env.put(variables[i], values[i]);
+        }
+        assertEquals(expr.simplify(env), new Scalar(compiled.evaluate(values)));
+    }
+    
+    @Test
+    public void testConstantsOnly() {
+        testSameAsSimplify("1 + 2 * 3");
+    }
+    
+    @Test
+    public void testSmallInterpreted() {
+        testSameAsSimplify("x * y + 2", 0.1, 0.7);
+    }
+    
+    @Test
+    public void testLargeCompiled() {
+        testSameAsSimplify("x * x * y + 2.5 * (x + z) * (y + 0.1) + z * z * z", 1.3, 0.7, 2.9);
+    }
+    
+    @Test
+    public void testSlotsInOrderOfAppearance() {
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("b * a + b + c"));
+        assertArrayEquals(new String[] {"b", "a", "c"}, compiled.getVariables());
+        assertEquals(1, compiled.slotOf("a"));
+        assertEquals(-1, compiled.slotOf("d"));
+    }
+    
+    @Test
+    public void testRepeatedEvaluation() {
+        CompiledExpression compiled = CompiledExpression.compile(Expression.parse("x * x * x + 3 * x * x + x + 1"));
+        double[] values = new double[1];
+        for (int i = 0; i < 100; i++) {
+            values[0] = i;
+            assertEquals(i * i * i + 3 * i * i + i + 1, compiled.evaluate(values), 0);
+        }
+    }
+    
+    /**
+     * @return a distinct variable name for each i >= 0
+     */
+    private static String name(int i) {
+        StringBuilder name = new StringBuilder("v");
+        for (; i > 0; i /= 26) {
+            name.append((char) ('a' + i % 26));
+        }
+        return name.toString();
+    }
+    
+    @Test
+    public void testLongSum() {
+        Sum.Builder builder = new Sum.Builder();
+        double[] values = new double[20000];
+        for (int i = 0; i < values.length; i++) {
+            builder.add(new Variable(name(i)));
+            values[i] = i * 0.1 + 0.3;
+        }
+        Expression sum = builder.build();
+        testSameAsSimplify(sum, values);
+        testSameAsSimplify(new Product(new Product(new Scalar(2), sum), sum), values);
+    }
+    
+    @Test
+    public void testDeepNesting() {
+        Expression expr = new Variable("x");
+        for (int i = 0; i < 5000; i++) {
+            expr = new Sum(new Product(expr, new Scalar(0.5)), new Variable("y"));
+        }
+        testSameAsSimplify(expr, 3, 0.25);
+        testSameAsSimplify(expr, 0.1, 0.7);
+    }
+    
+    /*
+     * Assert that evaluating compiled at values allocates nothing once warmed up, measured by the
+     * bytes the HotSpot ThreadMXBean reports for the current thread. Skipped on other JVMs.
+     */
+    private static void assertEvaluatesWithoutAllocating(CompiledExpression compiled, double[] values) {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        final int evaluations = 20000;
+        double total = 0;
+        for (int i = 0; i < evaluations; i++) {
+            total += compiled.evaluate(values);
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < evaluations; i++) {
+            total += compiled.evaluate(values);
+        }
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue("allocated " + allocated + " bytes in " + evaluations + " evaluations",
+                allocated < evaluations);
+        assertEquals(2 * evaluations * compiled.evaluate(values), total, Math.abs(total) * 1e-9);
+    }
+    
+    @Test
+    public void testThousandTermSumAllocationFree() {
+        Sum.Builder builder = new Sum.Builder();
+        double[] values = new double[1000];
+        for (int i = 0; i < values.length; i++) {
+            builder.add(new Variable(name(i)));
+            values[i] = i * 0.1 + 0.3;
+        }
+        Expression sum = builder.build();
+        testSameAsSimplify(sum, values);
+        assertEvaluatesWithoutAllocating(CompiledExpression.compile(sum), values);
+    }
+    
+    @Test
+    public void testDeepNestingAllocationFree() {
+        Expression expr = new Variable("x");
+        for (int i = 0; i < 1000; i++) {
+            expr = new Sum(new Product(expr, new Scalar(0.5)), new Variable("y"));
+        }
+        assertEvaluatesWithoutAllocating(CompiledExpression.compile(expr), new double[] { 3, 0.25 });
+    }
+}
@@ -0,0 +1,162 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for Derivative.
+ */
+public class DerivativeTest {
+    
+    /*
+     * Testing strategy:
+     *  order = 1, several, very high; variables = one, several mixed, not in the expression
+     *  built by = Derivative.of with one or several variables, differentiate, of a Derivative
+     *  base = Sum, Product, leaf
+     *  bindings = every variable, some variables, none
+     *  observers = simplify, valueAt, toString, equals both ways, hashCode
+     *  use = as an operand of Sum and Product, passed to CompiledExpression and ExpressionCodec
+     *  result = equal to differentiating eagerly; simplify exactly, valueAt to within rounding
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    /**
+     * @return expression differentiated by each of vars in turn, building every tree
+     */
+    private static Expression eager(Expression expression, String... vars) {
+        for (String var : vars) {
+            expression = Traversal.postOrder(expression, new Differentiator(var));
+        }
+        return expression;
+    }
+    
+    private static Derivative lazy(Expression expression, String... vars) {
+        Derivative derivative = Derivative.of(expression, vars[0]);
+        for (int i = 1; i < vars.length; i++) {
+            derivative = derivative.differentiate(vars[i]);
+        }
+        return derivative;
+    }
+    
+    private static Map<String, Double> env(double x, double y) {
+        Map<String, Double> env = new HashMap<>();
+        env.put("x", x);
+        env.put("y", y);
+        return env;
+    }
+    
+    private void testSameAsEager(String input, Map<String, Double> env, String... vars) {
+        Expression expression = Expression.parse(input);
+        Derivative lazy = lazy(expression, vars);
+        Expression eager = eager(expression, vars);
+        Expression expected = eager.simplify(env);
+        if (expected instanceof Scalar) {
+            double value = ((Scalar) expected).getValue();
+            assertEquals(input, value, lazy.valueAt(env), 1e-9 * Math.max(1, Math.abs(value)));
+        } else {
+            try {
+                lazy.valueAt(env);
+                fail("expected unbound variable to fail");
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+        }
+        assertEquals(input, expected, lazy.simplify(env));
+        assertEquals(Derivative.of(expression, vars), lazy);
+        assertEquals(eager, lazy);
+        assertEquals(lazy, eager);
+        assertEquals(eager.hashCode(), lazy.hashCode());
+        assertEquals(eager.toString(), lazy.toString());
+    }
+    
+    @Test
+    public void testFirstOrder() {
+        testSameAsEager("x * x * y + 3 * x + y", env(1.5, -2), "x");
+        testSameAsEager("x * x * y + 3 * x + y", env(1.5, -2), "y");
+        testSameAsEager("(x + 1) * (y + 2) * (x * y + 0.5)", env(0.25, 3), "x");
+    }
+    
+    @Test
+    public void testHigherOrder() {
+        testSameAsEager("x * x * x * x * y + x * y * y", env(1.5, 2), "x", "x", "x");
+        testSameAsEager("(x + 1) * (x + 2) * (x + 3) * x", env(-0.5, 0), "x", "x", "x", "x");
+        testSameAsEager("x * x * x * x * x * x", env(2, 0), "x", "x", "x", "x", "x", "x", "x");
+    }
+    
+    @Test
+    public void testMixedVariables() {
+        testSameAsEager("x * x * y * y * y + x * y + 2", env(1.5, 0.5), "x", "y");
+        testSameAsEager("x * x * y * y * y + x * y + 2", env(1.5, 0.5), "y", "x", "y", "x");
+        testSameAsEager("(x + y) * (x + y) * (x * y + 1)", env(-1, 2), "x", "y", "x");
+    }
+    
+    @Test
+    public void testVariableNotInExpression() {
+        testSameAsEager("x * x + x", env(3, 0), "z");
+        testSameAsEager("x * x + x", env(3, 0), "x", "z");
+    }
+    
+    @Test
+    public void testPartialBindings() {
+        Map<String, Double> onlyX = new HashMap<>();
+        onlyX.put("x", 2.0);
+        testSameAsEager("x * x * y + x * y * y", onlyX, "x", "y");
+        testSameAsEager("x * x * y + x * y * y", new HashMap<String, Double>(), "x");
+    }
+    
+    @Test
+    public void testLeaf() {
+        testSameAsEager("x", env(2, 3), "x", "y");
+        testSameAsEager("4.5", env(2, 3), "x");
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testNoVariables() {
+        Derivative.of(Expression.parse("x * x"));
+    }
+    
+    @Test
+    public void testVeryHighOrder() {
+        // the eager 20th derivative of x^20 would have far too many nodes to build
+        StringBuilder input = new StringBuilder("x");
+        for (int i = 1; i < 20; i++) {
+            input.append(" * x");
+        }
+        Derivative derivative = lazy(Expression.parse(input.toString()), "x");
+        for (int i = 1; i < 20; i++) {
+            derivative = derivative.differentiate("x");
+        }
+        double factorial = 1;
+        for (int k = 2; k <= 20; k++) {
+            factorial *= k;
+        }
+        assertEquals(factorial, derivative.valueAt(env(1.75, 0)), factorial * 1e-12);
+        assertEquals(0, derivative.differentiate("x").valueAt(env(1.75, 0)), 0);
+    }
+    
+    @Test
+    public void testAsOperand() {
+        Expression expression = Expression.parse("x * x * y + y");
+        Expression lazy = Derivative.of(expression, "x");
+        Expression eager = eager(expression, "x");
+        assertEquals(new Sum(eager, new Variable("y")), new Sum(lazy, new Variable("y")));
+        assertEquals(new Product(new Scalar(2), eager), new Product(new Scalar(2), lazy));
+        assertEquals(new Sum(eager, eager), new Sum.Builder().add(lazy).add(lazy).build());
+        
+        CompiledExpression compiled = CompiledExpression.compile(lazy);
+        assertEquals(CompiledExpression.compile(eager).evaluate(new double[] { 1.5, 2 }),
+                compiled.evaluate(new double[] { 1.5, 2 }), 0);
+        assertEquals(eager, ExpressionCodec.fromBytes(ExpressionCodec.toBytes(lazy, true)));
+        assertEquals(Traversal.sizeOf(eager), Traversal.sizeOf(lazy));
+        assertEquals(eager, ExpressionFactory.intern(lazy));
+    }
+}
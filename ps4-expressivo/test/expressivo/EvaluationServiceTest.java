@@ -0,0 +1,214 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for EvaluationService and LatencyHistogram.
+ */
+public class EvaluationServiceTest {
+    
+    /*
+     * Testing strategy:
+     *  request = simplify with every variable bound, with some bound; differentiate; normalize;
+     *      invalid expression; one that overflows the stack; very long expression
+     *  result = same as Commands
+     *  batch = requests sharing an expression, requests with distinct expressions
+     *  backpressure = BLOCK, REJECT with a full queue
+     *  close = with requests pending, then submitting again
+     *  LatencyHistogram: empty, one bucket, many buckets, percentile 0, 0.5, 1
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private static Map<String, Double> env(String name, double value) {
+        Map<String, Double> env = new HashMap<>();
+        env.put(name, value);
+        return env;
+    }
+    
+    /**
+     * @return an expression, distinct for each tag, that takes a while to parse and simplify
+     */
+    private static String slowExpression(String tag) {
+        StringBuilder input = new StringBuilder(tag);
+        for (int i = 0; i < 100000; i++) {
+            input.append(" + ").append(tag).append(" * ").append(i);
+        }
+        return input.toString();
+    }
+    
+    @Test
+    public void testSameAsCommands() throws Exception {
+        try (EvaluationService service = new EvaluationService(4, 100, EvaluationService.Backpressure.BLOCK)) {
+            Map<String, Double> full = env("x", 2.5);
+            full.put("y", 0.5);
+            Map<String, Double> partial = env("x", 2.5);
+            String input = "x * x * y + 3 * x + y";
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(service.simplify(input, full));
+                expected.add(Commands.simplify(input, full));
+                futures.add(service.simplify(input, partial));
+                expected.add(Commands.simplify(input, partial));
+                futures.add(service.differentiate(input, i % 2 == 0 ? "x" : "y"));
+                expected.add(Commands.differentiate(input, i % 2 == 0 ? "x" : "y"));
+                futures.add(service.normalize(input));
+                expected.add(Commands.normalize(input));
+                futures.add(service.simplify("x + " + i, full));
+                expected.add(Commands.simplify("x + " + i, full));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                assertEquals(expected.get(i), futures.get(i).get());
+            }
+            try {
+                service.simplify("x +", full).get();
+                fail("expected invalid expression to fail");
+            } catch (ExecutionException ee) {
+                assertTrue(ee.getCause() instanceof IllegalArgumentException);
+            }
+        }
+    }
+    
+    @Test
+    public void testErrorFailsOnlyItsRequest() throws Exception {
+        try (EvaluationService service = new EvaluationService(1, 10, EvaluationService.Backpressure.BLOCK)) {
+            StringBuilder sum = new StringBuilder("x");
+            for (int i = 1; i < 20000; i++) {
+                sum.append(" + x");
+            }
+            StringBuilder nested = new StringBuilder();
+            for (int i = 0; i < 200000; i++) {
+                nested.append('(');
+            }
+            nested.append('x');
+            for (int i = 0; i < 200000; i++) {
+                nested.append(')');
+            }
+            Map<String, Double> env = env("x", 1.5);
+            CompletableFuture<String> first = service.simplify(sum.toString(), env);
+            CompletableFuture<String> overflow = service.simplify(nested.toString(), env);
+            CompletableFuture<String> second = service.simplify(sum.toString(), env);
+            CompletableFuture<String> small = service.simplify("1+1", env);
+            assertEquals(Commands.simplify(sum.toString(), env), first.get(60, TimeUnit.SECONDS));
+            assertEquals(Commands.simplify(sum.toString(), env), second.get(60, TimeUnit.SECONDS));
+            try {
+                assertEquals("1.5", overflow.get(60, TimeUnit.SECONDS));
+            } catch (ExecutionException ee) {
+                // a parser that recurses per parenthesis fails this request, and only this one
+            }
+            assertEquals(Commands.simplify("1+1", env), small.get(60, TimeUnit.SECONDS));
+        }
+    }
+    
+    @Test
+    public void testBatchingSharesWork() throws Exception {
+        try (EvaluationService service = new EvaluationService(1, 1000, EvaluationService.Backpressure.BLOCK)) {
+            // keep the only worker busy while the rest queue up behind it
+            CompletableFuture<String> slow = service.simplify(slowExpression("batching"), env("x", 1));
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                futures.add(service.simplify("x * y + x", env("y", i)));
+                futures.add(service.simplify("x * y + x", env("x", i)));
+            }
+            for (int i = 0; i < 200; i++) {
+                assertEquals(Commands.simplify("x * y + x", env("y", i)), futures.get(2 * i).get());
+                assertEquals(Commands.simplify("x * y + x", env("x", i)), futures.get(2 * i + 1).get());
+            }
+            slow.get();
+            assertEquals(401, service.completed());
+            assertTrue(service.groups() < 100);
+            assertTrue(service.compilations() < 100);
+            assertEquals(401, service.latency().count());
+            assertEquals(401, service.queueLatency().count());
+        }
+    }
+    
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        try (EvaluationService service = new EvaluationService(1, 1, EvaluationService.Backpressure.REJECT)) {
+            service.simplify(slowExpression("reject"), env("x", 1));
+            List<CompletableFuture<String>> futures = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                futures.add(service.simplify("x + " + i, env("x", 1)));
+            }
+            int rejected = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    assertEquals(Commands.simplify("x + " + i, env("x", 1)), futures.get(i).get());
+                } catch (ExecutionException ee) {
+                    assertTrue(ee.getCause() instanceof RejectedExecutionException);
+                    rejected++;
+                }
+            }
+            assertTrue(rejected > 0);
+            assertEquals(rejected, service.rejected());
+        }
+    }
+    
+    @Test
+    public void testCloseFinishesAcceptedRequests() throws Exception {
+        EvaluationService service = new EvaluationService(2, 10, EvaluationService.Backpressure.BLOCK);
+        List<CompletableFuture<String>> futures = new ArrayList<>();
+        futures.add(service.differentiate(slowExpression("close"), "close"));
+        for (int i = 0; i < 100; i++) {
+            futures.add(service.normalize("(x + " + i + ") * (x + 1)"));
+        }
+        service.close();
+        for (CompletableFuture<String> future : futures) {
+            assertTrue(future.isDone());
+            future.get();
+        }
+        try {
+            service.normalize("x").get();
+            fail("expected closed service to reject");
+        } catch (ExecutionException ee) {
+            assertTrue(ee.getCause() instanceof RejectedExecutionException);
+        }
+        assertEquals(101, service.completed());
+        assertEquals(1, service.rejected());
+        service.close();
+    }
+    
+    @Test
+    public void testLatencyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(0.5));
+        assertEquals(0, histogram.mean(), 0);
+        
+        histogram.record(0);
+        histogram.record(-5);
+        assertEquals(2, histogram.count(0));
+        assertEquals(0, histogram.percentile(1));
+        
+        for (long nanos = 1; nanos <= 1000; nanos++) {
+            histogram.record(nanos);
+        }
+        assertEquals(1002, histogram.count());
+        assertEquals(1000, histogram.max());
+        assertEquals(500500.0 / 1002, histogram.mean(), 1e-9);
+        assertEquals(0, histogram.percentile(0));
+        assertEquals(511, histogram.percentile(0.5));
+        assertEquals(1000, histogram.percentile(1));
+        assertEquals(10, LatencyHistogram.bucketOf(1000));
+        assertEquals(489, histogram.count(10));
+        assertEquals(1023, LatencyHistogram.upperBound(10));
+    }
+}
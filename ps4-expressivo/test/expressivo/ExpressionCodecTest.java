@@ -0,0 +1,219 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for ExpressionCodec.
+ */
+public class ExpressionCodecTest {
+    
+    /*
+     * Testing strategy:
+     *  expression = scalar, variable, sum, product, mix; million-deep left and right spines
+     *  scalars = 0, -0.0, small and large whole numbers, 2^53, short decimals, other fractions,
+     *      NaN, infinities
+     *  variables = one, repeated, many distinct, non-ASCII name
+     *  sharing = off, on with no repeated objects, on with many (a higher-order derivative)
+     *  stream = DataOutput/DataInput, ByteBuffer, byte[]; several encodings in one stream
+     *  malformed = truncated, unknown opcode, wrong version, reference out of range,
+     *      trailing bytes
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private static Expression roundTrip(Expression expression, boolean shareSubtrees) {
+        Expression decoded = ExpressionCodec.fromBytes(ExpressionCodec.toBytes(expression, shareSubtrees));
+        assertEquals(expression, decoded);
+        return decoded;
+    }
+    
+    @Test
+    public void testRoundTripShapes() {
+        String[] inputs = { "0", "x", "x + 1", "2.5 * y", "(x + y) * (x * 3 + foo) + x * x * 1.25" };
+        for (String input : inputs) {
+            Expression expression = Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT);
+            roundTrip(expression, false);
+            roundTrip(expression, true);
+        }
+    }
+    
+    @Test
+    public void testRoundTripScalars() {
+        double[] values = { 0, 1, 127, 128, 1e15, 9007199254740992.0, 9007199254740993.0, -3, 0.1,
+                1.0 / 3, Double.MIN_VALUE, Double.MAX_VALUE, Double.POSITIVE_INFINITY };
+        for (double value : values) {
+            Scalar decoded = (Scalar) roundTrip(new Scalar(value), false);
+            assertEquals(Double.doubleToRawLongBits(value), Double.doubleToRawLongBits(decoded.getValue()));
+        }
+        Scalar negativeZero = (Scalar) ExpressionCodec.fromBytes(ExpressionCodec.toBytes(new Scalar(-0.0), false));
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(negativeZero.getValue()));
+        Scalar nan = (Scalar) ExpressionCodec.fromBytes(ExpressionCodec.toBytes(new Scalar(Double.NaN), false));
+        assertTrue(Double.isNaN(nan.getValue()));
+    }
+    
+    @Test
+    public void testConstantsAreCompact() {
+        // 2-byte header, INTEGER opcode, one varint byte
+        assertEquals(4, ExpressionCodec.toBytes(new Scalar(5), false).length);
+        // 2-byte header, DECIMAL opcode, one varint byte for 25, scale 2
+        assertEquals(5, ExpressionCodec.toBytes(new Scalar(0.25), false).length);
+        // 2-byte header, DOUBLE opcode, 8 bytes
+        assertEquals(11, ExpressionCodec.toBytes(new Scalar(1.0 / 3), false).length);
+    }
+    
+    @Test
+    public void testRoundTripRandomDecimals() {
+        Random random = new Random(6005);
+        for (int i = 0; i < 100_000; i++) {
+            String text = random.nextInt(1_000_000) + "." + random.nextInt(1_000_000);
+            double value = Double.parseDouble(text);
+            Scalar decoded = (Scalar) ExpressionCodec.fromBytes(ExpressionCodec.toBytes(new Scalar(value), false));
+            assertEquals(text, Double.doubleToRawLongBits(value), Double.doubleToRawLongBits(decoded.getValue()));
+        }
+    }
+    
+    @Test
+    public void testVariableDictionary() {
+        Expression expression = Expression.parse("x * x * x * x * x * x * x * x", Expression.ParserStrategy.RECURSIVE_DESCENT);
+        byte[] bytes = ExpressionCodec.toBytes(expression, false);
+        // header, 7 PRODUCTs, one NEW_VARIABLE (opcode, length, 'x'), 7 VARIABLE (opcode, index)
+        assertEquals(2 + 7 + 3 + 7 * 2, bytes.length);
+        roundTrip(expression, false);
+        roundTrip(new Sum(new Variable("\u00e9t\u00e9"), new Variable("t")), false);
+    }
+    
+    @Test
+    public void testManyVariables() {
+        Expression expression = new Variable("v");
+        for (int i = 0; i < 1000; i++) {
+            expression = new Sum(expression, new Product(new Variable("v" + i), new Variable("v" + (i / 2))));
+        }
+        roundTrip(expression, false);
+    }
+    
+    @Test
+    public void testSharedSubtrees() {
+        Expression derivative = Expression.parse("x * x * y * x * x * (x + y) * x", Expression.ParserStrategy.RECURSIVE_DESCENT);
+        for (int i = 0; i < 8; i++) {
+            derivative = derivative.differentiate("x");
+        }
+        byte[] shared = ExpressionCodec.toBytes(derivative, true);
+        Expression decoded = ExpressionCodec.fromBytes(shared);
+        assertEquals(ExpressionDag.of(derivative).treeNodes(), ExpressionDag.of(decoded).treeNodes());
+        Map<String, Double> env = new HashMap<>();
+        env.put("x", 1.5);
+        env.put("y", 0.5);
+        assertEquals(ExpressionDag.of(derivative).evaluate(env), ExpressionDag.of(decoded).evaluate(env), 0);
+        assertTrue(shared.length < 100_000);
+        assertTrue(ExpressionDag.of(derivative).treeNodes() > 10_000_000);
+    }
+    
+    @Test
+    public void testSharedSubtreesDecodeAsSharedObjects() {
+        Expression common = new Sum(new Variable("x"), new Scalar(1));
+        Expression expression = new Product(common, common);
+        Product decoded = (Product) roundTrip(expression, true);
+        assertSame(decoded.getLeft(), decoded.getRight());
+        // header, PRODUCT, SUM, NEW_VARIABLE x, INTEGER 1, then the second operand
+        assertEquals(2 + 1 + 1 + 3 + 2 + 4, ExpressionCodec.toBytes(expression, false).length - 1);
+        assertEquals(2 + 1 + 1 + 3 + 2 + 2, ExpressionCodec.toBytes(expression, true).length);
+    }
+    
+    @Test
+    public void testDeepSpines() {
+        Expression left = new Variable("x");
+        Expression right = new Variable("x");
+        for (int i = 0; i < 1_000_000; i++) {
+            left = new Sum(left, new Scalar(i % 3));
+            right = new Product(new Scalar(i % 3), right);
+        }
+        roundTrip(left, false);
+        roundTrip(right, true);
+    }
+    
+    @Test
+    public void testStreams() throws IOException {
+        Expression first = Expression.parse("x * y + 1", Expression.ParserStrategy.RECURSIVE_DESCENT);
+        Expression second = Expression.parse("z + z * 0.5", Expression.ParserStrategy.RECURSIVE_DESCENT);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        ExpressionCodec.encode(first, out, false);
+        ExpressionCodec.encode(second, out, true);
+        out.flush();
+        
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(first, ExpressionCodec.decode(in));
+        assertEquals(second, ExpressionCodec.decode(in));
+        assertEquals(-1, in.read());
+    }
+    
+    @Test
+    public void testByteBuffers() {
+        Expression first = Expression.parse("x * y + 1", Expression.ParserStrategy.RECURSIVE_DESCENT);
+        Expression second = Expression.parse("(z + 2) * z", Expression.ParserStrategy.RECURSIVE_DESCENT);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(256);
+        buffer.put((byte) 42);
+        ExpressionCodec.encode(first, buffer, true);
+        ExpressionCodec.encode(second, buffer, false);
+        int end = buffer.position();
+        buffer.flip();
+        assertEquals(42, buffer.get());
+        assertEquals(first, ExpressionCodec.decode(buffer));
+        assertEquals(second, ExpressionCodec.decode(buffer));
+        assertEquals(end, buffer.position());
+    }
+    
+    @Test(expected=EOFException.class)
+    public void testTruncatedStream() throws IOException {
+        byte[] bytes = ExpressionCodec.toBytes(Expression.parse("x + y", Expression.ParserStrategy.RECURSIVE_DESCENT), false);
+        ExpressionCodec.decode(new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 1)));
+    }
+    
+    @Test(expected=BufferUnderflowException.class)
+    public void testTruncatedBuffer() {
+        byte[] bytes = ExpressionCodec.toBytes(new Sum(new Scalar(0.5), new Scalar(0.25)), false);
+        ExpressionCodec.decode(ByteBuffer.wrap(bytes, 0, bytes.length - 3));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownOpcode() {
+        ExpressionCodec.fromBytes(new byte[] { ExpressionCodec.FORMAT_VERSION, 0, 99 });
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testWrongVersion() {
+        ExpressionCodec.fromBytes(new byte[] { 0, 0, 2, 0 });
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testReferenceOutOfRange() {
+        // shared: SUM #0, REFERENCE 0 (still incomplete)
+        ExpressionCodec.fromBytes(new byte[] { ExpressionCodec.FORMAT_VERSION, 1, 0, 6, 0, 2, 0 });
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testTrailingBytes() {
+        byte[] bytes = ExpressionCodec.toBytes(new Variable("x"), false);
+        ExpressionCodec.fromBytes(Arrays.copyOf(bytes, bytes.length + 1));
+    }
+}
@@ -0,0 +1,155 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests for ExpressionDag.
+ */
+public class ExpressionDagTest {
+    
+    /*
+     * Testing strategy:
+     *  expression = leaf, tree with no repeats, tree with repeated subtrees, high-order derivative
+     *  node counts = distinct vs tree
+     *  operations = evaluate, simplify (variables bound = some, all), toExpression
+     *  Session: initial bindings none, some; change = bind, rebind, same value, unbind, unknown
+     *      name; nodes recomputed = only dependents, stopped by an unchanged Scalar
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    @Test
+    public void testLeaf() {
+        ExpressionDag dag = ExpressionDag.of(new Variable("x"));
+        assertEquals(1, dag.distinctNodes());
+        assertEquals(1, dag.treeNodes());
+        assertEquals(new Variable("x"), dag.toExpression());
+    }
+    
+    @Test
+    public void testNoRepeats() {
+        Expression expr = Expression.parse("x + y * 2");
+        ExpressionDag dag = ExpressionDag.of(expr);
+        assertEquals(5, dag.distinctNodes());
+        assertEquals(5, dag.treeNodes());
+        assertEquals(expr, dag.toExpression());
+    }
+    
+    @Test
+    public void testRepeatedSubtrees() {
+        Expression expr = Expression.parse("(x + 1) * (x + 1) + (x + 1) * y");
+        ExpressionDag dag = ExpressionDag.of(expr);
+        assertEquals(13, dag.treeNodes());
+        assertEquals(7, dag.distinctNodes());
+        assertEquals(expr, dag.toExpression());
+        
+        Map<String, Double> env = new HashMap<String, Double>();
+        env.put("x", 2.0);
+        assertEquals(expr.simplify(env), dag.simplify(env));
+        env.put("y", 0.5);
+        assertEquals(expr.simplify(env), new Scalar(dag.evaluate(env)));
+    }
+    
+    @Test
+    public void testTenthDerivative() {
+        Expression expr = Expression.parse("x * x * y * x * x * (x + y) * x");
+        for (int i = 0; i < 10; i++) {
+            expr = expr.differentiate("x");
+        }
+        ExpressionDag dag = ExpressionDag.of(expr);
+        assertTrue(dag.treeNodes() > 100 * dag.distinctNodes());
+        
+        Map<String, Double> env = new HashMap<String, Double>();
+        env.put("x", 1.5);
+        env.put("y", 2.0);
+        assertEquals(ExpressionDag.of(dag.simplify(env)).distinctNodes(), 1);
+        assertEquals(dag.evaluate(env), ((Scalar) dag.simplify(env)).getValue(), 0);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testEvaluateUnboundVariable() {
+        ExpressionDag.of(Expression.parse("x + y")).evaluate(new HashMap<String, Double>());
+    }
+    
+    @Test
+    public void testSessionMatchesSimplify() {
+        Expression expr = Expression.parse("(x + 1) * (x + 1) * y + 2 * z * (y + z) + x * y * z");
+        for (int i = 0; i < 3; i++) {
+            expr = new Sum(expr, expr.differentiate("x"));
+        }
+        Map<String, Double> env = new HashMap<String, Double>();
+        ExpressionDag.Session session = ExpressionDag.of(expr).session(env);
+        assertEquals(expr.simplify(env), session.result());
+        
+        Random random = new Random(6005);
+        String[] names = { "x", "y", "z", "w" };
+        for (int i = 0; i < 200; i++) {
+            String name = names[random.nextInt(names.length)];
+            if (random.nextInt(4) == 0) {
+                env.remove(name);
+            } else {
+                env.put(name, (double) random.nextInt(3));
+            }
+            assertEquals(expr.simplify(env), session.simplify(env));
+        }
+    }
+    
+    @Test
+    public void testSessionRecomputesDependentsOnly() {
+        Expression expr = Expression.parse("a * b + c * d + e * f + g * h");
+        Map<String, Double> env = new HashMap<String, Double>();
+        env.put("a", 1.0);
+        ExpressionDag dag = ExpressionDag.of(expr);
+        ExpressionDag.Session session = dag.session(env);
+        assertEquals(dag.distinctNodes(), session.recomputedNodes());
+        
+        session.set("c", 2.0);
+        assertEquals(expr.simplify(env("a", 1.0, "c", 2.0)), session.result());
+        assertEquals(3, session.recomputedNodes()); // c, c * d, the sum
+        
+        session.set("c", 2.0);
+        session.set("unknown", 5.0);
+        assertEquals(expr.simplify(env("a", 1.0, "c", 2.0)), session.result());
+        
+        assertEquals(expr.simplify(env("c", 2.0, "e", 3.0)), session.simplify(env("c", 2.0, "e", 3.0)));
+        assertEquals(5, session.recomputedNodes()); // a, a * b, e, e * f, the sum
+        
+        session.unset("e");
+        assertEquals(expr.simplify(env("c", 2.0)), session.result());
+    }
+    
+    @Test
+    public void testSessionUnchangedScalarStopsPropagation() {
+        Expression expr = Expression.parse("x * 0 * y + z");
+        Map<String, Double> env = new HashMap<String, Double>();
+        env.put("x", 1.0);
+        env.put("y", 3.0);
+        ExpressionDag.Session session = ExpressionDag.of(expr).session(env);
+        env.put("x", 2.0);
+        assertEquals(expr.simplify(env), session.simplify(env));
+        assertEquals(2, session.recomputedNodes()); // x, and x * 0 * y, which is still 0.0
+    }
+    
+    private static Map<String, Double> env(String name, double value) {
+        Map<String, Double> env = new HashMap<String, Double>();
+        env.put(name, value);
+        return env;
+    }
+    
+    private static Map<String, Double> env(String name1, double value1, String name2, double value2) {
+        Map<String, Double> env = new HashMap<String, Double>();
+        env.put(name1, value1);
+        env.put(name2, value2);
+        return env;
+    }
+}
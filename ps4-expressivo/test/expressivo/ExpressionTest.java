@@ -6,9 +6,13 @@ package expressivo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.AbstractMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.junit.Test;
 
@@ -28,6 +32,13 @@ public class ExpressionTest {
      *          incomplete *
      *          incomplete +
      *          no operator between primitives
+     *  parse(RECURSIVE_DESCENT):
+     *      same result as parse() for sums, products, mixes, parenthesis, spacing
+     *      same illegals as parse()
+     *  validate():
+     *      valid, invalid at start, middle, end; unbalanced parentheses either way
+     *      same offset as the ExpressionSyntaxException of both parse strategies
+     *      exception has no stack trace
      *  toString()/parse():
      *      adding only scalars
      *      adding scalars and variables
@@ -44,13 +55,29 @@ public class ExpressionTest {
      *      different groupings
      *      different decimal accuracy (1 vs 1.00)
      *      different variable name casings
+     *      hash codes of operand swaps, operator swaps, fractional scalars, 0.0 and -0.0
+     *  ExpressionFactory:
+     *      equal nodes built twice, nodes built from parsed and from canonical children
      *   differentiate():
      *      values = scalars, variables, all
      *      operations = sum, product, all
+     *      DerivativeCache: repeated derivative, higher-order derivatives, capacity 1
      *   simplify():
      *      values = scalars, variables, all
      *      operations = sum, product, all
      *      # of variables filled = none, some, all
+     *      deep trees of constants
+     *      variables whose names look like numbers (NaN, Infinity)
+     *      environment much larger than the expression
+     *   simplify(Environment):
+     *      same result as simplify(Map); slots unbound, bound, rebound, unset;
+     *      names without a slot; symbol table from forExpression
+     *   n-ary Sum and Product:
+     *      built by = binary constructors, Builder, parse; operand count = 2, many
+     *      getOperand in and out of range; getLeft of a flattened node
+     *      Builder with one operand, with none, with a first operand of the same operator
+     *      storage shared by several nodes (prefix extended twice, prefix extended by its own operand)
+     *      simplify folding scalars scattered among the operands
      */
     
     @Test(expected=AssertionError.class)
@@ -102,6 +129,119 @@ public class ExpressionTest {
         testCatchException("4 Foo");
     }
     
+    @Test
+    public void testParseGrammarCompiledOnce() {
+        CompiledGrammar.warmup();
+        long compileTime = CompiledGrammar.compileTimeNanos();
+        assertTrue(compileTime >= 0);
+        Expression.parse("x + 1");
+        Expression.parse("y * 2");
+        assertEquals(compileTime, CompiledGrammar.compileTimeNanos());
+    }
+    
+    /*
+     * parse(RECURSIVE_DESCENT)
+     */
+    
+    private void testRecursiveDescentHelper(String input) {
+        Expression expected = Expression.parse(input);
+        Expression actual = Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT);
+        assertEquals(expected, actual);
+        assertEquals(expected.toString(), actual.toString());
+    }
+    
+    private void testRecursiveDescentException(String input) {
+        boolean caughtException = false;
+        try {
+            Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT);
+        } catch (IllegalArgumentException ex) {
+            caughtException = true;
+        }
+        assertTrue(caughtException);
+    }
+    
+    @Test
+    public void testRecursiveDescentSameAsGrammar() {
+        testRecursiveDescentHelper("x + foo + 1 + 5");
+        testRecursiveDescentHelper("foo * 5 * y * 1");
+        testRecursiveDescentHelper("foo + 6 * bar + 4");
+        testRecursiveDescentHelper("(((1+1)))");
+        testRecursiveDescentHelper("1   +1");
+        testRecursiveDescentHelper("x * (y + .5) * (z * 2.25)");
+        testRecursiveDescentHelper("(a + b) + (c + d)");
+    }
+    
+    @Test
+    public void testRecursiveDescentIllegals() {
+        testRecursiveDescentException("(1 + Foo");
+        testRecursiveDescentException("1 +");
+        testRecursiveDescentException(" * bar");
+        testRecursiveDescentException("4 Foo");
+        testRecursiveDescentException("1.");
+        testRecursiveDescentException("()");
+        testRecursiveDescentException("");
+    }
+    
+    /*
+     * validate()
+     */
+    
+    private void testValidateHelper(String input, int offset) {
+        assertEquals(input, offset, Expression.validate(input));
+        if (offset < 0) {
+            assertEquals(Expression.parse(input), Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT));
+            return;
+        }
+        for (Expression.ParserStrategy strategy : Expression.ParserStrategy.values()) {
+            try {
+                Expression.parse(input, strategy);
+                fail("expected ExpressionSyntaxException for " + input);
+            } catch (ExpressionSyntaxException ese) {
+                assertEquals(input, offset, ese.getOffset());
+                assertEquals(input, ese.getInput());
+                assertEquals(0, ese.getStackTrace().length);
+            }
+        }
+    }
+    
+    @Test
+    public void testValidateValid() {
+        testValidateHelper("x", -1);
+        testValidateHelper(" ( x + 1.5 ) * (y*.25) + foo ", -1);
+        testValidateHelper("((((1))))", -1);
+    }
+    
+    @Test
+    public void testValidateInvalid() {
+        testValidateHelper("", 0);
+        testValidateHelper(" * bar", 1);
+        testValidateHelper("4 Foo", 2);
+        testValidateHelper("x2", 1);
+        testValidateHelper("1 +", 3);
+        testValidateHelper("1.", 2);
+        testValidateHelper("1.5.2", 3);
+        testValidateHelper(". + 1", 1);
+        testValidateHelper("()", 1);
+        testValidateHelper("(1 + Foo", 8);
+        testValidateHelper("(x))", 3);
+        testValidateHelper("(x y)", 3);
+        testValidateHelper("x + # + y", 4);
+    }
+    
+    @Test
+    public void testValidateDeepNesting() {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            input.append('(');
+        }
+        input.append('x');
+        assertEquals(input.length(), Expression.validate(input.toString()));
+        for (int i = 0; i < 100000; i++) {
+            input.append(')');
+        }
+        assertEquals(-1, Expression.validate(input.toString()));
+    }
+    
     /*
      * toString()/parse()
      */
@@ -189,6 +329,57 @@ public class ExpressionTest {
         testEqualityHelper("1 * Foo", "1 * foo", false);
     }
     
+    @Test
+    public void testHashCodeOperatorAndOrder() {
+        int[] hashes = {
+            Expression.parse("x + y").hashCode(),
+            Expression.parse("y + x").hashCode(),
+            Expression.parse("x * y").hashCode(),
+            Expression.parse("y * x").hashCode(),
+            Expression.parse("x + y + z").hashCode(),
+            Expression.parse("x + (y + z)").hashCode(),
+        };
+        for (int i = 0; i < hashes.length; i++) {
+            for (int j = i + 1; j < hashes.length; j++) {
+                assertTrue("hashes " + i + " and " + j, hashes[i] != hashes[j]);
+            }
+        }
+    }
+    
+    @Test
+    public void testHashCodeScalars() {
+        Set<Integer> hashes = new HashSet<>();
+        for (int i = 0; i < 100; i++) {
+            hashes.add(new Scalar(i / 100.0).hashCode());
+        }
+        assertEquals(100, hashes.size());
+        assertEquals(new Scalar(0.0), new Scalar(-0.0));
+        assertEquals(new Scalar(0.0).hashCode(), new Scalar(-0.0).hashCode());
+        assertEquals(Expression.parse("x * 0").hashCode(),
+                new Product(new Variable("x"), new Scalar(-0.0)).hashCode());
+    }
+    
+    /*
+     * ExpressionFactory
+     */
+    
+    @Test
+    public void testFactoryReturnsCanonicalNodes() {
+        Expression x = ExpressionFactory.variable("x");
+        Expression sum1 = ExpressionFactory.sum(x, ExpressionFactory.scalar(2));
+        Expression sum2 = ExpressionFactory.sum(ExpressionFactory.variable("x"), ExpressionFactory.scalar(2.0));
+        assertTrue(sum1 == sum2);
+        assertTrue(ExpressionFactory.product(x, x) != sum1);
+        assertTrue(ExpressionFactory.intern(Expression.parse("x + 2")) == sum1);
+    }
+    
+    @Test
+    public void testFactorySharesDerivativeSubtrees() {
+        Expression derivative = Expression.parse("x * x").differentiate("x");
+        assertEquals(Expression.parse("x * 1.0 + x * 1.0"), derivative);
+        assertTrue(derivative == ExpressionFactory.intern(Expression.parse("x * 1.0 + x * 1.0")));
+    }
+    
     /**
      * differentiate()
      */
@@ -215,6 +406,38 @@ public class ExpressionTest {
         testDifferentiateHelper("x", "x * x + 2 * x", "((x * 1.0 + x * 1.0) + (2.0 * 1.0 + x * 0.0))");
     }
     
+    @Test
+    public void testDifferentiateCachedResult() {
+        DerivativeCache.setCapacity(DerivativeCache.DEFAULT_CAPACITY);
+        Expression expr = Expression.parse("x * x * y + x");
+        Expression first = expr.differentiate("x");
+        long hits = DerivativeCache.hits();
+        Expression second = Expression.parse("x * x * y + x").differentiate("x");
+        assertTrue(first == second);
+        assertEquals(hits + 1, DerivativeCache.hits());
+    }
+    
+    @Test
+    public void testDifferentiateHigherOrderWithCache() {
+        DerivativeCache.setCapacity(DerivativeCache.DEFAULT_CAPACITY);
+        Expression expr = Expression.parse("x * x * x * x * x * x");
+        for (int i = 0; i < 6; i++) {
+            expr = expr.differentiate("x");
+        }
+        assertTrue(DerivativeCache.hits() > 0);
+        Map<String, Double> env = new HashMap<String, Double>();
+        env.put("x", 2.0);
+        assertEquals(new Scalar(720), expr.simplify(env));
+    }
+    
+    @Test
+    public void testDifferentiateTinyCache() {
+        DerivativeCache.setCapacity(1);
+        testDifferentiateHelper("x", "x * x * y * 3.0", "(x * x * y * 0.0 + 3.0 * (x * x * 0.0 + y * (x * 1.0 + x * 1.0)))");
+        assertEquals(1, DerivativeCache.size());
+        DerivativeCache.setCapacity(DerivativeCache.DEFAULT_CAPACITY);
+    }
+    
     /**
      * simplify()
      */
@@ -250,4 +473,189 @@ public class ExpressionTest {
         env.put("z", 5.0);
         testSimplify("x + y * (5 + 2)", "(x + y * 7.0)", env);
     }
+    
+    @Test
+    public void testSimplifyDeepConstantTree() {
+        Expression sum = new Scalar(0);
+        Expression product = new Scalar(1);
+        for (int i = 1; i <= 1000; i++) {
+            sum = new Sum(sum, new Scalar(1));
+            product = new Product(new Scalar(1), product);
+        }
+        Map<String, Double> env = new HashMap<String, Double>();
+        assertEquals(new Scalar(1000.0), sum.simplify(env));
+        assertEquals(new Scalar(1.0), product.simplify(env));
+    }
+    
+    @Test
+    public void testSimplifyNumberLikeVariableNames() {
+        Map<String, Double> env = new HashMap<String, Double>();
+        testSimplify("NaN + 1", "NaN + 1.0", env);
+        testSimplify("Infinity * 2", "Infinity * 2.0", env);
+    }
+    
+    @Test
+    public void testSimplifyLargeMapSmallExpression() {
+        final Map<String, Double> bindings = new HashMap<String, Double>();
+        for (int i = 0; i < 100000; i++) {
+            bindings.put("v" + Integer.toString(i, 26).replaceAll("[0-9]", "z"), (double) i);
+        }
+        bindings.put("x", 2.0);
+        bindings.put("y", 0.5);
+        // a map that can only be looked up, so simplify must not copy or iterate it
+        Map<String, Double> env = new AbstractMap<String, Double>() {
+            @Override
+            public Double get(Object key) {
+                return bindings.get(key);
+            }
+            @Override
+            public Set<Map.Entry<String, Double>> entrySet() {
+                throw new AssertionError("simplify iterated the environment");
+            }
+        };
+        assertEquals(new Scalar(7.0), Expression.parse("x * y + 3 * x").simplify(env));
+        assertEquals(Expression.parse("2 * z + 1"), Expression.parse("x * z + 1").simplify(env));
+    }
+    
+    @Test
+    public void testSimplifyEnvironmentSameAsMap() {
+        Expression expression = Expression.parse("x * y + (z + 2) * x");
+        Map<String, Double> env = new HashMap<String, Double>();
+        env.put("x", 3.0);
+        env.put("w", 1.0);
+        Environment environment = Environment.of(env);
+        assertEquals(expression.simplify(env), expression.simplify(environment));
+        assertEquals(Expression.parse("3 * y + (z + 2) * 3").simplify(env), expression.simplify(environment));
+    }
+    
+    @Test
+    public void testSimplifyEnvironmentForExpression() {
+        Expression expression = Expression.parse("x * y + (z + 2) * x");
+        Environment environment = Environment.forExpression(expression);
+        assertEquals(3, environment.size());
+        assertEquals(0, environment.slotOf("x"));
+        assertEquals(1, environment.slotOf("y"));
+        assertEquals(2, environment.slotOf("z"));
+        assertEquals(-1, environment.slotOf("w"));
+        assertFalse(environment.contains("x"));
+        assertEquals(expression, expression.simplify(environment));
+        
+        int x = environment.slotOf("x");
+        int y = environment.slotOf("y");
+        int z = environment.slotOf("z");
+        for (int i = 0; i < 10; i++) {
+            environment.set(x, i);
+            environment.set(y, 2);
+            environment.set(z, 1);
+            assertEquals(new Scalar(i * 2 + 3 * i), expression.simplify(environment));
+        }
+        environment.unset(y);
+        assertEquals(Expression.parse("9 * y + 27").simplify(new HashMap<String, Double>()),
+                expression.simplify(environment));
+        environment.unsetAll();
+        assertEquals(expression, expression.simplify(environment));
+        assertTrue(environment.toMap().isEmpty());
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void testEnvironmentGetUnbound() {
+        Environment environment = Environment.forExpression(Expression.parse("x"));
+        environment.get(environment.slotOf("x"));
+    }
+    
+    @Test
+    public void testNaryFlattenedForm() {
+        Expression x = new Variable("x");
+        Expression y = new Variable("y");
+        Expression z = new Variable("z");
+        Sum binary = new Sum(new Sum(new Sum(x, y), z), new Scalar(1));
+        assertEquals(4, binary.getOperandCount());
+        assertEquals(x, binary.getOperand(0));
+        assertEquals(z, binary.getOperand(2));
+        assertEquals(new Scalar(1), binary.getRight());
+        assertEquals(new Sum(new Sum(x, y), z), binary.getLeft());
+        assertEquals(3, ((Sum) binary.getLeft()).getOperandCount());
+        assertEquals(7, binary.getSize());
+        
+        Expression built = new Sum.Builder().add(x).add(y).add(z).add(new Scalar(1)).build();
+        Expression parsed = Expression.parse("x + y + z + 1");
+        assertEquals(binary, built);
+        assertEquals(binary, parsed);
+        assertEquals(binary.hashCode(), built.hashCode());
+        assertEquals(binary.hashCode(), parsed.hashCode());
+        assertEquals("(((x + y) + z) + 1.0)", built.toString());
+        
+        // a right-nested sum is a different tree, with its own operands
+        Sum nested = new Sum(x, new Sum(y, z));
+        assertEquals(2, nested.getOperandCount());
+        assertFalse(nested.equals(new Sum(new Sum(x, y), z)));
+        
+        Product product = (Product) Expression.parse("x * y * z");
+        assertEquals(3, product.getOperandCount());
+        assertEquals("x * y * z", product.toString());
+        assertEquals(new Product(new Product(x, y), z), product);
+    }
+    
+    @Test(expected=IndexOutOfBoundsException.class)
+    public void testNaryOperandOutOfRange() {
+        ((Sum) Expression.parse("x + y + z")).getOperand(3);
+    }
+    
+    @Test
+    public void testNaryBuilder() {
+        Expression x = new Variable("x");
+        assertEquals(x, new Product.Builder().add(x).build());
+        
+        // a first operand of the same operator is flattened into the new node
+        Expression left = Expression.parse("x * y");
+        Product product = (Product) new Product.Builder().add(left).add(new Variable("z")).build();
+        assertEquals(3, product.getOperandCount());
+        assertEquals(Expression.parse("x * y * z"), product);
+        assertEquals(left, product.getLeft());
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void testNaryBuilderEmpty() {
+        new Sum.Builder().build();
+    }
+    
+    @Test
+    public void testNarySharedStorage() {
+        Sum prefix = (Sum) Expression.parse("a + b + c");
+        Sum first = new Sum(prefix, new Variable("d"));
+        Sum second = new Sum(prefix, new Variable("e"));
+        Sum again = new Sum(first.getLeft(), new Variable("d"));
+        assertEquals(Expression.parse("a + b + c + d"), first);
+        assertEquals(Expression.parse("a + b + c + e"), second);
+        assertEquals(first, again);
+        assertEquals(new Variable("d"), first.getOperand(3));
+        assertEquals(new Variable("e"), second.getOperand(3));
+        assertEquals(prefix, second.getLeft());
+        assertEquals(prefix.hashCode(), first.getLeft().hashCode());
+    }
+    
+    @Test
+    public void testNarySimplifyFoldsScalars() {
+        Map<String, Double> env = new HashMap<>();
+        assertEquals("(x + 3.0)", Expression.parse("x + 1 + 2").simplify(env).toString());
+        assertEquals("6.0 * x", Expression.parse("2 * x * 3").simplify(env).toString());
+        assertEquals("((x + 10.0) + y)", Expression.parse("x + 1 + y + 9").simplify(env).toString());
+        env.put("x", 4.0);
+        assertEquals(new Scalar(24), Expression.parse("2 * x * 3").simplify(env));
+    }
+    
+    @Test
+    public void testNaryDifferentiateLongProduct() {
+        Product.Builder builder = new Product.Builder();
+        for (int i = 0; i < 2000; i++) {
+            builder.add(new Variable("x" + i));
+        }
+        Expression product = builder.build();
+        Expression derivative = product.differentiate("x1000");
+        Map<String, Double> env = new HashMap<>();
+        for (int i = 0; i < 2000; i++) {
+            env.put("x" + i, 1.0);
+        }
+        assertEquals(new Scalar(1), derivative.simplify(env));
+    }
 }
@@ -0,0 +1,67 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * Tests for ExpressionWriter.
+ */
+public class ExpressionWriterTest {
+    
+    /*
+     * Testing strategy:
+     *  layout = STANDARD, MINIMAL
+     *  nesting = sum in sum (left, right), product in product (left, right),
+     *            sum in product, product in sum
+     *  destination = StringBuilder, Writer, existing contents kept
+     *  round trip: parse(write(e)).equals(e)
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private static final Expression X = new Variable("x");
+    private static final Expression Y = new Variable("y");
+    private static final Expression Z = new Variable("z");
+    
+    private void testLayouts(Expression expr, String standard, String minimal) {
+        assertEquals(standard, ExpressionWriter.toString(expr, ExpressionWriter.Layout.STANDARD));
+        assertEquals(standard, expr.toString());
+        assertEquals(minimal, ExpressionWriter.toString(expr, ExpressionWriter.Layout.MINIMAL));
+        assertEquals(expr, Expression.parse(standard));
+        assertEquals(expr, Expression.parse(minimal));
+    }
+    
+    @Test
+    public void testSumInSum() {
+        testLayouts(new Sum(new Sum(X, Y), Z), "((x + y) + z)", "x + y + z");
+        testLayouts(new Sum(X, new Sum(Y, Z)), "(x + (y + z))", "x + (y + z)");
+    }
+    
+    @Test
+    public void testProductInProduct() {
+        testLayouts(new Product(new Product(X, Y), Z), "x * y * z", "x * y * z");
+        testLayouts(new Product(X, new Product(Y, Z)), "x * (y * z)", "x * (y * z)");
+    }
+    
+    @Test
+    public void testMixed() {
+        testLayouts(new Product(new Sum(X, new Scalar(1)), Y), "(x + 1.0) * y", "(x + 1.0) * y");
+        testLayouts(new Sum(new Product(X, Y), new Product(Y, new Sum(X, Z))), 
+                "(x * y + y * (x + z))", "x * y + y * (x + z)");
+    }
+    
+    @Test
+    public void testWriterKeepsExistingContents() throws IOException {
+        StringWriter out = new StringWriter();
+        out.write("d/dx ");
+        ExpressionWriter.write(new Sum(X, new Scalar(2.5)), out, ExpressionWriter.Layout.MINIMAL);
+        assertEquals("d/dx x + 2.5", out.toString());
+    }
+}
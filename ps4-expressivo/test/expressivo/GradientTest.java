@@ -0,0 +1,110 @@
+package expressivo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for Gradient.
+ */
+public class GradientTest {
+    
+    /*
+     * Testing strategy:
+     *  expression = scalar, variable, sum, product, n-ary product, tree with shared subtrees
+     *  variables = none, one, several, repeated, not in the expression
+     *  point = zeros among the operands of a product, nonzero
+     *  result = same partial derivatives as differentiate() then simplify(); same value as
+     *      CompiledExpression
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private void testSameAsDifferentiate(Expression expr, double... values) {
+        Gradient gradient = Gradient.of(expr);
+        String[] variables = gradient.getVariables();
+        Map<String, Double> env = new HashMap<String, Double>();
+        for (int i = 0; i < variables.length; i++) {
+            env.put(variables[i], values[i]);
+        }
+        double[] partials = new double[variables.length];
+        double value = gradient.evaluate(values, partials);
+        assertEquals(CompiledExpression.compile(expr).evaluate(values), value, 0);
+        for (int i = 0; i < variables.length; i++) {
+            double expected = ((Scalar) expr.differentiate(variables[i]).simplify(env)).getValue();
+            assertEquals(variables[i], expected, partials[i], 1e-9 * Math.max(1, Math.abs(expected)));
+        }
+        assertArrayEquals(partials, gradient.gradient(values), 0);
+    }
+    
+    private void testSameAsDifferentiate(String input, double... values) {
+        testSameAsDifferentiate(Expression.parse(input), values);
+    }
+    
+    @Test
+    public void testLeaves() {
+        Gradient scalar = Gradient.of(new Scalar(3));
+        assertEquals(0, scalar.getVariables().length);
+        assertEquals(3, scalar.evaluate(new double[0], new double[0]), 0);
+        
+        testSameAsDifferentiate("x", 2);
+    }
+    
+    @Test
+    public void testSumAndProduct() {
+        testSameAsDifferentiate("x + y", 2, 3);
+        testSameAsDifferentiate("x * y", 2, 3);
+        testSameAsDifferentiate("2 * x * y + 3 * y + 1", 1.5, -2);
+    }
+    
+    @Test
+    public void testRepeatedVariables() {
+        testSameAsDifferentiate("x * x * x + x * y * x", 1.5, 0.5);
+    }
+    
+    @Test
+    public void testZeroFactors() {
+        testSameAsDifferentiate("x * y * z * w", 2, 0, 3, 0);
+        testSameAsDifferentiate("x * y * z", 0, 5, 7);
+    }
+    
+    @Test
+    public void testSharedSubtrees() {
+        Expression expr = Expression.parse("x * x * y * (x + y) * x");
+        for (int i = 0; i < 6; i++) {
+            expr = expr.differentiate("x");
+        }
+        Gradient gradient = Gradient.of(expr);
+        assertTrue(gradient.tapeLength() < ExpressionDag.of(expr).treeNodes());
+        testSameAsDifferentiate(expr, 1.5, 0.5);
+    }
+    
+    @Test
+    public void testManyVariables() {
+        StringBuilder input = new StringBuilder("1");
+        double[] values = new double[100];
+        for (int i = 0; i < values.length; i++) {
+            input.append(" + ").append(name(i)).append(" * ").append(name(i)).append(" * ").append(i);
+            values[i] = i / 10.0;
+        }
+        Gradient gradient = Gradient.of(Expression.parse(input.toString()));
+        assertEquals(-1, gradient.slotOf("x"));
+        double[] partials = gradient.gradient(values);
+        for (int i = 0; i < values.length; i++) {
+            assertEquals(i, gradient.slotOf(name(i)));
+            assertEquals(2 * values[i] * i, partials[i], 1e-12);
+        }
+    }
+    
+    private static String name(int i) {
+        return "v" + (char) ('a' + i / 26) + (char) ('a' + i % 26);
+    }
+}
@@ -0,0 +1,104 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Tests for ParallelExpressions.
+ */
+public class ParallelExpressionsTest {
+    
+    /*
+     * Testing strategy:
+     *  operation = simplify, differentiate
+     *  size vs threshold = below (sequential), above (split); threshold 0, negative
+     *  top chain = sum, product, mixed with nested chains of the other operator
+     *  pool parallelism = 1, 2, 4
+     *  result = compare to the sequential operation, which must be equal
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private static final int[] PARALLELISM = { 1, 2, 4 };
+    
+    private static String polynomial(int terms) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < terms; i++) {
+            if (i > 0) builder.append(" + ");
+            builder.append(i % 7).append("*x*y + (x + ").append(i % 5).append(")*y");
+        }
+        return builder.toString();
+    }
+    
+    private static void assertSameAsSequential(Expression expression, int threshold) {
+        Map<String, Double> env = new HashMap<>();
+        env.put("y", 3.0);
+        for (int parallelism : PARALLELISM) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                assertEquals(expression.simplify(env),
+                        ParallelExpressions.simplify(expression, env, pool, threshold));
+                assertEquals(expression.differentiate("x"),
+                        ParallelExpressions.differentiate(expression, "x", pool, threshold));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+    
+    @Test
+    public void testBelowThreshold() {
+        Expression expression = Expression.parse("x*y + 2*x + 1");
+        assertSameAsSequential(expression, ParallelExpressions.DEFAULT_THRESHOLD);
+    }
+    
+    @Test
+    public void testLargeSum() {
+        Expression expression = Expression.parse(polynomial(2000));
+        assertSameAsSequential(expression, 50);
+    }
+    
+    @Test
+    public void testLargeProduct() {
+        StringBuilder builder = new StringBuilder("1.5");
+        for (int i = 0; i < 500; i++) {
+            builder.append(" * (x + ").append(i % 3).append(")");
+        }
+        Expression expression = Expression.parse(builder.toString());
+        assertSameAsSequential(expression, 10);
+    }
+    
+    @Test
+    public void testNestedChains() {
+        Expression expression = Expression.parse("(" + polynomial(300) + ") * (" + polynomial(200) + ") + x*y*x");
+        assertSameAsSequential(expression, 20);
+    }
+    
+    @Test
+    public void testDefaults() {
+        Expression expression = Expression.parse(polynomial(5000));
+        Map<String, Double> env = new HashMap<>();
+        env.put("x", 2.0);
+        assertEquals(expression.simplify(env), ParallelExpressions.simplify(expression, env));
+        assertEquals(expression.differentiate("y"), ParallelExpressions.differentiate(expression, "y"));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testZeroThreshold() {
+        ParallelExpressions.simplify(Expression.parse("x + 1"), new HashMap<String, Double>(),
+                ForkJoinPool.commonPool(), 0);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testNegativeThreshold() {
+        ParallelExpressions.differentiate(Expression.parse("x * x"), "x", ForkJoinPool.commonPool(), -1);
+    }
+}
@@ -0,0 +1,137 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+/**
+ * Tests for ParseCache.
+ */
+public class ParseCacheTest {
+    
+    /*
+     * Testing strategy:
+     *  lookup = first (miss), repeated (hit), after expiry, after eviction, invalid input
+     *  capacity = 1, fewer than the segment count, many entries
+     *  time to live = none, expired, not yet expired
+     *  callers = one thread, several threads on a skewed mix of inputs
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    @Test
+    public void testHitReturnsSameExpression() {
+        ParseCache cache = new ParseCache(10);
+        Expression first = cache.parse("x + 1");
+        assertEquals(Expression.parse("x + 1"), first);
+        assertSame(first, cache.parse("x + 1"));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(0.5, cache.hitRate(), 0);
+        assertEquals(1, cache.size());
+    }
+    
+    @Test
+    public void testInvalidInputNotCached() {
+        ParseCache cache = new ParseCache(10);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.parse("x +");
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException iae) {
+                // expected
+            }
+        }
+        assertEquals(0, cache.size());
+        assertEquals(2, cache.misses());
+    }
+    
+    @Test
+    public void testCapacityOne() {
+        ParseCache cache = new ParseCache(1);
+        cache.parse("x");
+        cache.parse("y");
+        cache.parse("x");
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.hits());
+        assertEquals(2, cache.evictions());
+    }
+    
+    @Test
+    public void testCapacityBound() {
+        ParseCache cache = new ParseCache(100);
+        for (int i = 0; i < 1000; i++) {
+            cache.parse("x * " + i);
+        }
+        assertTrue(cache.size() <= 100);
+        assertEquals(1000 - cache.size(), cache.evictions());
+        assertEquals(0, cache.hits());
+    }
+    
+    @Test
+    public void testTimeToLive() {
+        AtomicLong now = new AtomicLong(0);
+        ParseCache cache = new ParseCache(10, 100, now::get);
+        Expression first = cache.parse("x * y");
+        now.set(99);
+        assertSame(first, cache.parse("x * y"));
+        now.set(100);
+        Expression second = cache.parse("x * y");
+        assertEquals(first, second);
+        assertEquals(1, cache.expirations());
+        assertEquals(1, cache.hits());
+        assertEquals(2, cache.misses());
+        now.set(150);
+        assertSame(second, cache.parse("x * y"));
+    }
+    
+    @Test
+    public void testConcurrentCallers() throws InterruptedException {
+        final ParseCache cache = new ParseCache(64);
+        final List<Throwable> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int seed = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 2000; i++) {
+                        // mostly the same few inputs, sometimes a rare one
+                        int n = i % 10 == 0 ? 1000 + (i * 7 + seed) % 500 : (i + seed) % 8;
+                        String input = "x * " + n + " + y";
+                        assertEquals(Expression.parse(input), cache.parse(input));
+                    }
+                } catch (Throwable e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        assertEquals(new ArrayList<Throwable>(), failures);
+        assertEquals(8000, cache.hits() + cache.misses());
+        assertTrue(cache.hitRate() > 0.5);
+        assertTrue(cache.size() <= 64);
+    }
+    
+    @Test
+    public void testCommandsUseDefaultCache() {
+        ParseCache cache = ParseCache.getDefault();
+        String input = "q * q * 6005";
+        Commands.simplify(input, new Environment());
+        long hits = cache.hits();
+        Commands.differentiate(input, "q");
+        assertEquals(hits + 1, cache.hits());
+    }
+}
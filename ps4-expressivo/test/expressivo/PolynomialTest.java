@@ -0,0 +1,91 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests for Polynomial.
+ */
+public class PolynomialTest {
+    
+    /*
+     * Testing strategy:
+     *  fromExpression()/toExpression():
+     *      constant, zero, single variable
+     *      like terms = none, cancelling, collected
+     *      variable order = alphabetical vs order of appearance
+     *      products of sums (expansion)
+     *  differentiate():
+     *      variable absent, present, repeated high-order differentiation
+     *  simplify():
+     *      variables bound = none, some, all
+     */
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private static Polynomial polynomial(String input) {
+        return Polynomial.fromExpression(Expression.parse(input));
+    }
+    
+    @Test
+    public void testConstant() {
+        assertEquals(new Scalar(6), polynomial("1 + 2 + 3").toExpression());
+        assertEquals(new Scalar(0), polynomial("x * 0").toExpression());
+    }
+    
+    @Test
+    public void testSingleVariable() {
+        assertEquals(new Variable("x"), polynomial("x").toExpression());
+    }
+    
+    @Test
+    public void testCollectLikeTerms() {
+        assertEquals(Expression.parse("2 * x * y"), polynomial("y * x + x * y").toExpression());
+        assertEquals(1, polynomial("x + x + x + x").termCount());
+    }
+    
+    @Test
+    public void testExpandProduct() {
+        assertEquals(Expression.parse("x * x + 2 * x + 1"), polynomial("(x + 1) * (x + 1)").toExpression());
+    }
+    
+    @Test
+    public void testDifferentiateAbsentVariable() {
+        assertEquals(new Scalar(0), polynomial("x * x").differentiate("y").toExpression());
+    }
+    
+    @Test
+    public void testDifferentiateRepeatedly() {
+        Polynomial p = polynomial("x * x * x * x * x * y + x * y * y");
+        for (int i = 0; i < 4; i++) {
+            p = p.differentiate("x");
+        }
+        assertEquals(Expression.parse("120 * x * y"), p.toExpression());
+        assertEquals(new Scalar(0), p.differentiate("x").differentiate("x").toExpression());
+    }
+    
+    @Test
+    public void testDifferentiateMatchesExpression() {
+        Expression expr = Expression.parse("x * x * y * 3.0 + x * (y + 2)");
+        assertEquals(Polynomial.normalize(expr.differentiate("x")), 
+                Polynomial.fromExpression(expr).differentiate("x").toExpression());
+    }
+    
+    @Test
+    public void testSimplify() {
+        Map<String, Double> env = new HashMap<String, Double>();
+        Polynomial p = polynomial("x * y + x * x + y");
+        assertEquals(Expression.parse("x * x + x * y + y"), p.simplify(env).toExpression());
+        env.put("x", 2.0);
+        assertEquals(Expression.parse("3 * y + 4"), p.simplify(env).toExpression());
+        env.put("y", 1.0);
+        assertEquals(new Scalar(7), p.simplify(env).toExpression());
+    }
+}
@@ -0,0 +1,90 @@
+package expressivo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Stress tests for the stack-safe traversals in Traversal, on trees far deeper than
+ * the call stack could handle recursively.
+ */
+public class TraversalTest {
+    
+    /*
+     * Testing strategy:
+     *  shape = million-deep left spine (parsed), million-deep right spine (built directly)
+     *  operation = parse, simplify, differentiate, toString, equals, hashCode
+     *  equals = equal trees built separately, trees differing only in the deepest leaf
+     */
+    
+    private static final int TERMS = 1_000_000;
+    
+    @Test(expected=AssertionError.class)
+    public void testAssertionsEnabled() {
+        assert false; // make sure assertions are enabled with VM argument: -ea
+    }
+    
+    private static String repeat(String term, String operator, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(operator);
+            builder.append(term);
+        }
+        return builder.toString();
+    }
+    
+    private static Expression parse(String input) {
+        return Expression.parse(input, Expression.ParserStrategy.RECURSIVE_DESCENT);
+    }
+    
+    @Test
+    public void testMillionTermSum() {
+        String input = repeat("x", " + ", TERMS);
+        Expression sum = parse(input);
+        
+        Map<String, Double> env = new HashMap<String, Double>();
+        env.put("x", 1.0);
+        assertEquals(new Scalar(TERMS), sum.simplify(env));
+        assertEquals(new Scalar(TERMS), sum.differentiate("x").simplify(env));
+        
+        String printed = sum.toString();
+        assertEquals(input.length() + 2 * (TERMS - 1), printed.length());
+        
+        Expression again = parse(input);
+        assertEquals(sum, again);
+        assertEquals(sum.hashCode(), again.hashCode());
+        assertFalse(sum.equals(parse(input.substring(0, input.length() - 1) + "y")));
+    }
+    
+    @Test
+    public void testMillionFactorProduct() {
+        String input = repeat("x", "*", TERMS);
+        Expression product = parse(input);
+        
+        Map<String, Double> env = new HashMap<String, Double>();
+        env.put("x", 1.0);
+        assertEquals(new Scalar(1), product.simplify(env));
+        assertEquals(repeat("x", " * ", TERMS), product.toString());
+        assertEquals(product, parse(input));
+    }
+    
+    @Test
+    public void testMillionDeepRightSpine() {
+        Expression first = new Variable("x");
+        Expression second = new Variable("x");
+        for (int i = 0; i < TERMS; i++) {
+            first = new Sum(new Scalar(1), first);
+            second = new Sum(new Scalar(1), second);
+        }
+        assertTrue(first.equals(second));
+        assertEquals(new Scalar(TERMS + 2.0), first.simplify(new HashMap<String, Double>() {{ put("x", 2.0); }}));
+        String printed = first.toString();
+        assertTrue(printed.startsWith("(1.0 + (1.0 + "));
+        assertEquals("(1.0 + ".length() * TERMS + "x".length() + ")".length() * TERMS, printed.length());
+    }
+}